@@ -0,0 +1,244 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Crash-safe file writes: content is written to a temporary file in the same directory,
+ * and then published by atomically moving it into place. Readers see either the old
+ * content or the new content, never a partially written file, and a crash while writing
+ * leaves the old content intact.
+ * <p> Temporary files are hidden - their names start with "." - and end with
+ * {@link #TEMPORARY_SUFFIX}, so that they're never indexed or served as documents, and so
+ * that any left behind by a crash can be found and removed by
+ * {@link #removeTemporaryFiles(Path,long)}.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class AtomicFiles {
+
+  /** The suffix of temporary files. */
+  public static final String TEMPORARY_SUFFIX = ".wysiwiki-tmp";
+
+  /**
+   * Writes content to a new temporary file in the same directory as the given file. If
+   * the file exists, the temporary file is given the same permissions.
+   * @param path The file that will be replaced by the temporary file.
+   * @param content The content to write.
+   * @param sync Whether to flush the content to the storage device before returning.
+   * @return The temporary file.
+   * @throws IOException If the file can't be written, e.g. NoSuchFileException if the
+   * directory doesn't exist.
+   */
+  public static Path writeTemporary(Path path, InputStream content, boolean sync)
+    throws IOException {
+    String unique = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    Path temporary = path.resolveSibling(
+      "." + path.getFileName() + "." + unique + TEMPORARY_SUFFIX);
+    FileChannel channel = FileChannel.open(
+      temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    try {
+      try {
+        OutputStream out = Channels.newOutputStream(channel);
+        byte[] buffer = new byte[65536];
+        int length = content.read(buffer);
+        while (length >= 0) {
+          out.write(buffer, 0, length);
+          length = content.read(buffer);
+        }
+        if (sync) channel.force(true);
+      } finally {
+        channel.close();
+      }
+      try { // keep permissions the same as the original
+        Files.setPosixFilePermissions(temporary, Files.getPosixFilePermissions(path));
+      } catch(UnsupportedOperationException | IOException doesntExistOrNotPosix) {
+      }
+      return temporary;
+    } catch(IOException | RuntimeException exception) {
+      Files.deleteIfExists(temporary);
+      throw exception;
+    }
+  } // end of writeTemporary()
+
+  /**
+   * Publishes a temporary file by moving it into place.
+   * @param temporary The temporary file, from
+   * {@link #writeTemporary(Path,InputStream,boolean)}.
+   * @param path The file to replace.
+   * @param createNew true if the file must not already exist, false if it may be
+   * replaced.
+   * @throws FileAlreadyExistsException If <var>createNew</var> is true and the file
+   * exists.
+   * @throws IOException If the file can't be published.
+   */
+  public static void publish(Path temporary, Path path, boolean createNew)
+    throws IOException {
+    try {
+      move(temporary, path, createNew);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  } // end of publish()
+
+  /**
+   * Moves a temporary file into place. Unlike
+   * {@link #publish(Path,Path,boolean)}, the temporary file is left where it is if
+   * publishing fails, so that it can be published under another name.
+   * @param temporary The temporary file, from
+   * {@link #writeTemporary(Path,InputStream,boolean)}.
+   * @param path The file to replace.
+   * @param createNew true if the file must not already exist, false if it may be
+   * replaced.
+   * @throws FileAlreadyExistsException If <var>createNew</var> is true and the file
+   * exists.
+   * @throws IOException If the file can't be published.
+   */
+  static void move(Path temporary, Path path, boolean createNew) throws IOException {
+    if (createNew) {
+      try { // a hard link can't replace an existing file, and is atomic
+        Files.createLink(path, temporary);
+        Files.delete(temporary);
+        return;
+      } catch(FileAlreadyExistsException exception) {
+        throw exception;
+      } catch(UnsupportedOperationException | FileSystemException noLinks) {
+        // not as atomic, but the best we can do
+        if (Files.exists(path)) throw new FileAlreadyExistsException(path.toString());
+      }
+    }
+    try {
+      Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+    } catch(AtomicMoveNotSupportedException exception) {
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+  } // end of move()
+
+  /**
+   * Writes a file atomically.
+   * @param path The file to write.
+   * @param content The content to write.
+   * @param createNew true if the file must not already exist, false if it may be
+   * replaced.
+   * @param sync Whether to flush the content to the storage device before publishing
+   * it.
+   * @return The attributes of the file as written. These are read before it's published,
+   * as by the time they could be read from the file, another write might have replaced it.
+   * @throws FileAlreadyExistsException If <var>createNew</var> is true and the file
+   * exists.
+   * @throws IOException If the file can't be written.
+   */
+  public static BasicFileAttributes write(
+    Path path, InputStream content, boolean createNew, boolean sync) throws IOException {
+    Path temporary = writeTemporary(path, content, sync);
+    BasicFileAttributes attributes = null;
+    try { // moving the file keeps its size and last modified time
+      attributes = Files.readAttributes(temporary, BasicFileAttributes.class);
+    } finally {
+      if (attributes == null) Files.deleteIfExists(temporary);
+    }
+    publish(temporary, path, createNew);
+    if (sync) syncDirectory(path.getParent());
+    return attributes;
+  } // end of write()
+
+  /**
+   * Flushes a file's content to the storage device.
+   * @param path The file.
+   * @throws IOException If the file can't be opened.
+   */
+  public static void sync(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+    try {
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+  } // end of sync()
+
+  /**
+   * Flushes a directory's entries to the storage device, so that files moved into it
+   * survive a crash. This isn't possible on all platforms, in which case nothing happens.
+   * @param dir The directory.
+   */
+  public static void syncDirectory(Path dir) {
+    try {
+      FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch(IOException notPossibleOnThisPlatform) {
+    }
+  } // end of syncDirectory()
+
+  /**
+   * Removes temporary files left behind by writes that were interrupted, e.g. by a crash.
+   * As the temporary files were never published, the files they were to replace are
+   * intact.
+   * @param root The directory to search, including its subdirectories.
+   * @param olderThan Only files last modified before this time, in milliseconds, are
+   * removed, so that the temporary files of writes in progress are left alone.
+   * @return The number of temporary files removed.
+   * @throws IOException If the directory can't be searched.
+   */
+  public static int removeTemporaryFiles(Path root, final long olderThan)
+    throws IOException {
+    final int[] removed = { 0 };
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override public FileVisitResult visitFile(
+          Path file, BasicFileAttributes attributes) {
+          String name = file.getFileName().toString();
+          if (name.startsWith(".") && name.endsWith(TEMPORARY_SUFFIX)
+              && attributes.lastModifiedTime().toMillis() < olderThan) {
+            try {
+              Files.delete(file);
+              removed[0]++;
+            } catch(IOException exception) {
+              System.err.println("AtomicFiles.removeTemporaryFiles: " + exception);
+            }
+          }
+          return FileVisitResult.CONTINUE;
+        }
+        @Override public FileVisitResult visitFileFailed(
+          Path file, IOException exception) {
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    return removed[0];
+  } // end of removeTemporaryFiles()
+
+} // end of class AtomicFiles
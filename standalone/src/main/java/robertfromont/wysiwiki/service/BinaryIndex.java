@@ -0,0 +1,246 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary copy of the index, which can be loaded much faster than parsing
+ * index.html.
+ * <p> The file records the length and CRC32 checksum of the index.html it was written
+ * with, so that it's only used if index.html hasn't changed since. It contains the
+ * index tree in pre-order - i.e. names, titles, and entry order - and, for entries whose
+ * document title is cached, the document's modification time and size, so the title cache
+ * can be primed when the index is loaded.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class BinaryIndex {
+
+  /** Identifies the file format: "WWIX" */
+  static final int MAGIC = 0x57574958;
+  /** Version of the file format. */
+  static final int VERSION = 2;
+
+  static final byte DOCUMENT = 1;
+  static final byte DIRECTORY = 2;
+
+  /**
+   * Calculates the CRC32 checksum of a file.
+   * @param file
+   * @return The checksum.
+   * @throws IOException
+   */
+  public static long checksum(Path file) throws IOException {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[65536];
+    InputStream stream = Files.newInputStream(file);
+    try {
+      int length;
+      while ((length = stream.read(buffer)) > 0) crc.update(buffer, 0, length);
+    } finally {
+      stream.close();
+    }
+    return crc.getValue();
+  } // end of checksum()
+
+  /**
+   * Calculates the CRC32 checksum of some bytes.
+   * @param bytes
+   * @return The checksum.
+   */
+  public static long checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  } // end of checksum()
+
+  /**
+   * Writes the index. The file is written atomically with {@link AtomicFiles}, so a
+   * partially written file is never read.
+   * @param file The file to write.
+   * @param index The root of the index, which must not change while it's being written.
+   * @param htmlLength The length of the corresponding index.html.
+   * @param htmlChecksum The CRC32 checksum of the corresponding index.html.
+   * @param root The root directory of the content.
+   * @param titles Cached document titles, for recording document modification times.
+   * @param sync Whether to flush the file to the storage device before publishing it.
+   * @throws IOException
+   */
+  public static void write(Path file, IndexNode index, long htmlLength, long htmlChecksum,
+                           Path root, Map<Path,ContentManager.CachedTitle> titles,
+                           boolean sync)
+    throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(65536);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bytes, 65536));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(htmlLength);
+      out.writeLong(htmlChecksum);
+      write(out, index, root, titles);
+    } finally {
+      out.close();
+    }
+    Files.createDirectories(file.getParent());
+    AtomicFiles.write(file, new ByteArrayInputStream(bytes.toByteArray()), false, sync);
+  } // end of write()
+
+  /** Writes an entry and its descendants. */
+  private static void write(DataOutputStream out, IndexNode item, Path root,
+                            Map<Path,ContentManager.CachedTitle> titles) throws IOException {
+    out.writeByte(item.isDirectory()? DIRECTORY : DOCUMENT);
+    writeString(out, item.name);
+    writeString(out, item.title);
+    ContentManager.CachedTitle cached = null;
+    if (item.title != null) {
+      cached = titles.get(documentPath(root, item));
+      // only if the entry is up to date with the cached title
+      if (cached != null && !cached.title.equals(item.title)) cached = null;
+    }
+    out.writeLong(cached == null? 0 : cached.lastModified);
+    out.writeLong(cached == null? -1 : cached.size);
+    if (item.isDirectory()) {
+      out.writeInt(item.childCount);
+      for (int c = 0; c < item.childCount; c++) {
+        write(out, item.children[c], root, titles);
+      }
+    }
+  } // end of write()
+
+  /** Writes a length-prefixed UTF-8 string, or -1 for null. */
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    if (string == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  } // end of writeString()
+
+  /**
+   * Gets the path of the document an index entry links to, as keyed in the title cache.
+   * @param root The root directory of the content.
+   * @param item The entry.
+   * @return The absolute path of the document.
+   */
+  static Path documentPath(Path root, IndexNode item) {
+    return root.resolve(item.getHref()).toAbsolutePath().normalize();
+  } // end of documentPath()
+
+  /**
+   * Reads the index, if the file exists and matches index.html.
+   * @param file The file to read, which is memory-mapped.
+   * @param htmlLength The length of the current index.html.
+   * @param htmlChecksum The CRC32 checksum of the current index.html.
+   * @param indexItems Receives index entries by id.
+   * @param root The root directory of the content.
+   * @param titles Receives the titles of documents whose modification time is known.
+   * @return The root of the index, or null if the file is missing, stale, or invalid, in
+   * which case <var>indexItems</var> must be cleared.
+   */
+  public static IndexNode read(Path file, long htmlLength, long htmlChecksum,
+                               Map<String,IndexNode> indexItems, Path root,
+                               Map<Path,ContentManager.CachedTitle> titles) {
+    if (!Files.exists(file)) return null;
+    try {
+      FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+      try {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+            || buffer.getLong() != htmlLength || buffer.getLong() != htmlChecksum) {
+          return null; // stale
+        }
+        IndexNode index = read(buffer, null, new StringBuilder(), indexItems, root, titles);
+        if (!index.isDirectory() || buffer.hasRemaining()) return null;
+        return index;
+      } finally {
+        channel.close();
+      }
+    } catch (IOException | BufferUnderflowException | IllegalArgumentException exception) {
+      System.err.println("BinaryIndex.read: " + file + ": " + exception);
+      return null;
+    }
+  } // end of read()
+
+  /**
+   * Reads an entry and its descendants.
+   * @param parent The directory the entry belongs in, or null for the root.
+   * @param id The id of the directory, which is used and restored.
+   */
+  private static IndexNode read(ByteBuffer buffer, IndexNode parent, StringBuilder id,
+                                Map<String,IndexNode> indexItems, Path root,
+                                Map<Path,ContentManager.CachedTitle> titles) {
+    byte type = buffer.get();
+    if (type != DOCUMENT && type != DIRECTORY) {
+      throw new IllegalArgumentException("Invalid entry type " + type);
+    }
+    String name = readString(buffer);
+    if (name == null) throw new IllegalArgumentException("No entry name");
+    IndexNode item = new IndexNode(name, readString(buffer), type == DIRECTORY);
+    if (parent != null) parent.add(item);
+    int parentLength = id.length();
+    if (parent != null) id.append('/').append(item.name);
+    indexItems.put(parent == null? "/" : id.toString(), item);
+    long lastModified = buffer.getLong();
+    long size = buffer.getLong();
+    if (lastModified != 0 && item.title != null) { // prime the title cache
+      titles.put(documentPath(root, item), new ContentManager.CachedTitle(
+                   item.title, lastModified, size));
+    }
+    if (item.isDirectory()) {
+      int childCount = buffer.getInt();
+      if (childCount < 0) throw new IllegalArgumentException("Invalid count " + childCount);
+      for (int c = 0; c < childCount; c++) {
+        read(buffer, item, id, indexItems, root, titles);
+      }
+    }
+    id.setLength(parentLength);
+    return item;
+  } // end of read()
+
+  /** Reads a length-prefixed UTF-8 string, or null. */
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length == -1) return null;
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException("Invalid string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  } // end of readString()
+
+} // end of class BinaryIndex
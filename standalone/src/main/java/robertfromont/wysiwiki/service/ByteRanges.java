@@ -0,0 +1,256 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.Vector;
+
+/**
+ * The byte ranges of a file requested with a Range header, e.g. so that browsers can seek
+ * within a video without downloading it from the start.
+ * <p> A single range is sent as the body of a 206 Partial Content response, with a
+ * Content-Range header. Several ranges are sent as a multipart/byteranges body, with each
+ * part having its own Content-Range. Either way the Content-Length is known in advance, and
+ * the content is transferred directly from the file's channel at each range's position.
+ * <p> Overlapping or adjacent ranges are coalesced, so that a client can't make the server
+ * send the same bytes many times over.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ByteRanges {
+
+  /** The maximum number of ranges; requests for more are served the whole file. */
+  public static final int MAX_RANGES = 64;
+
+  /** The line separator in multipart bodies. */
+  static final String CRLF = "\r\n";
+
+  /** The size of the file. */
+  private long size;
+
+  /** The ranges, each being the first and last byte position, in order. */
+  private List<long[]> ranges;
+
+  /** The Content-Type of the file. */
+  private String fileContentType;
+
+  /** The boundary between parts of a multipart response. */
+  private String boundary;
+
+  /**
+   * Constructor.
+   * @param size The size of the file.
+   * @param ranges The ranges, each being the first and last byte position, in order.
+   * @param fileContentType The Content-Type of the file, or null.
+   */
+  ByteRanges(long size, List<long[]> ranges, String fileContentType) {
+    this.size = size;
+    this.ranges = ranges;
+    this.fileContentType = fileContentType;
+    this.boundary = UUID.randomUUID().toString().replace("-", "");
+  } // end of constructor
+
+  /**
+   * Parses the Range header of a request.
+   * @param range The Range header, or null.
+   * @param size The size of the file.
+   * @param fileContentType The Content-Type of the file, or null.
+   * @return The requested ranges, which are unsatisfiable if none of them overlap the
+   * file, or null if the whole file should be sent; i.e. if there's no Range header, it's
+   * not a valid byte range, or there are more than {@link #MAX_RANGES} ranges.
+   */
+  public static ByteRanges parse(String range, long size, String fileContentType) {
+    if (range == null) return null;
+    range = range.trim();
+    if (!range.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+    String[] specs = range.substring(6).split(",");
+    if (specs.length > MAX_RANGES) return null;
+    List<long[]> ranges = new Vector<long[]>();
+    try {
+      for (String spec : specs) {
+        spec = spec.trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        String firstPosition = spec.substring(0, dash).trim();
+        String lastPosition = spec.substring(dash + 1).trim();
+        long first = 0;
+        long last = size - 1;
+        if (firstPosition.length() == 0) { // suffix range: the last n bytes
+          long suffixLength = Long.parseLong(lastPosition);
+          if (suffixLength < 0) return null;
+          if (suffixLength == 0) continue; // unsatisfiable
+          first = Math.max(0, size - suffixLength);
+        } else {
+          first = Long.parseLong(firstPosition);
+          if (first < 0) return null;
+          if (lastPosition.length() > 0) {
+            long requestedLast = Long.parseLong(lastPosition);
+            if (requestedLast < first) return null;
+            last = Math.min(last, requestedLast);
+          }
+        }
+        if (first >= size) continue; // unsatisfiable
+        ranges.add(new long[] { first, last });
+      } // next spec
+    } catch(NumberFormatException exception) {
+      return null;
+    }
+    // coalesce overlapping and adjacent ranges
+    Collections.sort(ranges, (a, b) -> Long.compare(a[0], b[0]));
+    List<long[]> coalesced = new Vector<long[]>();
+    for (long[] r : ranges) {
+      long[] previous = coalesced.isEmpty()? null : coalesced.get(coalesced.size() - 1);
+      if (previous != null && r[0] <= previous[1] + 1) {
+        previous[1] = Math.max(previous[1], r[1]);
+      } else {
+        coalesced.add(r);
+      }
+    } // next range
+    return new ByteRanges(size, coalesced, fileContentType);
+  } // end of parse()
+
+  /**
+   * Determines whether a Range header should be honored, given the request's If-Range
+   * header, which has the entity tag or the modification date of the client's partial copy.
+   * @param ifRange The If-Range header, or null.
+   * @param eTag The file's current ETag.
+   * @param lastModified The file's modification time in milliseconds.
+   * @return true if there's no If-Range header, or the file hasn't changed since the
+   * client's partial copy, false if the whole file should be sent.
+   */
+  public static boolean ifRange(String ifRange, String eTag, long lastModified) {
+    if (ifRange == null) return true;
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) { // entity tag
+      // only a strong comparison will do
+      return ifRange.equals(eTag) && !eTag.startsWith("W/");
+    }
+    long date = CachePolicy.parseHttpDate(ifRange);
+    return date >= 0 && date / 1000 == lastModified / 1000;
+  } // end of ifRange()
+
+  /**
+   * Determines whether any of the ranges can be sent.
+   * @return false if the response should be 416 Range Not Satisfiable.
+   */
+  public boolean isSatisfiable() {
+    return !ranges.isEmpty();
+  } // end of isSatisfiable()
+
+  /**
+   * Determines whether the response has several parts.
+   * @return true if the response should be multipart/byteranges.
+   */
+  public boolean isMultipart() {
+    return ranges.size() > 1;
+  } // end of isMultipart()
+
+  /**
+   * The value of the Content-Range header of the response.
+   * @return e.g. "bytes 0-499/1234" for a single range, or "bytes &#42;/1234" if the
+   * ranges are unsatisfiable, or null if the response is multipart.
+   */
+  public String getContentRange() {
+    if (ranges.isEmpty()) return "bytes */" + size;
+    if (isMultipart()) return null;
+    return contentRange(ranges.get(0));
+  } // end of getContentRange()
+
+  /**
+   * The Content-Type of the response.
+   * @return The file's Content-Type for a single range, or multipart/byteranges for several.
+   */
+  public String getContentType() {
+    if (isMultipart()) return "multipart/byteranges; boundary=" + boundary;
+    return fileContentType;
+  } // end of getContentType()
+
+  /**
+   * The Content-Length of the response.
+   * @return The number of bytes that {@link #write(FileChannel,WritableByteChannel)} sends.
+   */
+  public long getContentLength() {
+    long length = 0;
+    for (long[] r : ranges) length += r[1] - r[0] + 1;
+    if (isMultipart()) {
+      for (long[] r : ranges) length += partHeader(r).length;
+      length += closingDelimiter().length;
+    }
+    return length;
+  } // end of getContentLength()
+
+  /**
+   * Writes the ranges of the file.
+   * @param file The file's channel.
+   * @param target The response body.
+   * @throws IOException If the file can't be read or the response can't be written.
+   */
+  public void write(FileChannel file, WritableByteChannel target) throws IOException {
+    boolean multipart = isMultipart();
+    for (long[] r : ranges) {
+      if (multipart) writeFully(ByteBuffer.wrap(partHeader(r)), target);
+      long position = r[0];
+      long end = r[1] + 1;
+      while (position < end) {
+        long transferred = file.transferTo(position, end - position, target);
+        if (transferred <= 0) { // file truncated since size was determined
+          throw new IOException("File truncated at " + position + " of " + size);
+        }
+        position += transferred;
+      } // next chunk
+    } // next range
+    if (multipart) writeFully(ByteBuffer.wrap(closingDelimiter()), target);
+  } // end of write()
+
+  /** The Content-Range of the given range. */
+  private String contentRange(long[] r) {
+    return "bytes " + r[0] + "-" + r[1] + "/" + size;
+  } // end of contentRange()
+
+  /** The delimiter and headers that precede a part of a multipart response. */
+  private byte[] partHeader(long[] r) {
+    StringBuilder header = new StringBuilder();
+    header.append(CRLF).append("--").append(boundary).append(CRLF);
+    if (fileContentType != null) {
+      header.append("Content-Type: ").append(fileContentType).append(CRLF);
+    }
+    header.append("Content-Range: ").append(contentRange(r)).append(CRLF);
+    header.append(CRLF);
+    return header.toString().getBytes(StandardCharsets.US_ASCII);
+  } // end of partHeader()
+
+  /** The delimiter that ends a multipart response. */
+  private byte[] closingDelimiter() {
+    return (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+  } // end of closingDelimiter()
+
+  /** Writes all of a buffer to a channel. */
+  private static void writeFully(ByteBuffer buffer, WritableByteChannel target)
+    throws IOException {
+    while (buffer.hasRemaining()) target.write(buffer);
+  } // end of writeFully()
+
+} // end of class ByteRanges
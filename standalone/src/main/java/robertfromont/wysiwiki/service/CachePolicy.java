@@ -0,0 +1,269 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.regex.Pattern;
+
+/**
+ * Determines how clients may cache the files that are served: the Cache-Control header for
+ * each URL path, and the validators - ETag and Last-Modified - that allow clients to
+ * revalidate a cached copy with a conditional GET.
+ * <p> Cache-Control is configured as a list of rules, separated by semicolons, of the form
+ * <i>pattern</i>=<i>cache-control</i>, e.g.
+ * <code>*.html=no-cache;wysiwiki/**=max-age=86400;*=max-age=604800</code>
+ * <p> The first rule whose pattern matches is used. Patterns are globs matched against the
+ * URL path without the leading slash; * matches anything except a slash, ** matches
+ * anything, and ? matches any one character. A pattern without a slash is matched against
+ * only the file name, so <code>*.html</code> matches HTML documents in any directory.
+ * <p> ETags are derived from the file's size and modification time, so that a request can
+ * be answered with 304 Not Modified without opening the file. Optionally, the ETag can be
+ * a hash of the file's content instead, which is computed when the file is first served
+ * after each change, and then cached.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class CachePolicy {
+
+  /** The default rules: HTML documents are always revalidated, other files kept a week. */
+  public static final String DEFAULT_RULES = "*.html=no-cache;*=max-age=604800";
+
+  /** The maximum number of content hashes to cache. */
+  static final int HASH_CACHE_SIZE = 10000;
+
+  /** The format of HTTP dates, e.g. for Last-Modified. */
+  static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+  /** Patterns in the order they are checked. */
+  private List<Pattern> patterns = new Vector<Pattern>();
+  /** Whether each pattern is matched only against the file name. */
+  private List<Boolean> fileNameOnly = new Vector<Boolean>();
+  /** The Cache-Control value for each pattern. */
+  private List<String> cacheControls = new Vector<String>();
+
+  /**
+   * Cache-Control rules, separated by semicolons, of the form
+   * <i>pattern</i>=<i>cache-control</i>.
+   * @see #getRules()
+   * @see #setRules(String)
+   */
+  protected String rules;
+  /**
+   * Getter for {@link #rules}: Cache-Control rules, separated by semicolons, of the form
+   * <i>pattern</i>=<i>cache-control</i>.
+   * @return Cache-Control rules.
+   */
+  public String getRules() { return rules; }
+  /**
+   * Setter for {@link #rules}: Cache-Control rules, separated by semicolons, of the form
+   * <i>pattern</i>=<i>cache-control</i>.
+   * @param newRules Cache-Control rules.
+   * @throws IllegalArgumentException If a rule has no "=".
+   */
+  public synchronized CachePolicy setRules(String newRules) {
+    List<Pattern> newPatterns = new Vector<Pattern>();
+    List<Boolean> newFileNameOnly = new Vector<Boolean>();
+    List<String> newCacheControls = new Vector<String>();
+    for (String rule : newRules.split(";")) {
+      if (rule.trim().length() == 0) continue;
+      int equals = rule.indexOf('=');
+      if (equals < 0) {
+        throw new IllegalArgumentException("Invalid Cache-Control rule: " + rule);
+      }
+      String glob = rule.substring(0, equals).trim().replaceAll("^/+", "");
+      newPatterns.add(Pattern.compile(globToRegex(glob)));
+      newFileNameOnly.add(glob.indexOf('/') < 0);
+      newCacheControls.add(rule.substring(equals + 1).trim());
+    } // next rule
+    patterns = newPatterns;
+    fileNameOnly = newFileNameOnly;
+    cacheControls = newCacheControls;
+    rules = newRules;
+    return this;
+  }
+
+  /**
+   * Whether ETags are a hash of the file content, rather than its size and modification
+   * time.
+   * @see #getHashETags()
+   * @see #setHashETags(boolean)
+   */
+  protected boolean hashETags = false;
+  /**
+   * Getter for {@link #hashETags}: Whether ETags are a hash of the file content, rather
+   * than its size and modification time.
+   * @return Whether ETags are a hash of the file content.
+   */
+  public boolean getHashETags() { return hashETags; }
+  /**
+   * Setter for {@link #hashETags}: Whether ETags are a hash of the file content, rather
+   * than its size and modification time.
+   * @param newHashETags Whether ETags are a hash of the file content.
+   */
+  public CachePolicy setHashETags(boolean newHashETags) {
+    hashETags = newHashETags; return this; }
+
+  /** Content hashes, keyed by file path, least recently used first. */
+  @SuppressWarnings("serial")
+  private final Map<Path,String[]> hashCache = Collections.synchronizedMap(
+    new LinkedHashMap<Path,String[]>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Path,String[]> eldest) {
+        return size() > HASH_CACHE_SIZE;
+      }
+    });
+
+  /**
+   * Constructor, which uses {@link #DEFAULT_RULES}.
+   */
+  public CachePolicy() {
+    setRules(DEFAULT_RULES);
+  } // end of constructor
+
+  /**
+   * Determines the Cache-Control header for the given URL path.
+   * @param urlPath The slash-delimited path to the file.
+   * @return The Cache-Control value of the first matching rule, or null if none match.
+   */
+  public synchronized String cacheControl(String urlPath) {
+    String path = urlPath.replaceAll("^/+", "");
+    String fileName = path.substring(path.lastIndexOf('/') + 1);
+    for (int r = 0; r < patterns.size(); r++) {
+      if (patterns.get(r).matcher(fileNameOnly.get(r)? fileName : path).matches()) {
+        return cacheControls.get(r);
+      }
+    } // next rule
+    return null;
+  } // end of cacheControl()
+
+  /**
+   * Determines the ETag of a file.
+   * @param file The file.
+   * @param attributes The file's attributes.
+   * @return A strong entity tag, derived from the size and modification time, or if
+   * {@link #hashETags} is set, from the content.
+   * @throws IOException If the content can't be read.
+   */
+  public String eTag(Path file, BasicFileAttributes attributes) throws IOException {
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    String validator
+      = Long.toHexString(attributes.size()) + "-" + Long.toHexString(lastModified);
+    if (!hashETags) return "\"" + validator + "\"";
+    String[] cached = hashCache.get(file);
+    if (cached != null && cached[0].equals(validator)) return cached[1];
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      InputStream in = Files.newInputStream(file);
+      try {
+        byte[] buffer = new byte[65536];
+        int length = in.read(buffer);
+        while (length >= 0) {
+          sha1.update(buffer, 0, length);
+          length = in.read(buffer);
+        }
+      } finally {
+        in.close();
+      }
+      StringBuilder hash = new StringBuilder("\"");
+      for (byte b : sha1.digest()) hash.append(String.format("%02x", b));
+      String eTag = hash.append("\"").toString();
+      hashCache.put(file, new String[] { validator, eTag });
+      return eTag;
+    } catch(NoSuchAlgorithmException exception) {
+      throw new IOException(exception);
+    }
+  } // end of eTag()
+
+  /**
+   * Determines whether a client's cached copy of a file is current, from the request's
+   * If-None-Match and If-Modified-Since headers. If-Modified-Since is ignored if there is
+   * an If-None-Match header.
+   * @param ifNoneMatch The If-None-Match header, or null.
+   * @param ifModifiedSince The If-Modified-Since header in milliseconds, or -1.
+   * @param eTag The file's current ETag.
+   * @param lastModified The file's modification time in milliseconds.
+   * @return true if the response can be 304 Not Modified, false otherwise.
+   */
+  public static boolean notModified(
+    String ifNoneMatch, long ifModifiedSince, String eTag, long lastModified) {
+    if (ifNoneMatch != null) return ContentManager.etagMatches(ifNoneMatch, eTag);
+    // HTTP dates have a resolution of one second
+    return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+  } // end of notModified()
+
+  /**
+   * Formats a time as an HTTP date, e.g. for Last-Modified.
+   * @param millis The time in milliseconds.
+   * @return e.g. "Tue, 15 Nov 1994 08:12:31 GMT"
+   */
+  public static String formatHttpDate(long millis) {
+    return HTTP_DATE.format(
+      ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+  } // end of formatHttpDate()
+
+  /**
+   * Parses an HTTP date, e.g. from If-Modified-Since.
+   * @param date The date, which may be null.
+   * @return The time in milliseconds, or -1 if the date is missing or invalid.
+   */
+  public static long parseHttpDate(String date) {
+    if (date == null) return -1;
+    try {
+      return ZonedDateTime.parse(date.trim(), HTTP_DATE).toInstant().toEpochMilli();
+    } catch(Exception exception) {
+      return -1;
+    }
+  } // end of parseHttpDate()
+
+  /** Converts a glob pattern to a regular expression. */
+  static String globToRegex(String glob) {
+    StringBuilder regex = new StringBuilder();
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*') {
+        if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+          regex.append(".*");
+          i++;
+        } else {
+          regex.append("[^/]*");
+        }
+      } else if (c == '?') {
+        regex.append("[^/]");
+      } else {
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    } // next character
+    return regex.toString();
+  } // end of globToRegex()
+
+} // end of class CachePolicy
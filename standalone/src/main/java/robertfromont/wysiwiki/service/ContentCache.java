@@ -0,0 +1,256 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * An in-memory cache of the content of small files, limited by the total number of bytes
+ * cached rather than the number of files.
+ * <p> The cache is a segmented LRU: files enter a probationary segment when first read,
+ * and are promoted to a protected segment if they're read again while still cached. Files
+ * that are read only once - e.g. by a crawler working through the whole site - are evicted
+ * from the probationary segment without displacing the frequently read files in the
+ * protected segment, like header.html, style.css, and the most popular pages.
+ * <p> Each cached file is validated against its current size and modification time, so
+ * changes made by other processes are never served from the cache.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ContentCache {
+
+  /** The proportion of the budget used by the protected segment. */
+  static final double PROTECTED_PROPORTION = 0.8;
+
+  /** A cached file. */
+  static class Entry {
+    final byte[] content;
+    final long lastModified;
+    final long size;
+    Entry(byte[] content, long lastModified, long size) {
+      this.content = content;
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+  } // end of class Entry
+
+  /** Files read once, least recently used first. */
+  private final LinkedHashMap<Path,Entry> probationary
+  = new LinkedHashMap<Path,Entry>(16, 0.75f, true);
+
+  /** Files read more than once, least recently used first. */
+  private final LinkedHashMap<Path,Entry> protectedSegment
+  = new LinkedHashMap<Path,Entry>(16, 0.75f, true);
+
+  /** The number of bytes in {@link #probationary}. */
+  private long probationaryBytes = 0;
+
+  /** The number of bytes in {@link #protectedSegment}. */
+  private long protectedBytes = 0;
+
+  /**
+   * The maximum total number of bytes to cache.
+   * @see #getBudget()
+   */
+  protected long budget;
+  /**
+   * Getter for {@link #budget}: The maximum total number of bytes to cache.
+   * @return The maximum total number of bytes to cache.
+   */
+  public long getBudget() { return budget; }
+
+  /**
+   * The largest file to cache, in bytes. Larger files are always read from disk.
+   * @see #getMaxFileSize()
+   * @see #setMaxFileSize(long)
+   */
+  protected long maxFileSize;
+  /**
+   * Getter for {@link #maxFileSize}: The largest file to cache, in bytes.
+   * @return The largest file to cache, in bytes.
+   */
+  public long getMaxFileSize() { return maxFileSize; }
+  /**
+   * Setter for {@link #maxFileSize}: The largest file to cache, in bytes.
+   * @param newMaxFileSize The largest file to cache, in bytes.
+   */
+  public ContentCache setMaxFileSize(long newMaxFileSize) {
+    maxFileSize = newMaxFileSize; return this; }
+
+  /** The number of reads served from the cache. */
+  private long hits = 0;
+  /** The number of reads of cacheable files that weren't in the cache. */
+  private long misses = 0;
+  /** The number of files evicted to make room for others. */
+  private long evictions = 0;
+
+  /**
+   * Constructor.
+   * @param budget The maximum total number of bytes to cache.
+   */
+  public ContentCache(long budget) {
+    this.budget = budget;
+    // by default, no file can take more than a sixteenth of the cache, or 1MB
+    this.maxFileSize = Math.min(budget / 16, 1024 * 1024);
+  } // end of constructor
+
+  /**
+   * Gets the content of a file, reading it into the cache if it's not already there, or
+   * has changed since it was cached.
+   * @param path The absolute, normalized path of the file.
+   * @param attributes The file's current attributes.
+   * @return The content of the file, or null if the file is too big to cache.
+   * @throws IOException If the file can't be read.
+   */
+  public byte[] get(Path path, BasicFileAttributes attributes) throws IOException {
+    if (attributes.size() > maxFileSize) return null;
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    synchronized (this) {
+      Entry entry = probationary.get(path);
+      if (entry != null) {
+        if (entry.lastModified == lastModified && entry.size == attributes.size()) {
+          // read again, so promote it to the protected segment
+          probationary.remove(path);
+          probationaryBytes -= entry.size;
+          protectedSegment.put(path, entry);
+          protectedBytes += entry.size;
+          demote();
+          hits++;
+          return entry.content;
+        }
+      } else {
+        entry = protectedSegment.get(path);
+        if (entry != null
+            && entry.lastModified == lastModified && entry.size == attributes.size()) {
+          hits++;
+          return entry.content;
+        }
+      }
+      misses++;
+    } // synchronized
+
+    // read the file without holding the lock
+    byte[] content = Files.readAllBytes(path);
+    if (content.length == attributes.size()) { // not changed while reading
+      synchronized (this) {
+        invalidate(path);
+        probationary.put(path, new Entry(content, lastModified, content.length));
+        probationaryBytes += content.length;
+        evict();
+      }
+    }
+    return content;
+  } // end of get()
+
+  /**
+   * Removes a file from the cache, e.g. because it has been updated or deleted.
+   * @param path The absolute, normalized path of the file.
+   */
+  public synchronized void invalidate(Path path) {
+    Entry entry = probationary.remove(path);
+    if (entry != null) probationaryBytes -= entry.size;
+    entry = protectedSegment.remove(path);
+    if (entry != null) protectedBytes -= entry.size;
+  } // end of invalidate()
+
+  /** Moves least recently used files from the protected segment while it's too big. */
+  private void demote() {
+    long protectedBudget = (long)(budget * PROTECTED_PROPORTION);
+    Iterator<java.util.Map.Entry<Path,Entry>> lru = protectedSegment.entrySet().iterator();
+    while (protectedBytes > protectedBudget && lru.hasNext()) {
+      java.util.Map.Entry<Path,Entry> demoted = lru.next();
+      lru.remove();
+      protectedBytes -= demoted.getValue().size;
+      probationary.put(demoted.getKey(), demoted.getValue());
+      probationaryBytes += demoted.getValue().size;
+    } // next least recently used
+    evict();
+  } // end of demote()
+
+  /** Evicts least recently used files, probationary first, until the cache fits. */
+  private void evict() {
+    Iterator<java.util.Map.Entry<Path,Entry>> lru = probationary.entrySet().iterator();
+    while (probationaryBytes + protectedBytes > budget && lru.hasNext()) {
+      probationaryBytes -= lru.next().getValue().size;
+      lru.remove();
+      evictions++;
+    } // next least recently used
+    lru = protectedSegment.entrySet().iterator();
+    while (protectedBytes > budget && lru.hasNext()) {
+      protectedBytes -= lru.next().getValue().size;
+      lru.remove();
+      evictions++;
+    } // next least recently used
+  } // end of evict()
+
+  /**
+   * The number of reads served from the cache.
+   * @return The number of hits.
+   */
+  public synchronized long getHits() { return hits; }
+
+  /**
+   * The number of reads of cacheable files that weren't in the cache.
+   * @return The number of misses.
+   */
+  public synchronized long getMisses() { return misses; }
+
+  /**
+   * The number of files evicted to make room for others.
+   * @return The number of evictions.
+   */
+  public synchronized long getEvictions() { return evictions; }
+
+  /**
+   * The proportion of reads of cacheable files that were served from the cache.
+   * @return The hit ratio, between 0 and 1, or 0 if there have been no reads.
+   */
+  public synchronized double getHitRatio() {
+    return hits + misses == 0? 0.0 : (double)hits / (hits + misses);
+  } // end of getHitRatio()
+
+  /**
+   * The number of files cached.
+   * @return The number of files in both segments.
+   */
+  public synchronized int getFileCount() {
+    return probationary.size() + protectedSegment.size();
+  } // end of getFileCount()
+
+  /**
+   * The number of bytes cached.
+   * @return The total size of the files in both segments.
+   */
+  public synchronized long getBytes() {
+    return probationaryBytes + protectedBytes;
+  } // end of getBytes()
+
+  @Override public synchronized String toString() {
+    return getFileCount() + " files, " + getBytes() + " of " + budget + " bytes, "
+      + hits + " hits, " + misses + " misses ("
+      + String.format("%.1f", getHitRatio() * 100) + "% hit ratio), "
+      + evictions + " evictions";
+  } // end of toString()
+
+} // end of class ContentCache
@@ -20,39 +20,57 @@
 package robertfromont.wysiwiki.service;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
-import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.InputStreamReader;
 import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.DateTimeException;
+import java.time.Month;
+import java.time.format.TextStyle;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
-import java.util.regex.*;
-import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
-import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.text.StringEscapeUtils;
 
 /**
  * Manages updates of content and maintenance of indices.
@@ -60,11 +78,13 @@ import org.w3c.dom.NodeList;
  */
 public class ContentManager {  
 
-  DocumentBuilderFactory documentBuilderFactory;
-  TransformerFactory transformerFactory;
-  XPath xpath;
-  Document index;
+  /** The root of the index tree, i.e. the home page. */
+  IndexNode index;
   File indexHtml;
+  /** A binary copy of the index, for fast loading, which is hidden from clients. */
+  Path indexBin;
+  /** Index entries keyed by id. */
+  Map<String,IndexNode> indexItems = new HashMap<String,IndexNode>();
   
   /**
    * Root directory of all content.
@@ -88,6 +108,7 @@ public class ContentManager {
     readForbidden = new Vector<Path>();
     readForbidden.add(root.resolve("WEB-INF"));
     readForbidden.add(root.resolve("META-INF"));
+    readForbidden.add(root.resolve(".wysiwiki"));
     
     // forbidden path prefixes for writing
     writeForbidden = new Vector<Path>(readForbidden);
@@ -137,6 +158,34 @@ public class ContentManager {
       }
     } // next customizable file    
 
+    // remove temporary files left by interrupted writes, without delaying startup
+    final Path recoveryRoot = root;
+    // file timestamps come from a coarser clock than currentTimeMillis, so a file created
+    // just after startup can appear older; allow a margin so live writes are never removed
+    final long startTime = System.currentTimeMillis() - 5000;
+    Thread recovery = new Thread(() -> {
+        try {
+          int removed = AtomicFiles.removeTemporaryFiles(recoveryRoot, startTime);
+          if (removed > 0) {
+            System.out.println("ContentManager: removed " + removed
+                               + " temporary files left by interrupted writes");
+          }
+        } catch(IOException exception) {
+          System.err.println("ContentManager.setRoot: " + exception);
+        }
+    }, "wysiwiki-recovery");
+    recovery.setDaemon(true);
+    recovery.start();
+
+    if (revisionStore != null) revisionStore.shutdown();
+    revisionStore = null;
+    if (keepRevisions) {
+      revisionStore = new RevisionStore(
+        root.resolve(".wysiwiki").resolve("revisions"), REVISION_PRUNE_INTERVAL)
+        .setMaxRevisions(maxRevisions)
+        .setMaxAge(TimeUnit.DAYS.toMillis(maxRevisionAge));
+    }
+
     loadIndex();
     return this;
   }
@@ -148,6 +197,379 @@ public class ContentManager {
     return setRoot(newRoot.toPath());
   }
 
+  /**
+   * How long, in milliseconds, to wait after the last change to the index before writing
+   * index.html. If this is 0, index.html is written immediately after every change.
+   * @see #getIndexWriteDelay()
+   * @see #setIndexWriteDelay(long)
+   */
+  protected long indexWriteDelay = 0;
+  /**
+   * Getter for {@link #indexWriteDelay}: How long, in milliseconds, to wait after the last
+   * change to the index before writing index.html.
+   * @return How long, in milliseconds, to wait after the last change to the index before
+   * writing index.html.
+   */
+  public long getIndexWriteDelay() { return indexWriteDelay; }
+  /**
+   * Setter for {@link #indexWriteDelay}: How long, in milliseconds, to wait after the last
+   * change to the index before writing index.html.
+   * @param newIndexWriteDelay How long, in milliseconds, to wait after the last change to
+   * the index before writing index.html. 0 means index.html is written immediately.
+   */
+  public ContentManager setIndexWriteDelay(long newIndexWriteDelay) {
+    indexWriteDelay = newIndexWriteDelay; return this; }
+
+  /**
+   * The longest time, in milliseconds, that writing index.html can be deferred while
+   * changes keep arriving, if {@link #indexWriteDelay} is set.
+   * @see #getIndexWriteMaxDelay()
+   * @see #setIndexWriteMaxDelay(long)
+   */
+  protected long indexWriteMaxDelay = 5000;
+  /**
+   * Getter for {@link #indexWriteMaxDelay}: The longest time, in milliseconds, that writing
+   * index.html can be deferred while changes keep arriving.
+   * @return The longest time, in milliseconds, that writing index.html can be deferred
+   * while changes keep arriving.
+   */
+  public long getIndexWriteMaxDelay() { return indexWriteMaxDelay; }
+  /**
+   * Setter for {@link #indexWriteMaxDelay}: The longest time, in milliseconds, that writing
+   * index.html can be deferred while changes keep arriving.
+   * @param newIndexWriteMaxDelay The longest time, in milliseconds, that writing index.html
+   * can be deferred while changes keep arriving.
+   */
+  public ContentManager setIndexWriteMaxDelay(long newIndexWriteMaxDelay) {
+    indexWriteMaxDelay = newIndexWriteMaxDelay; return this; }
+
+  /**
+   * How many threads to use when creating the index from scratch. If this is 1, the
+   * directory structure is traversed serially.
+   * @see #getIndexParallelism()
+   * @see #setIndexParallelism(int)
+   */
+  protected int indexParallelism = Runtime.getRuntime().availableProcessors();
+  /**
+   * Getter for {@link #indexParallelism}: How many threads to use when creating the index
+   * from scratch.
+   * @return How many threads to use when creating the index from scratch.
+   */
+  public int getIndexParallelism() { return indexParallelism; }
+  /**
+   * Setter for {@link #indexParallelism}: How many threads to use when creating the index
+   * from scratch.
+   * @param newIndexParallelism How many threads to use when creating the index from
+   * scratch. 1 means the directory structure is traversed serially.
+   */
+  public ContentManager setIndexParallelism(int newIndexParallelism) {
+    indexParallelism = Math.max(1, newIndexParallelism); return this; }
+
+  /**
+   * The maximum number of document titles to cache.
+   * @see #getTitleCacheSize()
+   * @see #setTitleCacheSize(int)
+   */
+  protected int titleCacheSize = 10000;
+  /**
+   * Getter for {@link #titleCacheSize}: The maximum number of document titles to cache.
+   * @return The maximum number of document titles to cache.
+   */
+  public int getTitleCacheSize() { return titleCacheSize; }
+  /**
+   * Setter for {@link #titleCacheSize}: The maximum number of document titles to cache.
+   * @param newTitleCacheSize The maximum number of document titles to cache.
+   */
+  public ContentManager setTitleCacheSize(int newTitleCacheSize) {
+    titleCacheSize = newTitleCacheSize;
+    synchronized (titleCache) { // discard least recently used titles that no longer fit
+      Iterator<Path> paths = titleCache.keySet().iterator();
+      while (titleCache.size() > titleCacheSize && paths.hasNext()) {
+        paths.next();
+        paths.remove();
+      }
+    }
+    return this;
+  }
+  
+  /** Cached document titles, keyed by file path, least recently used first. */
+  @SuppressWarnings("serial")
+  Map<Path,CachedTitle> titleCache = Collections.synchronizedMap(
+    new LinkedHashMap<Path,CachedTitle>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Path,CachedTitle> eldest) {
+        return size() > titleCacheSize;
+      }
+    });
+
+  /**
+   * How long, in milliseconds, the content watcher waits for changes to stop before
+   * re-indexing.
+   * @see #getWatchDebounce()
+   * @see #setWatchDebounce(long)
+   * @see #startWatching()
+   */
+  protected long watchDebounce = 500;
+  /**
+   * Getter for {@link #watchDebounce}: How long, in milliseconds, the content watcher waits
+   * for changes to stop before re-indexing.
+   * @return How long, in milliseconds, the content watcher waits for changes to stop before
+   * re-indexing.
+   */
+  public long getWatchDebounce() { return watchDebounce; }
+  /**
+   * Setter for {@link #watchDebounce}: How long, in milliseconds, the content watcher waits
+   * for changes to stop before re-indexing.
+   * @param newWatchDebounce How long, in milliseconds, the content watcher waits for
+   * changes to stop before re-indexing.
+   */
+  public ContentManager setWatchDebounce(long newWatchDebounce) {
+    watchDebounce = newWatchDebounce; return this; }
+
+  /**
+   * Whether to reconcile the index with the content when an existing index.html is loaded.
+   * @see #getReconcileOnLoad()
+   * @see #setReconcileOnLoad(boolean)
+   * @see #reconcile()
+   */
+  protected boolean reconcileOnLoad = false;
+  /**
+   * Getter for {@link #reconcileOnLoad}: Whether to reconcile the index with the content
+   * when an existing index.html is loaded.
+   * @return Whether to reconcile the index with the content when an existing index.html is
+   * loaded.
+   */
+  public boolean getReconcileOnLoad() { return reconcileOnLoad; }
+  /**
+   * Setter for {@link #reconcileOnLoad}: Whether to reconcile the index with the content
+   * when an existing index.html is loaded. This must be set before {@link #setRoot(Path)}
+   * to take effect at startup.
+   * @param newReconcileOnLoad Whether to reconcile the index with the content when an
+   * existing index.html is loaded.
+   */
+  public ContentManager setReconcileOnLoad(boolean newReconcileOnLoad) {
+    reconcileOnLoad = newReconcileOnLoad; return this; }
+
+  /**
+   * The maximum number of bytes of file content to cache in memory, or 0 to read files
+   * from disk every time.
+   * @see #getContentCacheSize()
+   * @see #setContentCacheSize(long)
+   * @see ContentCache
+   */
+  protected long contentCacheSize = 0;
+  /**
+   * Getter for {@link #contentCacheSize}: The maximum number of bytes of file content to
+   * cache in memory, or 0 to read files from disk every time.
+   * @return The maximum number of bytes of file content to cache in memory.
+   */
+  public long getContentCacheSize() { return contentCacheSize; }
+  /**
+   * Setter for {@link #contentCacheSize}: The maximum number of bytes of file content to
+   * cache in memory, or 0 to read files from disk every time. Changing the size discards
+   * the cache.
+   * @param newContentCacheSize The maximum number of bytes of file content to cache in
+   * memory.
+   */
+  public ContentManager setContentCacheSize(long newContentCacheSize) {
+    contentCacheSize = newContentCacheSize;
+    contentCache = contentCacheSize > 0? new ContentCache(contentCacheSize) : null;
+    return this;
+  }
+
+  /** Cached content of small files, or null if {@link #contentCacheSize} is 0. */
+  volatile ContentCache contentCache;
+  /**
+   * The cache of file content, e.g. for its hit ratio.
+   * @return The cache, or null if {@link #contentCacheSize} is 0.
+   */
+  public ContentCache getContentCache() { return contentCache; }
+
+  /** When files that have been written are flushed to the storage device. */
+  public enum FsyncPolicy {
+    /** Never; the operating system flushes them in its own time. */
+    NONE,
+    /** Before each write is published, so that it survives a crash once it's done. */
+    WRITE,
+    /** Every {@link #fsyncInterval} milliseconds, for all files written since. */
+    BATCH
+  } // end of enum FsyncPolicy
+
+  /**
+   * When files that have been written are flushed to the storage device. Whatever the
+   * policy, a crash can't leave a partially written file, but with
+   * {@link FsyncPolicy#NONE} or {@link FsyncPolicy#BATCH}, the most recent writes may be
+   * lost.
+   * @see #getFsyncPolicy()
+   * @see #setFsyncPolicy(FsyncPolicy)
+   */
+  protected FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+  /**
+   * Getter for {@link #fsyncPolicy}: When files that have been written are flushed to the
+   * storage device.
+   * @return When files that have been written are flushed to the storage device.
+   */
+  public FsyncPolicy getFsyncPolicy() { return fsyncPolicy; }
+  /**
+   * Setter for {@link #fsyncPolicy}: When files that have been written are flushed to the
+   * storage device.
+   * @param newFsyncPolicy When files that have been written are flushed to the storage
+   * device.
+   */
+  public ContentManager setFsyncPolicy(FsyncPolicy newFsyncPolicy) {
+    fsyncPolicy = newFsyncPolicy; return this; }
+
+  /**
+   * How often, in milliseconds, written files are flushed to the storage device, if
+   * {@link #fsyncPolicy} is {@link FsyncPolicy#BATCH}.
+   * @see #getFsyncInterval()
+   * @see #setFsyncInterval(long)
+   */
+  protected long fsyncInterval = 1000;
+  /**
+   * Getter for {@link #fsyncInterval}: How often, in milliseconds, written files are
+   * flushed to the storage device, if {@link #fsyncPolicy} is {@link FsyncPolicy#BATCH}.
+   * @return How often, in milliseconds, written files are flushed.
+   */
+  public long getFsyncInterval() { return fsyncInterval; }
+  /**
+   * Setter for {@link #fsyncInterval}: How often, in milliseconds, written files are
+   * flushed to the storage device, if {@link #fsyncPolicy} is {@link FsyncPolicy#BATCH}.
+   * @param newFsyncInterval How often, in milliseconds, written files are flushed.
+   */
+  public ContentManager setFsyncInterval(long newFsyncInterval) {
+    fsyncInterval = newFsyncInterval; return this; }
+
+  /** Files written but not yet flushed, if {@link #fsyncPolicy} is BATCH. */
+  final Set<Path> unsynced = new LinkedHashSet<Path>();
+
+  /** The scheduled flush of {@link #unsynced}, if any. */
+  ScheduledFuture<?> pendingSync;
+
+  /** How often old revisions are pruned, in milliseconds. */
+  static final long REVISION_PRUNE_INTERVAL = 60 * 60 * 1000;
+
+  /**
+   * Whether to keep previous versions of pages when they're updated or deleted, in
+   * .wysiwiki/revisions. This is off by default, as it uses disk space - up to
+   * {@link #maxRevisions} compressed versions of each page - and a background thread to
+   * prune them. It takes effect when {@link #setRoot(Path)} is called.
+   * @see #getKeepRevisions()
+   * @see #setKeepRevisions(boolean)
+   */
+  protected boolean keepRevisions = false;
+  /**
+   * Getter for {@link #keepRevisions}: Whether to keep previous versions of pages when
+   * they're updated or deleted.
+   * @return Whether to keep previous versions of pages.
+   */
+  public boolean getKeepRevisions() { return keepRevisions; }
+  /**
+   * Setter for {@link #keepRevisions}: Whether to keep previous versions of pages when
+   * they're updated or deleted.
+   * @param newKeepRevisions Whether to keep previous versions of pages.
+   */
+  public ContentManager setKeepRevisions(boolean newKeepRevisions) {
+    keepRevisions = newKeepRevisions; return this; }
+
+  /**
+   * The maximum number of revisions to keep for each page, or 0 for no limit.
+   * @see #getMaxRevisions()
+   * @see #setMaxRevisions(int)
+   */
+  protected int maxRevisions = 100;
+  /**
+   * Getter for {@link #maxRevisions}: The maximum number of revisions to keep for each
+   * page, or 0 for no limit.
+   * @return The maximum number of revisions to keep for each page, or 0 for no limit.
+   */
+  public int getMaxRevisions() { return maxRevisions; }
+  /**
+   * Setter for {@link #maxRevisions}: The maximum number of revisions to keep for each
+   * page, or 0 for no limit.
+   * @param newMaxRevisions The maximum number of revisions to keep for each page, or 0
+   * for no limit.
+   */
+  public ContentManager setMaxRevisions(int newMaxRevisions) {
+    maxRevisions = newMaxRevisions;
+    if (revisionStore != null) revisionStore.setMaxRevisions(maxRevisions);
+    return this;
+  }
+
+  /**
+   * How many days to keep revisions for, or 0 for no limit.
+   * @see #getMaxRevisionAge()
+   * @see #setMaxRevisionAge(int)
+   */
+  protected int maxRevisionAge = 0;
+  /**
+   * Getter for {@link #maxRevisionAge}: How many days to keep revisions for, or 0 for no
+   * limit.
+   * @return How many days to keep revisions for, or 0 for no limit.
+   */
+  public int getMaxRevisionAge() { return maxRevisionAge; }
+  /**
+   * Setter for {@link #maxRevisionAge}: How many days to keep revisions for, or 0 for no
+   * limit.
+   * @param newMaxRevisionAge How many days to keep revisions for, or 0 for no limit.
+   */
+  public ContentManager setMaxRevisionAge(int newMaxRevisionAge) {
+    maxRevisionAge = newMaxRevisionAge;
+    if (revisionStore != null) {
+      revisionStore.setMaxAge(TimeUnit.DAYS.toMillis(maxRevisionAge));
+    }
+    return this;
+  }
+
+  /** Previous versions of pages, or null if {@link #keepRevisions} is false. */
+  RevisionStore revisionStore;
+  /**
+   * Gets the store of previous versions of pages.
+   * @return The revision store, or null if {@link #keepRevisions} is false.
+   */
+  public RevisionStore getRevisionStore() { return revisionStore; }
+
+  /** Names of documents in the root directory that aren't indexed. */
+  static final List<String> UNINDEXED_ROOT_FILES = Arrays.asList(
+    "index.html", "template.html", "header.html", "footer.html");
+  
+  /** Names of directories in the root directory that aren't indexed. */
+  static final List<String> UNINDEXED_ROOT_DIRS = Arrays.asList(
+    "WEB-INF", "META-INF", "wysiwiki", ".wysiwiki");
+  
+  /** Watcher for changes made to the content by other processes, if watching. */
+  ContentWatcher watcher;
+  
+  /** Whether the index has changes that haven't been written to index.html yet. */
+  boolean indexDirty = false;
+  
+  /** When the index became dirty - i.e. the time of the first unwritten change. */
+  long indexDirtySince = 0;
+  
+  /** Scheduler for deferred index.html writes, created when first required. */
+  ScheduledExecutorService indexWriter;
+  
+  /** The next scheduled write of index.html, if any. */
+  ScheduledFuture<?> pendingIndexWrite;
+
+  /** Shutdown hook that ensures deferred index changes are written before exit. */
+  Thread shutdownHook;
+  
+  /**
+   * Single-writer lock for the index. Changes to {@link #index} and {@link #indexItems} are
+   * only made while holding this lock, and become visible to readers when
+   * {@link #publishIndex()} is called.
+   */
+  final ReentrantLock indexLock = new ReentrantLock();
+  
+  /** The latest published version of the index, which readers use without locking. */
+  volatile IndexSnapshot indexSnapshot;
+  
+  /** The version number of the latest published snapshot. */
+  long indexVersion = 0;
+  
+  /** Lock that ensures index.html and index.bin writes don't interleave. */
+  final Object indexFileLock = new Object();
+  
   /** Path prefixes that are forbidden for reading */
   protected List<Path> readForbidden;
   
@@ -158,16 +580,6 @@ public class ContentManager {
    * Default constructor.
    */
   public ContentManager() {
-    documentBuilderFactory = DocumentBuilderFactory.newInstance();
-    transformerFactory = TransformerFactory.newInstance();
-    try {
-      transformerFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-      transformerFactory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
-      transformerFactory.setAttribute(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
-    } catch (Exception x) {
-      System.err.println("ContentManager: " + x);
-    }
-    xpath = XPathFactory.newInstance().newXPath();
   } // end of constructor
   
   /**
@@ -175,205 +587,790 @@ public class ContentManager {
    * @throws Exception
    */
   protected void loadIndex() throws Exception {
-    indexHtml = new File(root.toFile(), "index.html");
-    if (!indexHtml.exists()) { // create index
-      createIndex();
-    }
-    DocumentBuilder xmlParser = documentBuilderFactory.newDocumentBuilder();
-    // the output may contain <META http-equiv="Content-Type" content="text/html; charset=UTF-8">
-    // which we strip out so the parser doesn't panic
-    StringBuilder html = new StringBuilder();
-    BufferedReader htmlReader = new BufferedReader(new FileReader(indexHtml));
-    String line = htmlReader.readLine();
-    String meta = "<META http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">";
-    while (line != null) {
-      if (!line.trim().equals(meta)) {
-        html.append(
-          // annoyingly, the Transformer converts non-ASCII characters like é
-          // into HTML entities like &eacute; which can't be then parsed as plain XML
-          // so we eliminate them before they're parsed
-          org.apache.commons.text.StringEscapeUtils.unescapeHtml4​(
-            line));
-      }
-      line = htmlReader.readLine();
-    } // next line
-    index = xmlParser.parse(new ByteArrayInputStream(html.toString().getBytes()));
+    indexLock.lock();
+    try {
+      long start = System.currentTimeMillis();
+      indexHtml = new File(root.toFile(), "index.html");
+      indexBin = root.resolve(".wysiwiki").resolve("index.bin");
+      if (!indexHtml.exists()) { // create index
+        createIndex();
+        System.out.println(
+          "ContentManager: created index.html with " + indexItems.size() + " items in "
+          + (System.currentTimeMillis() - start) + "ms");
+        return;
+      }
+      indexItems.clear();
+      long length = indexHtml.length();
+      long checksum = BinaryIndex.checksum(indexHtml.toPath());
+      index = BinaryIndex.read(indexBin, length, checksum, indexItems, root, titleCache);
+      if (index != null) {
+        publishIndex();
+        System.out.println(
+          "ContentManager: loaded " + indexBin.getFileName() + " with " + indexItems.size()
+          + " items in " + (System.currentTimeMillis() - start) + "ms");
+        if (reconcileOnLoad) System.out.println("ContentManager: " + reconcile());
+        return;
+      }
+      // missing or stale, so parse index.html instead
+      indexItems.clear();
+      IndexBuilder builder = new IndexBuilder();
+      InputStream stream = new FileInputStream(indexHtml);
+      try {
+        IndexParser.parse(stream, builder);
+      } finally {
+        stream.close();
+      }
+      index = builder.rootItem;
+      if (index == null) { // no entries at all, not even the home page
+        index = new IndexNode("", cachedTitle(new File(root.toFile(), "home.html")), true);
+        indexItems.put("/", index);
+      }
+      writeIndexBin(publishIndex(), length, checksum);
+      System.out.println(
+        "ContentManager: loaded index.html with " + indexItems.size() + " items in "
+        + (System.currentTimeMillis() - start) + "ms");
+      if (reconcileOnLoad) System.out.println("ContentManager: " + reconcile());
+    } finally {
+      indexLock.unlock();
+    }
   } // end of loadIndex()
   
+  /**
+   * Builds the index tree from the content of index.html.
+   * <p> Only the index entries are used - i.e. &lt;summary&gt; and &lt;div&gt; elements with
+   * an id, and the text of their links - so the rest of the markup, and the whitespace that
+   * indents it, is ignored.
+   */
+  class IndexBuilder implements IndexParser.Handler {
+    /** The root entry, once it has been found. */
+    IndexNode rootItem;
+    /** The names of the open elements. */
+    Vector<String> elements = new Vector<String>();
+    /**
+     * The entries corresponding to the open elements, or null for elements that aren't
+     * entries. A directory's &lt;details&gt; element has the same entry as its
+     * &lt;summary&gt;.
+     */
+    Vector<IndexNode> entries = new Vector<IndexNode>();
+    /** The entry whose title is being read, if any. */
+    IndexNode titled;
+    StringBuilder title = new StringBuilder();
+    
+    public void startElement(String name, Map<String,String> attributes) {
+      // the Transformer adds <META http-equiv="Content-Type" content="text/html; charset=UTF-8">
+      // with no end tag, which we ignore
+      if (name.equals("META")) return;
+      IndexNode entry = null;
+      String id = attributes.get("id");
+      if (id != null && id.length() > 0
+          && (name.equals("summary") || name.equals("div"))) {
+        IndexNode directory = directory();
+        String entryName = id.substring(id.lastIndexOf('/') + 1);
+        if (id.equals("/")) {
+          entry = rootItem = new IndexNode("", null, true);
+        } else if (directory != null) {
+          entry = directory.add(new IndexNode(entryName, null, name.equals("summary")));
+        }
+        if (entry != null) {
+          indexItems.put(entry.getId(), entry);
+          if (entry.isDirectory()) { // its entries are in the enclosing <details>
+            int details = elements.lastIndexOf("details");
+            if (details >= 0) entries.set(details, entry);
+          }
+        }
+      } else if (name.equals("a") && !attributes.containsKey("class")
+                 && entries.size() > 0 && entries.lastElement() != null) {
+        // a link to the document of the current entry
+        titled = entries.lastElement();
+        title.setLength(0);
+      }
+      elements.add(name);
+      entries.add(entry);
+    }
+    
+    public void endElement(String name) {
+      if (name.equals("a") && titled != null) {
+        titled.setTitle(title.toString().trim());
+        titled = null;
+      }
+      // find the matching element, in case anything was left unclosed
+      int e = elements.lastIndexOf(name);
+      if (e >= 0) {
+        elements.setSize(e);
+        entries.setSize(e);
+      }
+    }
+    
+    public void text(String text) {
+      if (titled != null) title.append(text);
+    }
+    
+    /**
+     * The directory that new entries belong in.
+     * @return The entry of the innermost open &lt;details&gt; element that has one.
+     */
+    IndexNode directory() {
+      for (int e = elements.size() - 1; e >= 0; e--) {
+        if (entries.get(e) != null && elements.get(e).equals("details")) return entries.get(e);
+      }
+      return null;
+    }
+  } // end of class IndexBuilder
+  
   /**
    * Creates the index.html file by traversing the root directory.
    * @throws Exception
    */
   protected void createIndex() throws Exception {
 
-    // create the document and top node...
-    DocumentBuilder docBuilder = documentBuilderFactory.newDocumentBuilder();
-    index = docBuilder.newDocument();
-
-    // create html preamble
-    Element html = index.createElement("html");
-    index.appendChild(html);
-    Element head = index.createElement("head");
-    html.appendChild(head);
-    Element meta = index.createElement("meta");
-    meta.setAttribute("http-equiv","content-type");
-    meta.setAttribute("content","text/html; charset=UTF-8");
-    meta.setTextContent(" ");
-    head.appendChild(meta);
-    meta = index.createElement("meta");
-    meta.setAttribute("name","viewport");
-    meta.setAttribute("content","width=device-width, initial-scale=1");
-    meta.setTextContent(" ");
-    head.appendChild(meta);
-    Element base = index.createElement("base");
-    base.setAttribute("target", "_top");
-    base.setTextContent(" ");
-    head.appendChild(base);
-    Element title = index.createElement("title");
-    title.setTextContent("Index"); // TODO title of home.hmtl?
-    head.appendChild(title);
-    Element link = index.createElement("link");
-    link.setAttribute("rel","stylesheet");
-    link.setAttribute("href","wysiwiki/wysiwiki.css");
-    link.setAttribute("type","text/css");
-    link.setTextContent(" ");
-    head.appendChild(link);
-    link = index.createElement("link");
-    link.setAttribute("rel","stylesheet");
-    link.setAttribute("href","style.css");
-    link.setAttribute("type","text/css");
-    link.setTextContent(" ");
-    head.appendChild(link);
-    Element script = index.createElement("script");
-    script.setAttribute("src","wysiwiki/index.js");
-    script.setTextContent("");
-    head.appendChild(script);
-    Element body = index.createElement("body");
-    body.setAttribute("class","resource index");
-    html.appendChild(body);
-    
-    // now the index body
-    Element details = index.createElement("details");
-    details.setAttribute("open", "true");
+    // create the root node, i.e. the home page
     File homePage = new File(root.toFile(), "home.html");
-    Element a = index.createElement("a");
-    a.setTextContent(title(homePage));
-    a.setAttribute("href","home.html");
-    Element summary = index.createElement("summary");
-    summary.appendChild(a);
-    summary.setAttribute("id", "/");
-    details.appendChild(summary);
-    body.appendChild(details);
+    index = new IndexNode("", cachedTitle(homePage), true);
+    indexItems.clear();
+    indexItems.put("/", index);
 
     // traverse/index directory structure
-    indexDirectory(details, root.toFile(), root.toFile(), "/");
+    if (indexParallelism <= 1) {
+      indexDirectory(index, root);
+    } else { // list directories and read titles in parallel, then build the tree
+      ForkJoinPool pool = new ForkJoinPool(indexParallelism);
+      try {
+        addIndexEntries(
+          index, pool.invoke(new IndexDirectoryTask(root.toAbsolutePath().normalize(), true)));
+      } finally {
+        pool.shutdown();
+      }
+    }
 
     // write the file
+    publishIndex();
     writeIndex();
     
   } // end of createIndex()
   
   /**
-   * Write the index to index.html
+   * Write the latest published version of the index to index.html
    * @throws Exception
    */
   protected void writeIndex() throws Exception {
-    DOMSource source = new DOMSource(index);
-    PrintWriter indexWriter = new PrintWriter(new FileWriter(indexHtml));
-    indexWriter.println("<!DOCTYPE html>");
-    StreamResult result =  new StreamResult(indexWriter);
-    Transformer xmlTransformer = transformerFactory.newTransformer();
-    xmlTransformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-    xmlTransformer.setOutputProperty(OutputKeys.INDENT, "yes");
-    xmlTransformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-    xmlTransformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-    xmlTransformer.transform(source, result);
-    indexWriter.close();
+    synchronized (indexFileLock) {
+      // always the latest version, so an older version can't overwrite a newer one
+      IndexSnapshot snapshot = getIndexSnapshot();
+      byte[] html = snapshot.getBytes();
+      writeFile(indexHtml.toPath(), new ByteArrayInputStream(html), false);
+      writeIndexBin(snapshot, html.length, BinaryIndex.checksum(html));
+    }
   } // end of writeIndex()
   
   /**
-   * Indexes the given directory, inserting corresponding HTML into the given node.
-   * @param parentDetails
-   * @param dir
-   * @throws Exception
+   * Writes {@link #indexBin} so that the next {@link #loadIndex()} doesn't have to parse
+   * index.html. Failure is not fatal, as index.html will be parsed instead.
+   * @param snapshot The version of the index to write.
+   * @param htmlLength The length of index.html.
+   * @param htmlChecksum The CRC32 checksum of index.html.
+   */
+  protected void writeIndexBin(IndexSnapshot snapshot, long htmlLength, long htmlChecksum) {
+    try {
+      FsyncPolicy policy = fsyncPolicy;
+      BinaryIndex.write(indexBin, snapshot.index, htmlLength, htmlChecksum, root, titleCache,
+                        policy == FsyncPolicy.WRITE);
+      if (policy == FsyncPolicy.BATCH) syncLater(indexBin);
+    } catch(Exception exception) {
+      System.err.println("ContentManager.writeIndexBin: " + exception);
+    }
+  } // end of writeIndexBin()
+  
+  /**
+   * Serializes the given version of the index as HTML.
+   * @param index The root of the index.
+   * @return The contents of index.html, encoded as UTF-8.
+   * @throws Exception
+   */
+  protected byte[] serializeIndex(IndexNode index) throws Exception {
+    return IndexHtmlWriter.toBytes(index);
+  } // end of serializeIndex()
+  
+  /**
+   * Publishes the current state of the index as a new immutable snapshot, so that readers
+   * see the change. This is called by {@link #indexChanged()}.
+   * @return The new snapshot.
+   */
+  protected IndexSnapshot publishIndex() {
+    indexLock.lock();
+    try {
+      indexSnapshot = new IndexSnapshot(this, index.publish(), ++indexVersion);
+      return indexSnapshot;
+    } finally {
+      indexLock.unlock();
+    }
+  } // end of publishIndex()
+  
+  /**
+   * Gets the latest published version of the index, serialized as HTML. This never waits
+   * for changes to the index that are in progress. The serialization is done when first
+   * required, and cached in the snapshot, so that index.html can be served from memory.
+   * @return The current contents of index.html.
+   * @throws Exception
+   */
+  public IndexSnapshot getIndexSnapshot() throws Exception {
+    IndexSnapshot snapshot = indexSnapshot;
+    if (snapshot != null) snapshot.serialize();
+    return snapshot;
+  } // end of getIndexSnapshot()
+  
+  /**
+   * Called after the index has been changed, to ensure the change is written to index.html.
+   * <p> If {@link #indexWriteDelay} is 0, index.html is written immediately. Otherwise the
+   * write is deferred until no changes have been made for {@link #indexWriteDelay}ms, or
+   * until {@link #indexWriteMaxDelay}ms after the first unwritten change, whichever is
+   * sooner, so that a burst of changes results in only one write.
+   * @throws Exception
+   */
+  protected void indexChanged() throws Exception {
+    publishIndex();
+    if (indexWriteDelay <= 0) { // write-through
+      writeIndex();
+      return;
+    }
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (!indexDirty) {
+        indexDirty = true;
+        indexDirtySince = now;
+      }
+      if (pendingIndexWrite != null) pendingIndexWrite.cancel(false);
+      long delay = Math.max(0, Math.min(
+                              indexWriteDelay, indexDirtySince + indexWriteMaxDelay - now));
+      pendingIndexWrite = indexWriter().schedule(() -> {
+          try {
+            flushIndex();
+          } catch(Exception exception) {
+            System.err.println("ContentManager.indexChanged: " + exception);
+            exception.printStackTrace(System.err);
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+  } // end of indexChanged()
+  
+  /**
+   * Writes index.html now if there are any deferred changes to the index.
+   * @throws Exception
+   */
+  public void flushIndex() throws Exception {
+    boolean dirty = false;
+    synchronized (this) {
+      if (pendingIndexWrite != null) {
+        pendingIndexWrite.cancel(false);
+        pendingIndexWrite = null;
+      }
+      dirty = indexDirty;
+      indexDirty = false;
+    }
+    // write outside the lock, so that changes can continue to be scheduled
+    if (dirty) writeIndex();
+  } // end of flushIndex()
+  
+  /**
+   * Gets the scheduler for deferred index.html writes, creating it if necessary.
+   * <p> This also registers a shutdown hook so that deferred changes are written before
+   * the JVM exits.
+   * @return The scheduler for deferred index.html writes.
+   */
+  protected synchronized ScheduledExecutorService indexWriter() {
+    if (indexWriter == null) {
+      indexWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread thread = new Thread(r, "wysiwiki-index-writer");
+          thread.setDaemon(true);
+          return thread;
+        });
+      shutdownHook = new Thread(() -> {
+          try {
+            flushIndex();
+            syncFiles();
+          } catch(Exception exception) {
+            System.err.println("ContentManager shutdown: " + exception);
+          }
+      }, "wysiwiki-index-flush");
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+    return indexWriter;
+  } // end of indexWriter()
+  
+  /**
+   * Releases resources, first writing any deferred changes to index.html.
+   * @throws Exception
+   */
+  public void shutdown() throws Exception {
+    stopWatching();
+    ScheduledExecutorService writer = null;
+    synchronized (this) {
+      if (pendingIndexWrite != null) pendingIndexWrite.cancel(false);
+      synchronized (unsynced) {
+        if (pendingSync != null) pendingSync.cancel(false);
+      }
+      writer = indexWriter;
+      indexWriter = null;
+      if (shutdownHook != null) {
+        try {
+          Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch(IllegalStateException alreadyShuttingDown) {
+        }
+        shutdownHook = null;
+      }
+    }
+    if (writer != null) {
+      // let any write in progress finish, rather than interrupting it
+      writer.shutdown();
+      writer.awaitTermination(30, TimeUnit.SECONDS);
+    }
+    flushIndex();
+    syncFiles();
+    RevisionStore revisions = revisionStore;
+    if (revisions != null) {
+      revisions.shutdown();
+      System.out.println("ContentManager: " + revisions);
+    }
+    ContentCache cache = contentCache;
+    if (cache != null) System.out.println("ContentManager: content cache " + cache);
+  } // end of shutdown()
+  
+  /**
+   * Starts watching the root directory for changes made by other processes - e.g. rsync or
+   * git - so that they're reflected in the index.
+   * @return This manager.
+   * @throws IOException
+   * @see ContentWatcher
+   */
+  public synchronized ContentManager startWatching() throws IOException {
+    if (watcher == null) {
+      watcher = new ContentWatcher(this);
+      watcher.start();
+    }
+    return this;
+  } // end of startWatching()
+  
+  /**
+   * Stops watching the root directory for changes, if {@link #startWatching()} was called.
+   * @return This manager.
+   */
+  public ContentManager stopWatching() {
+    ContentWatcher stopping = null;
+    synchronized (this) {
+      stopping = watcher;
+      watcher = null;
+    }
+    // stop outside the lock, in case the watcher is waiting to re-index
+    if (stopping != null) stopping.stop();
+    return this;
+  } // end of stopWatching()
+  
+  /**
+   * Updates the index for the given paths, which may have been changed by another process,
+   * writing index.html once if anything changed.
+   * @param urlPaths URL paths of documents, or directories followed by ".html".
+   * @return The number of paths whose index entries were updated.
+   * @throws Exception
+   */
+  public int reindex(Iterable<String> urlPaths) throws Exception {
+    int updated = 0;
+    indexLock.lock();
+    try {
+      updated = indexPaths(urlPaths);
+    } finally {
+      indexLock.unlock();
+    }
+    if (updated > 0) indexChanged();
+    return updated;
+  } // end of reindex()
+  
+  /**
+   * Updates the index entries of the given paths, without publishing or writing the index.
+   * The caller must hold {@link #indexLock}, and call {@link #indexChanged()} after
+   * releasing it if anything was updated.
+   * @param urlPaths URL paths of documents, or directories followed by ".html".
+   * @return The number of paths whose index entries were updated.
+   */
+  protected int indexPaths(Iterable<String> urlPaths) {
+    int updated = 0;
+    for (String urlPath : urlPaths) {
+      try {
+        if (indexPath(urlPath)) updated++;
+      } catch(Exception exception) {
+        System.err.println("ContentManager.reindex: " + urlPath + ": " + exception);
+      }
+    } // next path
+    return updated;
+  } // end of indexPaths()
+  
+  /**
+   * Lists the URL paths of everything in the index under the given directory.
+   * @param dirUrlPath The directory's URL path, e.g. "/dir", or "" for the root.
+   * @return URL paths of documents, and of directories followed by ".html", at any depth.
+   */
+  public List<String> indexedUrlPaths(String dirUrlPath) {
+    indexLock.lock();
+    try {
+      String prefix = dirUrlPath + "/";
+      List<String> urlPaths = new Vector<String>();
+      for (String id : indexItems.keySet()) {
+        if (id.startsWith(prefix) && !id.equals("/")) urlPaths.add(id + ".html");
+      } // next id
+      return urlPaths;
+    } finally {
+      indexLock.unlock();
+    }
+  } // end of indexedUrlPaths()
+  
+  /**
+   * Brings the index up to date with the content, which may have been changed while the
+   * index wasn't being maintained - e.g. while the server wasn't running.
+   * <p> The root directory is walked once, reading only file attributes, and entries are
+   * added, retitled, or removed only where the index differs from the content. Document
+   * titles are read only if the document has changed since its title was cached. Unlike
+   * deleting index.html, this preserves the order of existing entries; new entries are
+   * added after them, oldest first.
+   * @return What was changed.
+   * @throws Exception
+   */
+  public ReconcileReport reconcile() throws Exception {
+    ReconcileReport report = new ReconcileReport();
+    indexLock.lock();
+    try {
+      long start = System.currentTimeMillis();
+    
+      // walk the content
+      final Map<String,BasicFileAttributes> documents
+        = new HashMap<String,BasicFileAttributes>(); // keyed by id
+      final Set<String> directories = new HashSet<String>(); // ids
+      final Set<String> directoriesWithDocuments = new HashSet<String>();
+      final Map<String,BasicFileAttributes> directoryAttributes
+        = new HashMap<String,BasicFileAttributes>(); // keyed by id
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+          @Override public FileVisitResult preVisitDirectory(
+            Path dir, BasicFileAttributes attributes) {
+            if (dir.getParent() != null && dir.getParent().equals(root)
+                && UNINDEXED_ROOT_DIRS.contains(dir.getFileName().toString())) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            if (!dir.equals(root)) {
+              directoryAttributes.put(
+                "/" + root.relativize(dir).toString().replace(File.separatorChar, '/'),
+                attributes);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+          @Override public FileVisitResult visitFile(
+            Path file, BasicFileAttributes attributes) {
+            String name = file.getFileName().toString();
+            if (attributes.isRegularFile() && name.endsWith(".html")
+                && !(file.getParent().equals(root) && UNINDEXED_ROOT_FILES.contains(name))) {
+              String id = "/" + root.relativize(file).toString()
+                .replace(File.separatorChar, '/').replaceAll("\\.html$", "");
+              documents.put(id.equals("/home")? "/" : id, attributes);
+              String parentId = id.replaceAll("/[^/]*$","");
+              if (parentId.length() > 0) directoriesWithDocuments.add(parentId);
+              for (; parentId.length() > 0; parentId = parentId.replaceAll("/[^/]*$","")) {
+                if (!directories.add(parentId)) break; // ancestors already added
+              }
+            }
+            return FileVisitResult.CONTINUE;
+          }
+          @Override public FileVisitResult visitFileFailed(
+            Path file, IOException exception) {
+            System.err.println("ContentManager.reconcile: " + file + ": " + exception);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    
+      // compare existing entries with the content
+      List<String> removed = new Vector<String>();
+      List<String> changed = new Vector<String>();
+      for (Map.Entry<String,IndexNode> entry : indexItems.entrySet()) {
+        String id = entry.getKey();
+        IndexNode item = entry.getValue();
+        BasicFileAttributes attributes = documents.get(id);
+        if (attributes == null && !directories.contains(id)) { // gone
+          if (!id.equals("/")) removed.add(id);
+          continue;
+        }
+        if (!item.isDirectory() && directoriesWithDocuments.contains(id)) {
+          changed.add(id); // document has become a directory
+          continue;
+        }
+        if (attributes == null) { // directory without a document
+          if (item.title != null) changed.add(id);
+        } else { // check title
+          Path path = root.resolve(item.getHref()).toAbsolutePath().normalize();
+          if (!cachedTitle(path, attributes).equals(item.title)) changed.add(id);
+        }
+      } // next item
+    
+      // new entries
+      List<String> added = new Vector<String>();
+      for (String id : documents.keySet()) {
+        if (!indexItems.containsKey(id)) added.add(id);
+      }
+      for (String id : directories) {
+        if (!indexItems.containsKey(id) && !documents.containsKey(id)) added.add(id);
+      }
+      // oldest first, as in createIndex() - parents missing from the index are added with
+      // their first child
+      // (using the attributes from the walk, rather than a stat per comparison)
+      added.sort(Comparator.comparingLong((String id) -> {
+            BasicFileAttributes attributes = documents.get(id);
+            if (attributes == null) attributes = directoryAttributes.get(id);
+            return attributes != null? attributes.lastModifiedTime().toMillis() : 0L;
+          }).thenComparing(Comparator.naturalOrder()));
+
+      // update the index
+      for (String id : removed) {
+        indexPath(id + ".html"); // may also remove other entries in the list
+      }
+      for (String id : removed) {
+        if (!indexItems.containsKey(id)) report.removed++;
+      }
+      for (String id : changed) {
+        if (indexPath(id.equals("/")? "/home.html" : id + ".html")) report.changed++;
+      }
+      for (String id : added) {
+        if (!indexItems.containsKey(id)) { // not already added as a parent of another entry
+          // a directory takes its title from the document of the same name, if any
+          indexPath(directories.contains(id)? id : id + ".html");
+        }
+        if (indexItems.containsKey(id)) report.added++;
+      }
+      report.millis = System.currentTimeMillis() - start;
+    } finally {
+      indexLock.unlock();
+    }
+    if (report.getTotal() > 0) indexChanged();
+    return report;
+  } // end of reconcile()
+  
+  /**
+   * Indexes the given directory, and its subdirectories, adding their entries to the given
+   * node.
+   * @param parentDir
+   * @param dir
+   * @throws Exception
+   */
+  protected void indexDirectory(IndexNode parentDir, Path dir) throws Exception {
+    dir = dir.toAbsolutePath().normalize();
+    List<IndexEntry> entries = new IndexDirectoryTask(dir, false).compute();
+    if (entries != null) addIndexEntries(parentDir, entries);
+  } // end of indexDirectory()
+  
+  /**
+   * Determines whether the given directory belongs in the index.
+   * @param dir
+   * @return true if <var>dir</var> is a directory that directly contains .html files.
+   */
+  protected static boolean isIndexableDirectory(Path dir) {
+    if (!Files.isDirectory(dir)) return false;
+    try (DirectoryStream<Path> documents = Files.newDirectoryStream(dir, "*.html")) {
+      return documents.iterator().hasNext();
+    } catch(IOException exception) {
+      return false;
+    }
+  } // end of isIndexableDirectory()
+  
+  /**
+   * Adds a file/directory item to the given node of the index. A directory's own entries
+   * are not added.
+   * @param parentDir
+   * @param child
+   * @throws IOException If <var>child</var> doesn't exist.
+   */
+  protected void addIndexItem(IndexNode parentDir, Path child) throws IOException {
+    Path path = child.toAbsolutePath().normalize();
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    String name = path.getFileName().toString();
+    if (attributes.isRegularFile()) {
+      // is there a directory with the name name?
+      if (isIndexableDirectory(path.resolveSibling(name.replaceAll("\\.html$", "")))) {
+        return; // we'll process this when we process the directory
+      }
+      newDocumentItem(parentDir, name, cachedTitle(path, attributes));
+    } else if (attributes.isDirectory()) { // a directory
+      Path fileWithSameName = path.resolveSibling(name + ".html");
+      String title = null;
+      try {
+        title = cachedTitle(
+          fileWithSameName, Files.readAttributes(fileWithSameName, BasicFileAttributes.class));
+      } catch(NoSuchFileException noDocument) {
+      }
+      newDirectoryItem(parentDir, name, title);
+    } // a directory      
+  } // end of addItem()
+  
+  /**
+   * Adds an index entry for a document to the given directory, registering it in
+   * {@link #indexItems}.
+   * @param parentDir The directory the document is in.
+   * @param fileName The document's file name, e.g. "doc.html"
+   * @param title The document's title.
+   * @return The new entry.
+   */
+  protected IndexNode newDocumentItem(IndexNode parentDir, String fileName, String title) {
+    IndexNode item = parentDir.add(
+      new IndexNode(fileName.replaceAll("\\.html$", ""), title, false));
+    indexItems.put(item.getId(), item);
+    return item;
+  } // end of newDocumentItem()
+  
+  /**
+   * Adds an index entry for a directory to the given directory, registering it in
+   * {@link #indexItems}.
+   * @param parentDir The directory the directory is in.
+   * @param name The name of the directory.
+   * @param title The title of the directory's own document, or null if there is none.
+   * @return The new entry.
+   */
+  protected IndexNode newDirectoryItem(IndexNode parentDir, String name, String title) {
+    IndexNode item = parentDir.add(new IndexNode(name, title, true));
+    indexItems.put(item.getId(), item);
+    return item;
+  } // end of newDirectoryItem()
+  
+  /**
+   * Adds entries found by {@link IndexDirectoryTask} to the given node of the index.
+   * @param parentDir
+   * @param entries
+   */
+  protected void addIndexEntries(IndexNode parentDir, List<IndexEntry> entries) {
+    for (IndexEntry entry : entries) {
+      if (entry.children == null) { // document
+        newDocumentItem(parentDir, entry.name, entry.title);
+      } else { // directory
+        addIndexEntries(
+          newDirectoryItem(parentDir, entry.name, entry.title), entry.children);
+      }
+    } // next entry
+  } // end of addIndexEntries()
+  
+  /** A document or directory to be added to the index. */
+  static class IndexEntry {
+    /** The file or directory name. */
+    String name;
+    /** The document's title, or for a directory, the title of its document, if any. */
+    String title;
+    /** The directory's entries, or null if this is a document. */
+    List<IndexEntry> children;
+    /** The absolute path of the file or directory. */
+    Path path;
+    /** The attributes of the file or directory, read once when it was listed. */
+    BasicFileAttributes attributes;
+    IndexEntry(Path path, BasicFileAttributes attributes) {
+      this.path = path;
+      this.name = path.getFileName().toString();
+      this.attributes = attributes;
+    }
+  }
+  
+  /**
+   * Lists a directory for the index, and its subdirectories, reading document titles.
+   * <p> Each directory is listed once, and the attributes of each of its entries are read
+   * once, and then used for filtering, ordering, and checking the title cache. If
+   * <var>parallel</var> is true, titles are read and subdirectories listed in parallel.
+   * <p> The result is null if the directory contains no .html files, as it doesn't belong
+   * in the index. Otherwise it contains .html files and indexable directories, oldest
+   * first, except that a document with the same name as an indexable directory provides
+   * the directory's title rather than being listed separately.
+   */
+  @SuppressWarnings("serial")
+  class IndexDirectoryTask extends RecursiveTask<List<IndexEntry>> {
+    Path dir;
+    boolean parallel;
+    IndexDirectoryTask(Path dir, boolean parallel) {
+      this.dir = dir;
+      this.parallel = parallel;
+    }
+    @Override protected List<IndexEntry> compute() {
+      boolean isRoot = dir.equals(root.toAbsolutePath().normalize());
+      List<IndexEntry> entries = new Vector<IndexEntry>();
+      Map<String,IndexEntry> documents = new HashMap<String,IndexEntry>(); // keyed by id
+      List<ForkJoinTask<?>> tasks = new Vector<ForkJoinTask<?>>();
+      try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+        for (Path child : children) {
+          String name = child.getFileName().toString();
+          BasicFileAttributes attributes = null;
+          try {
+            attributes = Files.readAttributes(child, BasicFileAttributes.class);
+          } catch(IOException exception) { // deleted since listing
+            continue;
+          }
+          IndexEntry entry = new IndexEntry(child, attributes);
+          if (attributes.isDirectory()) {
+            // don't list the web app directories
+            if (isRoot && UNINDEXED_ROOT_DIRS.contains(name)) continue;
+            IndexDirectoryTask task = new IndexDirectoryTask(child, parallel);
+            tasks.add(ForkJoinTask.adapt(() -> { entry.children = task.invoke(); }));
+          } else if (attributes.isRegularFile() && name.endsWith(".html")) {
+            // don't list the customizable files, index, or home page
+            if (isRoot && (UNINDEXED_ROOT_FILES.contains(name) || name.equals("home.html"))) {
+              continue;
+            }
+            documents.put(name.substring(0, name.length() - ".html".length()), entry);
+            tasks.add(ForkJoinTask.adapt(
+                        () -> { entry.title = cachedTitle(entry.path, entry.attributes); }));
+          } else {
+            continue;
+          }
+          entries.add(entry);
+        } // next child
+      } catch(IOException exception) {
+        System.err.println("ContentManager.IndexDirectoryTask: " + dir + ": " + exception);
+      }
+      if (documents.isEmpty() && !isRoot) return null; // not an indexable directory
+      if (parallel) {
+        invokeAll(tasks);
+      } else {
+        for (ForkJoinTask<?> task : tasks) task.invoke();
+      }
+      
+      // omit directories without documents, and documents of directories
+      Set<String> directoryDocuments = new HashSet<String>();
+      for (IndexEntry entry : entries) {
+        if (entry.children != null && documents.containsKey(entry.name)) {
+          entry.title = documents.get(entry.name).title;
+          directoryDocuments.add(entry.name);
+        }
+      } // next entry
+      entries.removeIf(entry -> entry.attributes.isDirectory()?
+                       entry.children == null
+                       : directoryDocuments.contains(
+                         entry.name.substring(0, entry.name.length() - ".html".length())));
+      
+      // oldest first
+      entries.sort(Comparator.comparingLong(
+                     (IndexEntry entry) -> entry.attributes.lastModifiedTime().toMillis()));
+      return entries;
+    }
+  } // end of class IndexDirectoryTask
+  
+  /**
+   * Registers the given entry, and all its descendants, in {@link #indexItems}.
+   * @param item
    */
-  protected void indexDirectory(Node parentDetails, File dir, File root, String idPrefix)
-    throws Exception {
-    File[] children = dir.listFiles(
-      f -> f.getName().endsWith(".html")
-      || (f.isDirectory() // directory 
-          && f.listFiles(  // with html files
-            ff -> ff.getName().endsWith(".html")).length > 0));
-    Arrays.sort(children, Comparator.comparingLong(File::lastModified));
-    for (File child : children) {
-      if (dir.equals(root)
-          // don't list the customizable files
-          && (child.getName().equals("template.html")
-              || child.getName().equals("header.html")
-              || child.getName().equals("footer.html")
-              // nor the home page
-              || child.getName().equals("home.html")
-              // nor the index
-              || child.getName().equals("index.html")
-              // nor the web app directories
-              || child.getName().equals("WEB-INF")
-              || child.getName().equals("META-INF")
-              || child.getName().equals("wysiwiki"))) continue;
-      addIndexItem(parentDetails, dir, child, idPrefix, root);
+  protected void registerIds(IndexNode item) {
+    indexItems.put(item.getId(), item);
+    for (int c = 0; c < item.childCount; c++) {
+      registerIds(item.children[c]);
     } // next child
-  } // end of indexDirectory()
+  } // end of registerIds()
   
   /**
-   * Adds a file/directory item to the given node of the index.
-   * @param parentDetails
-   * @param dir
-   * @param child
+   * Removes the given entry, and all its descendants, from {@link #indexItems}. This must
+   * be called whenever an entry is removed from the index, before it's removed from its
+   * parent.
+   * @param item
    */
-  protected void addIndexItem(
-    Node parentDetails, File dir, File child, String idPrefix, File root) throws Exception {
-    if (child.isFile()) {
-      // is there a directory with the name name?
-      File dirWithSameName =  new File(dir, child.getName().replaceAll("\\.html$", ""));
-      if (dirWithSameName.exists()) {
-        return; // we'll process this when we process the directory
-      }
-      String url = idPrefix.replaceAll("^/","") + child.getName();
-      String id = "/"+url.replaceAll("\\.html$", "");
-      Element a = index.createElement("a");
-      a.setTextContent(title(child));      
-      a.setAttribute("href", url);
-      Element div = index.createElement("div");
-      div.appendChild(a);
-      div.setAttribute("id", id);
-      parentDetails.appendChild(div);
-    } else if (child.isDirectory()) { // a directory
-      String id = idPrefix + child.getName();
-      Element details = index.createElement("details");
-      File fileWithSameName = new File(dir, child.getName() + ".html");
-      Element summary = index.createElement("summary");
-      summary.setAttribute("id", id);
-      if (fileWithSameName.exists()) { // use file title
-        Element a = index.createElement("a");
-        a.setTextContent(title(fileWithSameName));
-        a.setAttribute("href", idPrefix.replaceAll("^/","") + fileWithSameName.getName());
-        summary.appendChild(a);
-      } else { // no file
-        // show the directory name
-        summary.appendChild(index.createTextNode(child.getName()));
-        // but also include a link that would create the page
-        Element a = index.createElement("a");
-        a.setAttribute("class", "new-page"); // add a class so client can hide this if read-only
-        a.setTextContent("+");
-        a.setAttribute("href", idPrefix.replaceAll("^/","") + fileWithSameName.getName());
-        summary.appendChild(a);
-      }
-      details.appendChild(summary);
-      if (root != null) {
-        indexDirectory(details, child, root, idPrefix + child.getName() + "/");
-      }
-      parentDetails.appendChild(details);
-    } // a directory      
-  } // end of addItem()
+  protected void unregisterIds(IndexNode item) {
+    indexItems.remove(item.getId(), item);
+    for (int c = 0; c < item.childCount; c++) {
+      unregisterIds(item.children[c]);
+    } // next child
+  } // end of unregisterIds()
   
   /**
    * Adds/updates the given path to/in the index.
@@ -381,123 +1378,99 @@ public class ContentManager {
    * @return true if the index was updated, false otherwise
    * @throws Exception
    */
-  protected synchronized boolean indexPath(String urlPath) throws Exception {
-    if (urlPath == null || urlPath.length() == 0) return false;
-    if (urlPath.length() == 0 || urlPath.charAt(0) != '/') urlPath = "/"+urlPath;
-    Path path = root.resolve(urlPath.replaceAll("^/","")).normalize();
-    File child = path.toFile();
-    boolean updated = false;
-    String id = urlPath.replaceAll("\\.html$", "");
-    if (id.equals("/home")) id = "/";
-    Element item = (Element)xpath.evaluate(
-      "//*[@id='"+id+"']", index, XPathConstants.NODE);
-    if (item == null) { // item isn't there yet
-      if (!child.exists()) return false; // no need to index it
-      
-      // add it
-      String parentId = id.replaceAll("/[^/]*$","");
-      if (parentId.length() == 0) { // we've reached root
-        parentId = "/";
-      }
-      Element parentSummary = (Element)xpath.evaluate(
-        "//*[@id='"+parentId+"']", index, XPathConstants.NODE);
-      if (parentSummary == null) {
-        indexPath(parentId);
-        parentSummary = (Element)xpath.evaluate(
-          "//*[@id='"+parentId+"']", index, XPathConstants.NODE);
-      }
-      Element parentDetails = (Element)parentSummary.getParentNode();
-      if (parentSummary.getTagName().equals("div")) { // file entry is becoming a dir entry
-        Element grandparentDetails = parentDetails;
-        Element parentDiv = parentSummary;
-        parentSummary = index.createElement("summary");
-        Element a = (Element)xpath.evaluate("a", parentDiv, XPathConstants.NODE);
-        parentDiv.removeChild(a);
-        parentSummary.appendChild(a);
-        parentDetails = index.createElement("details");
-        parentDetails.appendChild(parentSummary);
-        grandparentDetails.replaceChild(parentDetails, parentDiv);
-        parentSummary.setAttribute("id", parentId);
-      }
-      if (parentId.equals("/")) parentId = "";
-      addIndexItem(parentDetails, child.getParentFile(), child, parentId + "/", null);
-      updated = true;
-    } else { // item is already there
-      // check it's the correct type and title...
+  protected boolean indexPath(String urlPath) throws Exception {
+    indexLock.lock();
+    try {
+      if (urlPath == null || urlPath.length() == 0) return false;
+      if (urlPath.length() == 0 || urlPath.charAt(0) != '/') urlPath = "/"+urlPath;
+      Path path = root.resolve(urlPath.replaceAll("^/","")).normalize();
+      File child = path.toFile();
+      boolean updated = false;
+      String id = urlPath.replaceAll("\\.html$", "");
+      if (id.equals("/home")) id = "/";
+      IndexNode item = indexItems.get(id);
+      if (item == null) { // item isn't there yet
+        if (!child.exists()) return false; // no need to index it
       
-      if (child.getName().endsWith(".html")) {
-        Node parentDetails = item.getParentNode();
-        String tagName = "div"; // should be a <div> tag
-        // unless there's a non-empty directory with the same name
-        File dirWithSameName = new File(
-          child.getParentFile(), child.getName().replaceAll("\\.html$", ""));
-        if (dirWithSameName.exists() && dirWithSameName.isDirectory()
-            && dirWithSameName.listFiles(f -> f.getName().endsWith(".html")).length > 0) {
-          // it should be a <details> tag
-          tagName = "summary";
+        // add it
+        String parentId = id.replaceAll("/[^/]*$","");
+        if (parentId.length() == 0) { // we've reached root
+          parentId = "/";
         }
-        if (!tagName.equals(item.getTagName()) && !id.equals("/")) {
-          // change tag name
-          parentDetails.removeChild(item);
-          if (!child.exists() && tagName.equals("div")) { // both dir and .html file deleted
-            // delete the <details> tag              
-            parentDetails.getParentNode().removeChild(parentDetails);
-          } else {
-            addIndexItem(
-              parentDetails, child.getParentFile(), child, urlPath.replaceAll("[^/]+$",""),
-              root.toFile());
+        IndexNode parentItem = indexItems.get(parentId);
+        if (parentItem == null) {
+          indexPath(parentId);
+          parentItem = indexItems.get(parentId);
+        }
+        // if it's a file entry, it becomes a dir entry
+        parentItem.setDirectory(true);
+        addIndexItem(parentItem, path);
+        updated = true;
+      } else { // item is already there
+        // check it's the correct type and title...
+      
+        if (child.getName().endsWith(".html")) {
+          boolean directory = false; // should be a document
+          // unless there's a non-empty directory with the same name
+          Path dirWithSameName = path.resolveSibling(
+            child.getName().replaceAll("\\.html$", ""));
+          if (isIndexableDirectory(dirWithSameName)) {
+            // it should be a directory
+            directory = true;
           }
-          updated = true;
-        } else {
-          if (child.exists()) {
-            // check title
-            String currentTitle = title(child);
-            Element a = (Element)xpath.evaluate("a", item, XPathConstants.NODE);
-            if (a != null && !currentTitle.equals(a.getTextContent())) {
-              a.setTextContent(currentTitle);
-              // ensure that if it was a new-page link before, it's not now
-              if (a.getAttribute("class") != null) {
-                a.removeAttribute("class");
-                Node precedingText = a.getPreviousSibling();
-                if (precedingText != null) {
-                  item.removeChild(precedingText);
-                }
+          if (directory != item.isDirectory() && !id.equals("/")) {
+            if (!child.exists() && !directory) { // both dir and .html file deleted
+              // remove the directory
+              unregisterIds(item);
+              item.parent.remove(item);
+            } else { // change type, keeping its place in the index
+              for (int c = 0; c < item.childCount; c++) unregisterIds(item.children[c]);
+              item.setDirectory(directory);
+              item.setTitle(child.exists()? cachedTitle(child) : null);
+              if (directory) {
+                indexDirectory(item, dirWithSameName);
               }
-              updated = true;
             }
-          } else { // doesn't exist
-            if (tagName.equals("summary")) { // there's a dir with the same name
-              Element a = (Element)xpath.evaluate("a", item, XPathConstants.NODE);
-              if (a != null && !a.getTextContent().equals("+")) { // the summary is a link
-                // replace link with the name of the directory
-                item.setTextContent(dirWithSameName.getName());
-                a = index.createElement("a");
-                a.setAttribute("class", "new-page"); // add a class so client can hide this if read-only
-                a.setTextContent("+");
-                a.setAttribute("href", urlPath);
-                item.appendChild(a);
+            updated = true;
+          } else {
+            if (child.exists()) {
+              // check title
+              String currentTitle = cachedTitle(child);
+              // if it was a new-page link before, it's not now
+              if (!currentTitle.equals(item.title)) {
+                item.setTitle(currentTitle);
+                updated = true;
+              }
+            } else { // doesn't exist
+              if (directory) { // there's a dir with the same name
+                if (item.title != null) { // the summary is a link
+                  // replace link with the name of the directory, and a new-page link
+                  item.setTitle(null);
+                  updated = true;
+                }
+              } else if (item.parent != null) { // there's no dir with the same name
+                // remove it from the index
+                unregisterIds(item);
+                item.parent.remove(item);
                 updated = true;
               }
-            } else { // there's no dir with the same name
-              // remove it from the index
-              parentDetails.removeChild(item);
-              updated = true;
             }
           }
-        }
-        if (updated) {
-          // parent may also need indexing
-          String parentUrl = urlPath.replaceAll("/[^/]+$",".html");
-          if (!parentUrl.equals(".html")) {
-            indexPath(parentUrl);
+          if (updated) {
+            // parent may also need indexing
+            String parentUrl = urlPath.replaceAll("/[^/]+$",".html");
+            if (!parentUrl.equals(".html")) {
+              indexPath(parentUrl);
+            }
           }
-        }
-      } // .html file
+        } // .html file
+      }
+      return updated;
+    } finally {
+      indexLock.unlock();
     }
-    return updated;
   } // end of indexPath()
   
-  static final Pattern titlePattern = Pattern.compile(".*<title>(.*)</title>.*");
   /**
    * Gets the title of the given document file.
    * @param doc A .html document.
@@ -507,20 +1480,12 @@ public class ContentManager {
   public static String title(File html) {
     if (html.exists() && html.getName().endsWith(".html")) {
       try {
-        BufferedReader reader = new BufferedReader(new FileReader(html));
-        int l = 0;
-        String title = null;
-        String line = reader.readLine();
-        while (line != null && ++l < 10 && title == null) { // read up to ten lines
-          Matcher matcher = titlePattern.matcher(line);
-          if (matcher.find()) {
-            title = matcher.group(1);
-            break;
-          }
-          line = reader.readLine();
-        } // next line
-        if (title != null && title.trim().length() > 0) {
-          return title;
+        InputStream stream = new FileInputStream(html);
+        try {
+          String title = TitleScanner.title(stream);
+          if (title != null) return title;
+        } finally {
+          stream.close();
         }
       } catch(Exception exception) {
         //log("Doc.title("+html.getPath()+"): " + exception.toString());
@@ -528,16 +1493,121 @@ public class ContentManager {
     } // file exists and is .html
     return html.getName().replaceAll("\\.html$", "");
   } // end of title()
+  
+  /**
+   * Gets the title of the given document file, using {@link #titleCache} if the file hasn't
+   * changed since its title was cached.
+   * @param html A .html document.
+   * @return The title of the document, as returned by {@link #title(File)}.
+   */
+  protected String cachedTitle(File html) {
+    Path path = html.toPath().toAbsolutePath().normalize();
+    BasicFileAttributes attributes = null;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch(IOException exception) { // doesn't exist
+      titleCache.remove(path);
+      return title(html);
+    }
+    return cachedTitle(path, attributes);
+  } // end of cachedTitle()
+  
+  /**
+   * Gets the title of the given document file, using {@link #titleCache} if the file hasn't
+   * changed since its title was cached.
+   * @param path The absolute, normalized path of a .html document.
+   * @param attributes The document's current attributes.
+   * @return The title of the document, as returned by {@link #title(File)}.
+   */
+  protected String cachedTitle(Path path, BasicFileAttributes attributes) {
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    CachedTitle cached = titleCache.get(path);
+    if (cached != null && cached.lastModified == lastModified
+        && cached.size == attributes.size()) {
+      return cached.title;
+    }
+    String title = title(path.toFile());
+    titleCache.put(path, new CachedTitle(title, lastModified, attributes.size()));
+    return title;
+  } // end of cachedTitle()
+  
+  /**
+   * Caches the title of a document that has just been written.
+   * @param path The document file.
+   * @param head The start of the content that was written. As this captures the first
+   * {@link TitleScanner#LIMIT} bytes, which is all that {@link #title(File)} would scan, the
+   * title it contains is the same as reading it back from the file.
+   * @param attributes The attributes of the file as written, from
+   * {@link #writeFile(Path,InputStream,boolean)}, rather than as they are now, as the file
+   * may already have been replaced by another write.
+   */
+  protected void cacheTitle(Path path, HeadCapture head, BasicFileAttributes attributes) {
+    path = path.toAbsolutePath().normalize();
+    try {
+      String title = TitleScanner.title(new ByteArrayInputStream(head.getHead()));
+      if (title == null) {
+        title = path.getFileName().toString().replaceAll("\\.html$", "");
+      }
+      titleCache.put(path, new CachedTitle(
+                       title, attributes.lastModifiedTime().toMillis(), attributes.size()));
+    } catch(IOException exception) {
+      titleCache.remove(path);
+    }
+  } // end of cacheTitle()
+  
+  /** A document title, with the file attributes it was read with. */
+  static class CachedTitle {
+    final String title;
+    final long lastModified;
+    final long size;
+    CachedTitle(String title, long lastModified, long size) {
+      this.title = title;
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+  } // end of class CachedTitle
+  
+  /**
+   * Passes through an input stream, keeping a copy of the first few kilobytes, so that the
+   * title of a document can be determined without reading it back from disk.
+   */
+  static class HeadCapture extends FilterInputStream {
+    private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+    private final int capacity;
+    HeadCapture(InputStream in, int capacity) {
+      super(in);
+      this.capacity = capacity;
+    }
+    @Override public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0 && head.size() < capacity) head.write(b);
+      return b;
+    }
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      int count = super.read(b, off, len);
+      if (count > 0) capture(b, off, count);
+      return count;
+    }
+    private void capture(byte[] b, int off, int len) {
+      int room = capacity - head.size();
+      if (room > 0) head.write(b, off, Math.min(room, len));
+    }
+    /** The captured bytes. */
+    byte[] getHead() { return head.toByteArray(); }
+  } // end of class HeadCapture
 
   
+  /** The URL path of a blog post: parent, year, month, and document name. */
+  static final Pattern POST_PATH
+    = Pattern.compile("^(.*)/(\\d{4})/(\\d{2})/[^/]+\\.html$");
+  
   /**
-   * Creates a file.
+   * Resolves the path of a file that may be written.
    * @param urlPath The slash-delimited path to the file.
-   * @param content
-   * @return The file created.
-   * @throws IOException
+   * @return The file's path.
+   * @throws IOException If the path is outside the root, or writing to it is forbidden.
    */
-  public Path create(String urlPath, InputStream content) throws IOException {
+  protected Path writablePath(String urlPath) throws IOException {
     Path relativePath = root.getFileSystem().getPath(".", urlPath.split("/"));
     Path path = root.resolve(relativePath).normalize();
     if (!path.startsWith(root)) {
@@ -551,15 +1621,31 @@ public class ContentManager {
         throw new IOException("Forbidden path: " + urlPath);
       }
     } // next forbidden path
+    return path;
+  } // end of writablePath()
+  
+  /**
+   * Creates a file.
+   * @param urlPath The slash-delimited path to the file.
+   * @param content
+   * @return The file created.
+   * @throws IOException
+   */
+  public Path create(String urlPath, InputStream content) throws IOException {
+    Path path = writablePath(urlPath);
     Files.createDirectories(path.getParent());
-    Files.createFile(path);
-    Files.copy(content, path, StandardCopyOption.REPLACE_EXISTING);
+    // fail before reading the content if possible
+    if (Files.exists(path)) throw new FileAlreadyExistsException(path.toString());
+    HeadCapture head = new HeadCapture(content, TitleScanner.LIMIT);
+    BasicFileAttributes attributes = writeFile(path, head, true);
+    uncacheContent(path);
     
     if (urlPath.endsWith(".html")) {
+      cacheTitle(path, head, attributes);
       try {
         if (indexPath(urlPath)) {
           // write the file
-          writeIndex();
+          indexChanged();
         }
       } catch(Exception exception) {
         System.err.println("ContentManager.create: " + exception);
@@ -570,6 +1656,104 @@ public class ContentManager {
     return path;
   } // end of create()
   
+  /**
+   * Creates a blog post, whose path is of the form parent/yyyy/mm/name.html, along with the
+   * year and month pages if they don't already exist. The pages are created from
+   * template.html while holding the index lock, so concurrent posts can't race to create the
+   * same year or month page, and the index is updated and written once for all of them.
+   * @param urlPath The slash-delimited path of the post.
+   * @param title The post's title, optionally followed by a tab and a subtitle.
+   * @return The post created.
+   * @throws FileAlreadyExistsException If the post already exists.
+   * @throws IllegalArgumentException If the path is not of the form above.
+   * @throws IOException
+   */
+  public Path createPost(String urlPath, String title) throws IOException {
+    Matcher post = POST_PATH.matcher(urlPath);
+    if (!post.matches()) {
+      throw new IllegalArgumentException("Not a post path: " + urlPath);
+    }
+    String parent = post.group(1);
+    String year = post.group(2);
+    String month = post.group(3);
+    String monthName = null;
+    try {
+      monthName = Month.of(Integer.parseInt(month))
+        .getDisplayName(TextStyle.SHORT, Locale.ENGLISH);
+    } catch(DateTimeException exception) {
+      throw new IllegalArgumentException("Not a post path: " + urlPath);
+    }
+    String[] titles = title.split("\t", 2);
+    String article = "<h2>" + StringEscapeUtils.escapeHtml4(titles[0]) + "</h2>"
+      + (titles.length > 1? "<h3>" + StringEscapeUtils.escapeHtml4(titles[1]) + "</h3>" : "")
+      + "<p></p>";
+    
+    Path path = writablePath(urlPath);
+    int updated = 0;
+    indexLock.lock();
+    try {
+      if (Files.exists(path)) throw new FileAlreadyExistsException(urlPath);
+      List<String> created = new Vector<String>();
+      String yearUrlPath = parent + "/" + year + ".html";
+      if (createPage(yearUrlPath, year, "<h2>" + year + "</h2>")) {
+        created.add(yearUrlPath);
+      }
+      String monthUrlPath = parent + "/" + year + "/" + month + ".html";
+      if (createPage(monthUrlPath, monthName, "<h2>" + monthName + "</h2>")) {
+        created.add(monthUrlPath);
+      }
+      if (!createPage(urlPath, titles[0], article)) {
+        throw new FileAlreadyExistsException(urlPath);
+      }
+      created.add(urlPath);
+      updated = indexPaths(created);
+    } finally {
+      indexLock.unlock();
+    }
+    if (updated > 0) {
+      try {
+        indexChanged();
+      } catch(Exception exception) {
+        System.err.println("ContentManager.createPost: " + exception);
+        exception.printStackTrace(System.err);
+      }
+    }
+    return path;
+  } // end of createPost()
+  
+  /**
+   * Creates a page from template.html, if it doesn't already exist. The index is not updated.
+   * @param urlPath The slash-delimited path to the page.
+   * @param title The page title.
+   * @param article The HTML content of the page's &lt;article&gt;.
+   * @return true if the page was created, false if it already existed.
+   * @throws IOException
+   */
+  protected boolean createPage(String urlPath, String title, String article)
+    throws IOException {
+    Path path = writablePath(urlPath);
+    if (Files.exists(path)) return false;
+    // for each slash in the path, we need to add "../" to the base href
+    String href = "";
+    int slashCount = urlPath.substring(1).split("/").length - 1;
+    for (int level = 0; level < slashCount; level++) href += "../";
+    String html = new String(
+      Files.readAllBytes(root.resolve("template.html")), StandardCharsets.UTF_8)
+      .replaceFirst("<title>[^<]*</title>", Matcher.quoteReplacement(
+                      "<title>" + StringEscapeUtils.escapeHtml4(title) + "</title>"))
+      .replaceFirst("<article>.*</article>", Matcher.quoteReplacement(
+                      "<article>" + article + "</article>"))
+      .replaceFirst("<base href=\"\\./\">", "<base href=\"" + href + "\">");
+    Files.createDirectories(path.getParent());
+    try {
+      writeFile(
+        path, new ByteArrayInputStream(html.getBytes(StandardCharsets.UTF_8)), true);
+    } catch(FileAlreadyExistsException exception) { // created in the meantime
+      return false;
+    }
+    return true;
+  } // end of createPage()
+  
   /**
    * Reads the content of a file.
    * @param urlPath The slash-delimited path to the file.
@@ -577,6 +1761,278 @@ public class ContentManager {
    * @throws IOException
    */
   public InputStream read(String urlPath) throws IOException {
+    Path path = null;
+    try {
+      path = readablePath(urlPath);
+    } catch(NoSuchFileException exception) {
+      throw new FileNotFoundException(urlPath);
+    }
+    if (contentCache != null) {
+      try {
+        byte[] content = cachedContent(
+          path, Files.readAttributes(path, BasicFileAttributes.class));
+        if (content != null) return new ByteArrayInputStream(content);
+      } catch(NoSuchFileException exception) {
+        throw new FileNotFoundException(urlPath);
+      }
+    }
+    return new FileInputStream(path.toFile());
+  } // end of read()
+  
+  /**
+   * Gets the content of a file from the content cache, so that it can be served from
+   * memory.
+   * @param path The file's path, as returned by {@link #readablePath(String)}.
+   * @param attributes The file's current attributes.
+   * @return The content of the file, or null if there's no content cache, the file is too
+   * big to cache, or it's not a regular file.
+   * @throws IOException If the file can't be read.
+   */
+  public byte[] cachedContent(Path path, BasicFileAttributes attributes)
+    throws IOException {
+    ContentCache cache = contentCache;
+    if (cache == null || !attributes.isRegularFile()) return null;
+    return cache.get(path.toAbsolutePath().normalize(), attributes);
+  } // end of cachedContent()
+  
+  /**
+   * Writes a file atomically, so that readers never see it partially written, and a crash
+   * can't corrupt it. The file is flushed to the storage device according to
+   * {@link #fsyncPolicy}.
+   * @param path The file to write.
+   * @param content The content to write.
+   * @param createNew true if the file must not already exist, false if it may be
+   * replaced.
+   * @return The attributes of the file as written.
+   * @throws FileAlreadyExistsException If <var>createNew</var> is true and the file
+   * exists.
+   * @throws IOException If the file can't be written.
+   * @see AtomicFiles
+   */
+  protected BasicFileAttributes writeFile(Path path, InputStream content, boolean createNew)
+    throws IOException {
+    FsyncPolicy policy = fsyncPolicy;
+    BasicFileAttributes attributes = AtomicFiles.write(
+      path, content, createNew, policy == FsyncPolicy.WRITE);
+    if (policy == FsyncPolicy.BATCH) syncLater(path);
+    return attributes;
+  } // end of writeFile()
+  
+  /**
+   * Creates a new file atomically, e.g. for an upload, under the given name if it's free,
+   * or otherwise with "-1", "-2", etc. added to the name before its extension. The file is
+   * flushed to the storage device according to {@link #fsyncPolicy}.
+   * @param path The file to create.
+   * @param content The content to write.
+   * @return The file created.
+   * @throws IOException If the file can't be written.
+   */
+  public Path createUnique(Path path, InputStream content) throws IOException {
+    FsyncPolicy policy = fsyncPolicy;
+    Files.createDirectories(path.getParent());
+    // the content can only be read once, so write it before choosing the name
+    Path temporary = AtomicFiles.writeTemporary(
+      path, content, policy == FsyncPolicy.WRITE);
+    try {
+      String fileName = path.getFileName().toString();
+      String name = fileName.replaceAll("\\.[^.]*$","");
+      String ext = fileName.replaceAll(".*\\.([^.]*)$","$1");
+      Path candidate = path;
+      int i = 0;
+      while (true) {
+        try {
+          AtomicFiles.move(temporary, candidate, true);
+          break;
+        } catch(FileAlreadyExistsException exception) {
+          candidate = path.resolveSibling(name + "-" + (++i) + "." + ext);
+        }
+      } // next candidate name
+      if (policy == FsyncPolicy.WRITE) AtomicFiles.syncDirectory(candidate.getParent());
+      if (policy == FsyncPolicy.BATCH) syncLater(candidate);
+      uncacheContent(candidate);
+      return candidate;
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  } // end of createUnique()
+  
+  /**
+   * Adds a file to those to be flushed to the storage device in the next batch, if
+   * {@link #fsyncPolicy} is {@link FsyncPolicy#BATCH}.
+   * @param path The file written.
+   */
+  protected void syncLater(Path path) {
+    ScheduledExecutorService scheduler = indexWriter(); // before locking unsynced
+    synchronized (unsynced) {
+      unsynced.add(path);
+      if (pendingSync == null) {
+        pendingSync = scheduler.schedule(
+          () -> syncFiles(), fsyncInterval, TimeUnit.MILLISECONDS);
+      }
+    }
+  } // end of syncLater()
+  
+  /**
+   * Flushes files written since the last flush to the storage device, along with the
+   * directories they're in, if {@link #fsyncPolicy} is {@link FsyncPolicy#BATCH}.
+   */
+  public void syncFiles() {
+    Vector<Path> files = null;
+    synchronized (unsynced) {
+      if (pendingSync != null) pendingSync.cancel(false);
+      pendingSync = null;
+      files = new Vector<Path>(unsynced);
+      unsynced.clear();
+    }
+    LinkedHashSet<Path> dirs = new LinkedHashSet<Path>();
+    for (Path file : files) {
+      try {
+        AtomicFiles.sync(file);
+        dirs.add(file.getParent());
+      } catch(NoSuchFileException deleted) {
+      } catch(IOException exception) {
+        System.err.println("ContentManager.syncFiles: " + file + ": " + exception);
+      }
+    } // next file
+    for (Path dir : dirs) AtomicFiles.syncDirectory(dir);
+  } // end of syncFiles()
+  
+  /**
+   * Keeps the current version of a page as a revision, before it's replaced or deleted.
+   * Failing to do so doesn't prevent the change, so errors are only logged.
+   * @param path The page's file, which may not exist.
+   * @param event What's about to replace the page: "update", "delete", or "import".
+   */
+  protected void keepRevision(Path path, String event) {
+    RevisionStore store = revisionStore;
+    if (store == null || !path.getFileName().toString().endsWith(".html")) return;
+    try {
+      store.keep(pagePath(path), path, event);
+    } catch(NoSuchFileException newPage) {
+    } catch(IOException exception) {
+      System.err.println("ContentManager.keepRevision: " + path + ": " + exception);
+    }
+  } // end of keepRevision()
+  
+  /**
+   * Lists the previous versions of a page, which may have been deleted.
+   * @param urlPath The slash-delimited path to the page.
+   * @return The page's revisions, most recent first, or an empty list if there are none.
+   * @throws IOException If the path is outside the root, or reading it is forbidden.
+   */
+  public List<RevisionStore.Revision> revisions(String urlPath) throws IOException {
+    Path path = readablePath(urlPath);
+    RevisionStore store = revisionStore;
+    if (store == null) return new Vector<RevisionStore.Revision>();
+    return store.list(pagePath(path));
+  } // end of revisions()
+  
+  /**
+   * Reads a previous version of a page.
+   * @param urlPath The slash-delimited path to the page.
+   * @param id The ID of the revision, from {@link #revisions(String)}.
+   * @return The content of the revision.
+   * @throws FileNotFoundException If the page has no such revision.
+   * @throws IOException If the path is outside the root, or reading it is forbidden.
+   */
+  public InputStream readRevision(String urlPath, String id) throws IOException {
+    Path path = readablePath(urlPath);
+    RevisionStore store = revisionStore;
+    if (store == null) throw new FileNotFoundException("Revisions are not kept");
+    return store.open(pagePath(path), id);
+  } // end of readRevision()
+  
+  /** The slash-delimited path of a file relative to the root, without a leading slash. */
+  private String pagePath(Path path) {
+    StringBuilder page = new StringBuilder();
+    for (Path name : root.relativize(path.normalize())) {
+      if (page.length() > 0) page.append("/");
+      page.append(name);
+    } // next name
+    return page.toString();
+  } // end of pagePath()
+  
+  /** The deepest directory level for which new page templates are cached. */
+  static final int MAX_TEMPLATE_DEPTH = 32;
+  
+  /** Templates for new pages, indexed by directory depth, or null if not yet created. */
+  byte[][] newPageTemplates = new byte[MAX_TEMPLATE_DEPTH][];
+  
+  /** The modification time of the template.html that {@link #newPageTemplates} are from. */
+  long templateLastModified = -1;
+  
+  /** The size of the template.html that {@link #newPageTemplates} are from. */
+  long templateSize = -1;
+  
+  /**
+   * Gets the template for creating a new document at the given path, i.e. template.html
+   * with its &lt;base&gt; tag's href adjusted to the document's depth. Templates are cached
+   * for each depth, until template.html changes.
+   * @param urlPath The slash-delimited path to the new document.
+   * @return The template content.
+   * @throws IOException If template.html can't be read.
+   */
+  public byte[] newPageTemplate(String urlPath) throws IOException {
+    // for each slash in the path, we need to add "../" to the base href
+    int depth = urlPath.substring(1).split("/").length - 1;
+    Path template = readablePath("/template.html");
+    BasicFileAttributes attributes = Files.readAttributes(template, BasicFileAttributes.class);
+    synchronized (newPageTemplates) {
+      if (attributes.lastModifiedTime().toMillis() != templateLastModified
+          || attributes.size() != templateSize) { // template.html has changed
+        Arrays.fill(newPageTemplates, null);
+        templateLastModified = attributes.lastModifiedTime().toMillis();
+        templateSize = attributes.size();
+      }
+      byte[] bytes = depth < MAX_TEMPLATE_DEPTH? newPageTemplates[depth] : null;
+      if (bytes == null) {
+        bytes = Files.readAllBytes(template);
+        if (depth > 0) { // not a top-level document, so edit the <base> tag
+          String href = "";
+          for (int level = 0; level < depth; level++) href += "../";
+          String baseTag = "<base href=\""+href+"\">";
+          StringBuilder html = new StringBuilder();
+          BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+          String line = reader.readLine();
+          while(line != null) {
+            html.append(line.replaceAll("<base href=\"\\./\">", baseTag));
+            html.append("\n");
+            line = reader.readLine();
+          } // next line
+          bytes = html.toString().getBytes(StandardCharsets.UTF_8);
+        } // else top level document, so just copy through the template as-is
+        if (depth < MAX_TEMPLATE_DEPTH) newPageTemplates[depth] = bytes;
+      }
+      return bytes;
+    }
+  } // end of newPageTemplate()
+  
+  /**
+   * Removes a file that has been written or deleted from the content cache, and the new
+   * page templates if it's template.html.
+   * @param path The file's path.
+   */
+  protected void uncacheContent(Path path) {
+    ContentCache cache = contentCache;
+    if (cache != null) cache.invalidate(path.toAbsolutePath().normalize());
+    if (path.toAbsolutePath().normalize().equals(
+          root.resolve("template.html").toAbsolutePath().normalize())) {
+      synchronized (newPageTemplates) { // even if the modification time looks the same
+        templateLastModified = -1;
+      }
+    }
+  } // end of uncacheContent()
+  
+  /**
+   * Resolves the path of a file that may be read, so that it can be served without going
+   * through {@link #read(String)}. The file may not exist.
+   * @param urlPath The slash-delimited path to the file.
+   * @return The file's path.
+   * @throws NoSuchFileException If the path is the temporary file of a write in progress.
+   * @throws IOException If the path is outside the root, or reading it is forbidden.
+   */
+  public Path readablePath(String urlPath) throws IOException {
     Path relativePath = root.getFileSystem().getPath(".", urlPath.split("/"));
     Path path = root.resolve(relativePath).normalize();
     if (!path.startsWith(root)) {
@@ -590,8 +2046,13 @@ public class ContentManager {
         throw new IOException("Forbidden path: " + urlPath);
       }
     } // next forbidden path
-    return new FileInputStream(path.toFile());
-  } // end of read()
+    if (path.getFileName() != null
+        && path.getFileName().toString().endsWith(AtomicFiles.TEMPORARY_SUFFIX)) {
+      // a write in progress, which is never served
+      throw new NoSuchFileException(urlPath);
+    }
+    return path;
+  } // end of readablePath()
   
   /**
    * Updates a file.
@@ -601,26 +2062,18 @@ public class ContentManager {
    * @throws IOException
    */
   public Path update(String urlPath, InputStream content) throws IOException {
-    Path relativePath = root.getFileSystem().getPath(".", urlPath.split("/"));
-    Path path = root.resolve(relativePath).normalize();
-    if (!path.startsWith(root)) {
-      // can only access under root
-      throw new IOException("Cannot access files outside root.");
-    }
-    // check it's not forbidden
-    for (Path forbidden : writeForbidden) {
-      if (path.startsWith(forbidden)) {
-        // can only access under root
-        throw new IOException("Forbidden path: " + urlPath);
-      }
-    } // next forbidden path
-    Files.copy(content, path, StandardCopyOption.REPLACE_EXISTING);
+    Path path = writablePath(urlPath);
+    keepRevision(path, "update");
+    HeadCapture head = new HeadCapture(content, TitleScanner.LIMIT);
+    BasicFileAttributes attributes = writeFile(path, head, false);
+    uncacheContent(path);
     
     if (urlPath.endsWith(".html")) {
+      cacheTitle(path, head, attributes);
       try {
         if (indexPath(urlPath)) {
           // write the file
-          writeIndex();
+          indexChanged();
         }
       } catch(Exception exception) {
         System.err.println("ContentManager.create: " + exception);
@@ -631,6 +2084,57 @@ public class ContentManager {
     return path;
   } // end of update()
   
+  /**
+   * Creates or updates all the files in a zip archive, whose entry names are the files' paths
+   * relative to the root. The archive is read as it arrives, and files are written one at a
+   * time, so the archive is never held in memory. Once all the files are written, the
+   * index is updated for all the documents in one batch, so index.html is written only once.
+   * <p> Files that can't be written are reported, and don't prevent the rest from being
+   * imported.
+   * @param archive The zip archive.
+   * @return What was imported.
+   * @throws IOException If the archive can't be read.
+   */
+  public ImportReport importArchive(InputStream archive) throws IOException {
+    long start = System.currentTimeMillis();
+    ImportReport report = new ImportReport();
+    Vector<String> documents = new Vector<String>();
+    ZipInputStream zip = new ZipInputStream(archive);
+    ZipEntry entry = zip.getNextEntry();
+    while (entry != null) {
+      if (!entry.isDirectory()) {
+        String urlPath = "/" + entry.getName().replaceAll("^/+", "");
+        try {
+          Path path = writablePath(urlPath);
+          boolean exists = Files.exists(path);
+          if (exists) keepRevision(path, "import");
+          Files.createDirectories(path.getParent());
+          HeadCapture head = new HeadCapture(zip, TitleScanner.LIMIT);
+          BasicFileAttributes attributes = writeFile(path, head, false);
+          uncacheContent(path);
+          if (urlPath.endsWith(".html")) {
+            cacheTitle(path, head, attributes);
+            documents.add(urlPath);
+          }
+          report.results.put(urlPath, exists? ImportReport.UPDATED : ImportReport.CREATED);
+        } catch(IOException exception) {
+          report.results.put(urlPath, exception.toString());
+        }
+      } // not a directory
+      entry = zip.getNextEntry();
+    } // next entry
+    
+    // index all the documents at once
+    try {
+      report.indexed = reindex(documents);
+    } catch(Exception exception) {
+      System.err.println("ContentManager.importArchive: " + exception);
+      exception.printStackTrace(System.err);
+    }
+    report.millis = System.currentTimeMillis() - start;
+    return report;
+  } // end of importArchive()
+  
   /**
    * Moves the given document in the index.
    * @param urlPath The slash-delimited path to the file, or its ID.
@@ -640,50 +2144,36 @@ public class ContentManager {
    * @throws IOException
    */
   public boolean move(String urlPath, String where) {
+    boolean moved = false;
+    indexLock.lock();
     try {
       String id = urlPath.replaceAll("\\.html$", ""); // might be document instead of id
       if (!id.startsWith("/")) id = "/"+id;
       if (!id.equals("/")) { // not the home page
-        Element item = (Element)xpath.evaluate(
-          "//*[@id='"+id+"']", index, XPathConstants.NODE);
+        IndexNode item = indexItems.get(id);
         if (item != null) {
-          Element nodeToMove = item.getTagName().equals("div")?
-            item // plain file - we just move the item itself
-            : (Element)item.getParentNode(); // dir - summary, but we want to move the details
-          Node parent = nodeToMove.getParentNode();
-          Element toBeBefore = null;
-          Element toBeAfter = null;          
-          if ("up".equals(where)) { // move up
-            toBeBefore = nodeToMove;
-            // find the previous element, skipping text nodes
-            Node sibling = nodeToMove.getPreviousSibling();
-            while (sibling != null && !(sibling instanceof Element)) {
-              sibling = sibling.getPreviousSibling();
-            } // previous node
-            if (sibling instanceof Element) toBeAfter = (Element)sibling;
-          } else { // move down
-            toBeAfter = nodeToMove;          
-            // find the next element, skipping text nodes
-            Node sibling = nodeToMove.getNextSibling();
-            while (sibling != null && !(sibling instanceof Element)) {
-              sibling = sibling.getNextSibling();
-            } // previous node
-            if (sibling instanceof Element) toBeBefore = (Element)sibling;
-          }
-          if (toBeBefore != null
-              && toBeAfter != null
-              && !toBeAfter.getTagName().equals("summary")) { // not the top of the directory
-            parent.removeChild(toBeBefore);
-            parent.insertBefore(toBeBefore, toBeAfter);
-            writeIndex();
-            return true;
+          IndexNode parent = item.parent;
+          int position = parent.indexOf(item);
+          // the peer to swap with
+          int peer = "up".equals(where)? position - 1 : position + 1;
+          if (peer >= 0 && peer < parent.childCount) { // not the top/bottom of the directory
+            parent.remove(item);
+            parent.insert(peer, item);
+            moved = true;
           }
         } // id is in the index
       } // not home page
-    } catch (Exception x) {
-      System.err.println("ContentManager.move("+urlPath+", "+where+") : " + x);
+    } finally {
+      indexLock.unlock();
     }
-    return false;
+    if (moved) {
+      try {
+        indexChanged();
+      } catch (Exception x) {
+        System.err.println("ContentManager.move("+urlPath+", "+where+") : " + x);
+      }
+    }
+    return moved;
   } // end of move()
   
   /**
@@ -693,26 +2183,17 @@ public class ContentManager {
    * @throws IOException
    */
   public Path delete(String urlPath) throws IOException {
-    Path relativePath = root.getFileSystem().getPath(".", urlPath.split("/"));
-    Path path = root.resolve(relativePath).normalize();
-    if (!path.startsWith(root)) {
-      // can only access under root
-      throw new IOException("Cannot access files outside root.");
-    }
-    // check it's not forbidden
-    for (Path forbidden : writeForbidden) {
-      if (path.startsWith(forbidden)) {
-        // can only access under root
-        throw new IOException("Forbidden path: " + urlPath);
-      }
-    } // next forbidden path
+    Path path = writablePath(urlPath);
+    keepRevision(path, "delete");
     Files.delete(path);
+    titleCache.remove(path.toAbsolutePath().normalize());
+    uncacheContent(path);
     
     if (urlPath.endsWith(".html")) {
       try {
         if (indexPath(urlPath)) {
           // write the file
-          writeIndex();
+          indexChanged();
         }
       } catch(Exception exception) {
         System.err.println("ContentManager.create: " + exception);
@@ -722,4 +2203,238 @@ public class ContentManager {
     return path;
   } // end of delete()
 
+  /**
+   * Determines whether an If-None-Match request header matches the given entity tag.
+   * @param ifNoneMatch The value of the If-None-Match header, which may be null, "*",
+   * or a comma-separated list of entity tags.
+   * @param eTag The current entity tag of the resource.
+   * @return true if the client's cached copy is current, false otherwise.
+   */
+  public static boolean etagMatches(String ifNoneMatch, String eTag) {
+    if (ifNoneMatch == null || eTag == null) return false;
+    if (ifNoneMatch.trim().equals("*")) return true;
+    // If-None-Match uses weak comparison, so ignore W/ prefixes
+    String opaqueTag = eTag.replaceAll("^W/", "");
+    for (String candidate : ifNoneMatch.split(",")) {
+      if (candidate.trim().replaceAll("^W/", "").equals(opaqueTag)) return true;
+    } // next candidate
+    return false;
+  } // end of etagMatches()
+
+  /**
+   * Computes a strong entity tag for the given content.
+   * @param content The content.
+   * @return A quoted SHA-1 hash of the content.
+   * @throws NoSuchAlgorithmException
+   */
+  public static String etagFor(byte[] content) throws NoSuchAlgorithmException {
+    StringBuilder hash = new StringBuilder("\"");
+    for (byte b : MessageDigest.getInstance("SHA-1").digest(content)) {
+      hash.append(String.format("%02x", b));
+    }
+    return hash.append("\"").toString();
+  } // end of etagFor()
+
+  /**
+   * An immutable version of the index at a point in time.
+   * <p> The index tree is a copy that is never changed, so it can be read while the index
+   * is being changed. Entries that haven't changed are shared with the previous snapshot. It is serialized when first required.
+   */
+  public static class IndexSnapshot {
+    private final ContentManager manager;
+    final IndexNode index;
+    private final long version;
+    private byte[] bytes;
+    private String eTag;
+    private byte[] topLevelBytes;
+    private String topLevelETag;
+    
+    /**
+     * Constructor.
+     * @param manager The manager that serializes the index.
+     * @param index A copy of the index, which must not be changed.
+     * @param version The version number of this snapshot.
+     */
+    IndexSnapshot(ContentManager manager, IndexNode index, long version) {
+      this.manager = manager;
+      this.index = index;
+      this.version = version;
+    }
+    
+    /**
+     * Serializes the index, if it hasn't been already.
+     * @throws Exception
+     */
+    synchronized void serialize() throws Exception {
+      if (bytes != null) return;
+      byte[] serialized = manager.serializeIndex(index);
+      eTag = etagFor(serialized);
+      bytes = serialized;
+    }
+    
+    /**
+     * The version number of this snapshot, which increases with each change to the index.
+     * @return The version number.
+     */
+    public long getVersion() { return version; }
+    
+    /**
+     * The contents of index.html. Callers must not modify the array.
+     * @return The serialized index, encoded as UTF-8.
+     */
+    public synchronized byte[] getBytes() { return bytes; }
+    
+    /**
+     * A strong entity tag for this version of the index.
+     * @return A quoted hash of the serialized index.
+     */
+    public synchronized String getETag() { return eTag; }
+    
+    /**
+     * An index.html that has only the top-level entries, for sites whose index is too big
+     * to load all at once. Directories have no entries, and those that have entries in the
+     * full index are marked data-lazy="true", so that index.js can load them with
+     * {@link #getEntries(String)} when they're expanded.
+     * <p> This is serialized when first required. Callers must not modify the array.
+     * @return The serialized top levels of the index, encoded as UTF-8.
+     * @throws Exception
+     */
+    public synchronized byte[] getTopLevelBytes() throws Exception {
+      if (topLevelBytes == null) {
+        byte[] serialized = IndexHtmlWriter.toBytes(index, 1);
+        topLevelETag = etagFor(serialized);
+        topLevelBytes = serialized;
+      }
+      return topLevelBytes;
+    }
+    
+    /**
+     * A strong entity tag for {@link #getTopLevelBytes()}.
+     * @return A quoted hash of the serialized top levels of the index.
+     * @throws Exception
+     */
+    public synchronized String getTopLevelETag() throws Exception {
+      getTopLevelBytes();
+      return topLevelETag;
+    }
+    
+    /**
+     * The entries of one directory of the index, as an HTML fragment to be inserted after
+     * the directory's &lt;summary&gt;. Subdirectories have no entries, and are marked
+     * data-lazy="true" if they have any.
+     * @param id The id of the directory, e.g. "/" or "/dir".
+     * @return The directory's entries, encoded as UTF-8, or null if there is no directory
+     * with the given id.
+     * @throws Exception
+     */
+    public byte[] getEntries(String id) throws Exception {
+      IndexNode dir = index.find(id);
+      if (dir == null || !dir.isDirectory()) return null;
+      return IndexHtmlWriter.entriesToBytes(dir);
+    }
+  } // end of class IndexSnapshot
+
+  /** The results of {@link ContentManager#importArchive(InputStream)}. */
+  public static class ImportReport {
+    /** The result of a file that was created. */
+    public static final String CREATED = "created";
+    /** The result of a file that already existed. */
+    public static final String UPDATED = "updated";
+    
+    final LinkedHashMap<String,String> results = new LinkedHashMap<String,String>();
+    int indexed = 0;
+    long millis = 0;
+    
+    /**
+     * The result for each file in the archive, in archive order.
+     * @return A map of URL paths to {@link #CREATED}, {@link #UPDATED}, or an error message.
+     */
+    public Map<String,String> getResults() { return results; }
+    
+    /**
+     * The number of files that were created.
+     * @return The number of files that didn't exist before.
+     */
+    public int getCreated() { return count(CREATED); }
+    
+    /**
+     * The number of files that were updated.
+     * @return The number of files that existed before.
+     */
+    public int getUpdated() { return count(UPDATED); }
+    
+    /**
+     * The number of files that couldn't be written.
+     * @return The number of files that weren't imported.
+     */
+    public int getFailed() { return results.size() - getCreated() - getUpdated(); }
+    
+    /**
+     * The number of documents whose index entries were added or changed.
+     * @return The number of documents whose index entries were updated.
+     */
+    public int getIndexed() { return indexed; }
+    
+    /**
+     * How long the import took.
+     * @return The duration in milliseconds.
+     */
+    public long getMillis() { return millis; }
+    
+    private int count(String result) {
+      int count = 0;
+      for (String r : results.values()) if (r.equals(result)) count++;
+      return count;
+    }
+    
+    @Override public String toString() {
+      return "imported " + results.size() + " files in " + millis + "ms: "
+        + getCreated() + " created, " + getUpdated() + " updated, "
+        + getFailed() + " failed, " + indexed + " index entries updated";
+    }
+  } // end of class ImportReport
+
+  /** The results of {@link ContentManager#reconcile()}. */
+  public static class ReconcileReport {
+    int added = 0;
+    int changed = 0;
+    int removed = 0;
+    long millis = 0;
+    
+    /**
+     * The number of entries added to the index.
+     * @return The number of entries added to the index.
+     */
+    public int getAdded() { return added; }
+    
+    /**
+     * The number of entries that were retitled or changed between document and directory.
+     * @return The number of entries that were changed.
+     */
+    public int getChanged() { return changed; }
+    
+    /**
+     * The number of entries removed from the index.
+     * @return The number of entries removed from the index.
+     */
+    public int getRemoved() { return removed; }
+    
+    /**
+     * The total number of entries that differed from the content.
+     * @return The number of entries added, changed, or removed.
+     */
+    public int getTotal() { return added + changed + removed; }
+    
+    /**
+     * How long reconciliation took.
+     * @return The duration in milliseconds.
+     */
+    public long getMillis() { return millis; }
+    
+    @Override public String toString() {
+      return "reconciled index in " + millis + "ms: " + added + " added, "
+        + changed + " changed, " + removed + " removed";
+    }
+  } // end of class ReconcileReport
+
 } // end of class ContentManager
@@ -0,0 +1,240 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the content root for changes made by other processes - e.g. rsync or git - and
+ * updates the index of a {@link ContentManager} to match.
+ * <p> Events are debounced: once a change is detected, changes are collected until
+ * none have arrived for {@link ContentManager#getWatchDebounce()}ms, and then all the
+ * affected documents are re-indexed together, with a single write of index.html.
+ * <p> If events for a directory are lost because too many arrived at once, the
+ * directory's subtree is reconciled with the index.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ContentWatcher implements Runnable {
+
+  ContentManager manager;
+  Path root;
+  WatchService watchService;
+  Map<WatchKey,Path> watchedDirs = new HashMap<WatchKey,Path>();
+  Thread thread;
+
+  /** URL paths of documents and directories that have changed since the last re-index. */
+  Set<String> changed = new TreeSet<String>();
+
+  /** Directories whose events were lost. */
+  Set<Path> overflowed = new TreeSet<Path>();
+
+  /**
+   * Constructor.
+   * @param manager The manager whose root is watched and whose index is updated.
+   */
+  public ContentWatcher(ContentManager manager) {
+    this.manager = manager;
+    this.root = manager.getRoot().toAbsolutePath().normalize();
+  } // end of constructor
+
+  /**
+   * Starts watching, on a daemon thread.
+   * @throws IOException
+   */
+  public void start() throws IOException {
+    watchService = root.getFileSystem().newWatchService();
+    watch(root);
+    changed.clear(); // the index is assumed to be up to date to start with
+    thread = new Thread(this, "wysiwiki-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  } // end of start()
+
+  /**
+   * Stops watching.
+   */
+  public void stop() {
+    try {
+      watchService.close();
+    } catch(IOException exception) {
+      System.err.println("ContentWatcher.stop: " + exception);
+    }
+    if (thread != null && thread != Thread.currentThread()) {
+      try {
+        thread.join(5000);
+      } catch(InterruptedException exception) {
+      }
+    }
+  } // end of stop()
+
+  /**
+   * Registers the given directory, and its subdirectories, for watching. Any documents
+   * found are added to {@link #changed}, so that files created before registration
+   * aren't missed.
+   * @param dir
+   */
+  protected void watch(Path dir) {
+    if (!isWatchable(dir)) return;
+    try {
+      WatchKey key = dir.register(
+        watchService, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      watchedDirs.put(key, dir);
+      if (!dir.equals(root)) changed.add(urlPath(dir) + ".html");
+      try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+        for (Path child : children) {
+          if (Files.isDirectory(child)) {
+            watch(child);
+          } else if (isDocument(child)) {
+            changed.add(urlPath(child));
+          }
+        } // next child
+      }
+    } catch(IOException exception) {
+      System.err.println("ContentWatcher.watch: " + dir + ": " + exception);
+    }
+  } // end of watch()
+
+  /**
+   * Determines whether the given directory should be watched.
+   * @param dir
+   * @return false for hidden directories and the web app's own directories.
+   */
+  protected boolean isWatchable(Path dir) {
+    if (dir.equals(root)) return true;
+    String name = dir.getFileName().toString();
+    if (name.startsWith(".")) return false;
+    return !(dir.getParent().equals(root)
+             && ContentManager.UNINDEXED_ROOT_DIRS.contains(name));
+  } // end of isWatchable()
+
+  /**
+   * Determines whether the given file is a document that belongs in the index.
+   * @param file
+   * @return true for .html files, except the web app's own files.
+   */
+  protected boolean isDocument(Path file) {
+    String name = file.getFileName().toString();
+    if (!name.endsWith(".html")) return false;
+    return !(file.getParent().equals(root)
+             && ContentManager.UNINDEXED_ROOT_FILES.contains(name));
+  } // end of isDocument()
+
+  /**
+   * Converts a file path to a URL path.
+   * @param path
+   * @return The path relative to the root, with a leading slash.
+   */
+  protected String urlPath(Path path) {
+    return "/" + root.relativize(path).toString().replace(File.separatorChar, '/');
+  } // end of urlPath()
+
+  /** Watches for events until {@link #stop()} is called. */
+  public void run() {
+    try {
+      while (true) {
+        // wait for a change
+        collect(watchService.take());
+        // then wait for changes to stop
+        long giveUp = System.currentTimeMillis()
+          + Math.max(manager.getWatchDebounce(), manager.getIndexWriteMaxDelay());
+        WatchKey key = watchService.poll(manager.getWatchDebounce(), TimeUnit.MILLISECONDS);
+        while (key != null) {
+          collect(key);
+          if (System.currentTimeMillis() >= giveUp) break;
+          key = watchService.poll(manager.getWatchDebounce(), TimeUnit.MILLISECONDS);
+        } // next key
+        reindex();
+      } // next burst
+    } catch(ClosedWatchServiceException | InterruptedException stopped) {
+    }
+  } // end of run()
+
+  /**
+   * Adds the paths affected by the events of the given key to {@link #changed}.
+   * @param key
+   */
+  protected void collect(WatchKey key) {
+    Path dir = watchedDirs.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (dir == null) continue;
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        overflowed.add(dir);
+        continue;
+      }
+      Path child = dir.resolve((Path)event.context());
+      if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+        watch(child);
+      } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE
+                 && !child.getFileName().toString().endsWith(".html")) {
+        // might have been a directory, so everything indexed under it has gone
+        if (isWatchable(child)) {
+          changed.addAll(manager.indexedUrlPaths(urlPath(child)));
+          changed.add(urlPath(child) + ".html");
+        }
+      } else if (isDocument(child)) {
+        changed.add(urlPath(child));
+      }
+    } // next event
+    if (!key.reset()) watchedDirs.remove(key); // directory has gone
+  } // end of collect()
+
+  /**
+   * Updates the index for all paths collected since the last time.
+   */
+  protected void reindex() {
+    // reconcile directories whose events were lost
+    for (Path dir : overflowed) {
+      if (Files.isDirectory(dir)) {
+        changed.addAll(manager.indexedUrlPaths(dir.equals(root)? "" : urlPath(dir)));
+        watch(dir); // re-registering is harmless, and finds new subdirectories
+      }
+    } // next overflowed directory
+    overflowed.clear();
+    if (changed.isEmpty()) return;
+    try {
+      int updated = manager.reindex(changed);
+      if (updated > 0) {
+        System.out.println(
+          "ContentWatcher: " + changed.size() + " paths changed, " + updated
+          + " index entries updated");
+      }
+    } catch(Exception exception) {
+      System.err.println("ContentWatcher.reindex: " + exception);
+      exception.printStackTrace(System.err);
+    }
+    changed.clear();
+  } // end of reindex()
+
+} // end of class ContentWatcher
@@ -0,0 +1,346 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.service;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.text.translate.EntityArrays;
+
+/**
+ * Writes an index tree as index.html, in a single pass with no intermediate document.
+ * <p> The markup is the same as that previously produced by serializing the index DOM
+ * with an indenting {@link javax.xml.transform.Transformer} - i.e. directories are
+ * &lt;details&gt; elements whose &lt;summary&gt; has the directory's id, and documents
+ * are &lt;div&gt; elements with an id, each with a link to the document - as this is what
+ * index.js and {@link IndexParser} expect. Characters are escaped the same way too:
+ * HTML entities in text and attributes, and UTF-8 percent-encoding in hrefs.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class IndexHtmlWriter {
+
+  /** Everything before the index entries. */
+  static final String HEAD = "<!DOCTYPE html>\n"
+    + "<html>\n"
+    + "    <head>\n"
+    + "        <META http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n"
+    + "        <meta content=\"text/html; charset=UTF-8\" http-equiv=\"content-type\"> </meta>\n"
+    + "        <meta content=\"width=device-width, initial-scale=1\" name=\"viewport\"> </meta>\n"
+    + "        <base target=\"_top\"> </base>\n"
+    + "        <title>Index</title>\n"
+    + "        <link href=\"wysiwiki/wysiwiki.css\" rel=\"stylesheet\" type=\"text/css\"> </link>\n"
+    + "        <link href=\"style.css\" rel=\"stylesheet\" type=\"text/css\"> </link>\n"
+    + "        <script src=\"wysiwiki/index.js\"></script>\n"
+    + "    </head>\n"
+    + "    <body class=\"resource index\">\n";
+
+  /** Everything after the index entries. */
+  static final String TAIL = "    </body>\n"
+    + "</html>\n";
+
+  /** The indentation of each level of the document. */
+  static final String INDENT = "    ";
+
+  /** Named entities for Latin-1 characters and general punctuation, keyed by character. */
+  static final Map<Character,String> ENTITIES = new HashMap<Character,String>();
+  static {
+    for (Map.Entry<CharSequence,CharSequence> entity
+           : EntityArrays.ISO8859_1_ESCAPE.entrySet()) {
+      ENTITIES.put(entity.getKey().charAt(0), entity.getValue().toString());
+    }
+    for (Map.Entry<CharSequence,CharSequence> entity
+           : EntityArrays.HTML40_EXTENDED_ESCAPE.entrySet()) {
+      // Latin Extended and Greek letters are written as-is
+      if (entity.getKey().charAt(0) > '\u03D6') {
+        ENTITIES.put(entity.getKey().charAt(0), entity.getValue().toString());
+      }
+    }
+  }
+
+  private final Writer out;
+
+  /** The id of the directory being written, for deriving ids and hrefs of its entries. */
+  private final StringBuilder path = new StringBuilder();
+
+  /**
+   * Constructor.
+   * @param out Where to write the index.
+   */
+  public IndexHtmlWriter(Writer out) {
+    this.out = out;
+  } // end of constructor
+
+  /**
+   * Serializes the given index.
+   * @param root The root of the index.
+   * @return The contents of index.html, encoded as UTF-8.
+   * @throws IOException
+   */
+  public static byte[] toBytes(IndexNode root) throws IOException {
+    return toBytes(root, Integer.MAX_VALUE);
+  } // end of toBytes()
+
+  /**
+   * Serializes the given index, down to the given number of levels.
+   * @param root The root of the index.
+   * @param levels How many levels of entries to include, e.g. 1 for only the entries of
+   * the root.
+   * @return The contents of an index.html, encoded as UTF-8.
+   * @throws IOException
+   */
+  public static byte[] toBytes(IndexNode root, int levels) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Writer writer = new BufferedWriter(
+      new OutputStreamWriter(bytes, StandardCharsets.UTF_8), 65536);
+    new IndexHtmlWriter(writer).write(root, levels);
+    writer.close();
+    return bytes.toByteArray();
+  } // end of toBytes()
+
+  /**
+   * Serializes the entries of one directory as an HTML fragment.
+   * @param dir The directory.
+   * @return The entries of the directory, encoded as UTF-8.
+   * @throws IOException
+   */
+  public static byte[] entriesToBytes(IndexNode dir) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Writer writer = new BufferedWriter(
+      new OutputStreamWriter(bytes, StandardCharsets.UTF_8), 8192);
+    new IndexHtmlWriter(writer).writeEntries(dir);
+    writer.close();
+    return bytes.toByteArray();
+  } // end of entriesToBytes()
+
+  /**
+   * Writes the given index as a complete HTML document. The writer is flushed, but not
+   * closed.
+   * @param root The root of the index.
+   * @throws IOException
+   */
+  public void write(IndexNode root) throws IOException {
+    write(root, Integer.MAX_VALUE);
+  } // end of write()
+
+  /**
+   * Writes the given index as a complete HTML document, down to the given number of
+   * levels. Directories below that have no entries, and are marked
+   * data-lazy="true" if they have entries that were left out, so that index.js can
+   * load them with {@link #writeEntries(IndexNode)} when they're expanded. The writer is
+   * flushed, but not closed.
+   * @param root The root of the index.
+   * @param levels How many levels of entries to include, e.g. 1 for only the entries of
+   * the root.
+   * @throws IOException
+   */
+  public void write(IndexNode root, int levels) throws IOException {
+    out.write(HEAD);
+    path.setLength(0);
+    writeDirectory(root, 2, levels);
+    out.write(TAIL);
+    out.flush();
+  } // end of write()
+
+  /**
+   * Writes the entries of one directory, as they would appear within its &lt;details&gt;
+   * element, except that directories have no entries of their own, and are marked
+   * data-lazy="true" if they have any. The writer is flushed, but not closed.
+   * @param dir The directory.
+   * @throws IOException
+   */
+  public void writeEntries(IndexNode dir) throws IOException {
+    path.setLength(0);
+    if (dir.parent != null) path.append(dir.getId());
+    writeChildren(dir, 0, 0);
+    out.flush();
+  } // end of writeEntries()
+
+  /**
+   * Writes a directory entry and its descendants, down to the given number of levels.
+   * {@link #path} must be the id of its parent.
+   */
+  private void writeDirectory(IndexNode dir, int depth, int levels) throws IOException {
+    int parentLength = path.length();
+    if (dir.parent != null) path.append('/').append(dir.name);
+    indent(depth);
+    if (dir.parent == null) {
+      out.write("<details open=\"true\">\n");
+    } else if (levels <= 0 && dir.childCount > 0) { // entries are loaded when expanded
+      out.write("<details data-lazy=\"true\">\n");
+    } else {
+      out.write("<details>\n");
+    }
+    indent(depth + 1);
+    out.write("<summary id=\"");
+    writeAttribute(dir.parent == null? "/" : path);
+    out.write("\">\n");
+    indent(depth + 2);
+    if (dir.title != null) {
+      writeLink(dir);
+    } else { // no document, so show the name, with a link that would create the page
+      writeText(dir.name);
+      out.write("<a class=\"new-page\" href=\"");
+      writeUri(path, 1, path.length());
+      out.write(".html\">+</a>");
+    }
+    out.write("\n");
+    indent(depth + 1);
+    out.write("</summary>\n");
+    if (levels > 0) writeChildren(dir, depth + 1, levels - 1);
+    indent(depth);
+    out.write("</details>\n");
+    path.setLength(parentLength);
+  } // end of writeDirectory()
+
+  /**
+   * Writes the entries of a directory, with the given number of levels of entries below
+   * them. {@link #path} must be the id of the directory.
+   */
+  private void writeChildren(IndexNode dir, int depth, int levels) throws IOException {
+    for (int c = 0; c < dir.childCount; c++) {
+      IndexNode child = dir.children[c];
+      if (child.isDirectory()) {
+        writeDirectory(child, depth, levels);
+      } else {
+        writeDocument(child, depth);
+      }
+    } // next child
+  } // end of writeChildren()
+
+  /** Writes a document entry. {@link #path} must be the id of its parent. */
+  private void writeDocument(IndexNode doc, int depth) throws IOException {
+    int parentLength = path.length();
+    path.append('/').append(doc.name);
+    indent(depth);
+    out.write("<div id=\"");
+    writeAttribute(path);
+    out.write("\">\n");
+    indent(depth + 1);
+    writeLink(doc);
+    out.write("\n");
+    indent(depth);
+    out.write("</div>\n");
+    path.setLength(parentLength);
+  } // end of writeDocument()
+
+  /** Writes a link to an entry's document. {@link #path} must be the entry's id. */
+  private void writeLink(IndexNode item) throws IOException {
+    out.write("<a href=\"");
+    if (item.parent == null) {
+      out.write("home.html");
+    } else {
+      writeUri(path, 1, path.length());
+      out.write(".html");
+    }
+    out.write("\">");
+    writeText(item.title == null? "" : item.title);
+    out.write("</a>");
+  } // end of writeLink()
+
+  /** Writes indentation for the given depth. */
+  private void indent(int depth) throws IOException {
+    for (int d = 0; d < depth; d++) out.write(INDENT);
+  } // end of indent()
+
+  /**
+   * Writes element content, escaping markup characters, and using named entities where
+   * available, and numeric character references for control and supplementary characters.
+   */
+  void writeText(CharSequence text) throws IOException {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '&') {
+        out.write("&amp;");
+      } else if (c == '<') {
+        out.write("&lt;");
+      } else if (c == '>') {
+        out.write("&gt;");
+      } else if (c < '\u007F') {
+        out.write(c);
+      } else if (c <= '\u009F') {
+        out.write("&#" + (int)c + ";");
+      } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                 && Character.isLowSurrogate(text.charAt(i + 1))) {
+        out.write("&#" + Character.toCodePoint(c, text.charAt(++i)) + ";");
+      } else {
+        String entity = ENTITIES.get(c);
+        if (entity != null) {
+          out.write(entity);
+        } else {
+          out.write(c);
+        }
+      }
+    } // next character
+  } // end of writeText()
+
+  /**
+   * Writes a double-quoted attribute value, escaping ampersands and quotes, and using named
+   * entities where available.
+   */
+  void writeAttribute(CharSequence value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '&') {
+        out.write("&amp;");
+      } else if (c == '"') {
+        out.write("&quot;");
+      } else {
+        String entity = ENTITIES.get(c);
+        if (entity != null) {
+          out.write(entity);
+        } else {
+          out.write(c);
+        }
+      }
+    } // next character
+  } // end of writeAttribute()
+
+  /**
+   * Writes part of a double-quoted URI attribute value, percent-encoding non-ASCII
+   * characters as UTF-8, and quotes, and escaping ampersands.
+   */
+  void writeUri(CharSequence uri, int start, int end) throws IOException {
+    for (int i = start; i < end; i++) {
+      char c = uri.charAt(i);
+      if (c == '&') {
+        out.write("&amp;");
+      } else if (c == '"') {
+        out.write("%22");
+      } else if (c <= '\u007F') {
+        out.write(c);
+      } else {
+        String character = Character.isHighSurrogate(c) && i + 1 < end
+          && Character.isLowSurrogate(uri.charAt(i + 1))?
+          new String(new char[] { c, uri.charAt(++i) }) : String.valueOf(c);
+        for (byte b : character.getBytes(StandardCharsets.UTF_8)) {
+          out.write('%');
+          out.write(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)));
+          out.write(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+        } // next byte
+      }
+    } // next character
+  } // end of writeUri()
+
+} // end of class IndexHtmlWriter
@@ -0,0 +1,304 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.service;
+
+import java.util.Arrays;
+
+/**
+ * An entry in the navigation index - i.e. a document, or a directory, which may also have
+ * a document of the same name.
+ * <p> The index is held as a tree of these nodes, rather than as the DOM of index.html, as
+ * it's much smaller: each node holds only its name, its title, and its children, with ids
+ * and hrefs derived from the names of the node and its ancestors when required. Names are
+ * interned, as the same directory names - e.g. years and months - tend to recur.
+ * <p> The root node is the home page, whose id is "/".
+ * <p> Snapshots of the index are made by {@link #publish()}, which copies only the entries
+ * that have changed since the last snapshot, and their ancestors, sharing the rest with the
+ * last snapshot. For this to work, changes must be made through the methods here, which
+ * mark the entry and its ancestors as changed, and entries are never moved from one
+ * directory to another.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class IndexNode {
+
+  private static final IndexNode[] NO_CHILDREN = new IndexNode[0];
+
+  /** The file or directory name, without .html, or "" for the root. */
+  String name;
+  /** The document's title, or null if this is a directory without a document. */
+  String title;
+  /** The directory this entry is in, or null for the root. */
+  IndexNode parent;
+  /** The directory's entries, in index order, or null if this is a document. */
+  IndexNode[] children;
+  /** The number of {@link #children} that are used. */
+  int childCount;
+  /**
+   * The copy of this entry in the last snapshot, or null if this entry or any of its
+   * descendants has changed since.
+   */
+  private IndexNode published;
+  /** A childless copy of this entry, for use as the parent of published entries. */
+  private IndexNode location;
+
+  /**
+   * Constructor.
+   * @param name The file or directory name, without .html, or "" for the root.
+   * @param title The document's title, or null if this is a directory without a document.
+   * @param directory Whether this is a directory.
+   */
+  public IndexNode(String name, String title, boolean directory) {
+    this.name = name.intern();
+    this.title = title;
+    if (directory) children = NO_CHILDREN;
+  } // end of constructor
+
+  /**
+   * Copy constructor, for {@link #publish()}, which copies neither parent nor children.
+   * @param original The entry to copy.
+   */
+  private IndexNode(IndexNode original) {
+    this.name = original.name; // already interned
+    this.title = original.title;
+  } // end of constructor
+
+  /**
+   * Getter for {@link #name}: The file or directory name, without .html, or "" for the root.
+   * @return The file or directory name, without .html, or "" for the root.
+   */
+  public String getName() { return name; }
+
+  /**
+   * Getter for {@link #title}: The document's title, or null if this is a directory without
+   * a document.
+   * @return The document's title, or null if this is a directory without a document.
+   */
+  public String getTitle() { return title; }
+
+  /**
+   * Getter for {@link #parent}: The directory this entry is in, or null for the root.
+   * @return The directory this entry is in, or null for the root.
+   */
+  public IndexNode getParent() { return parent; }
+
+  /**
+   * Determines whether this entry is a directory.
+   * @return true if the entry is a directory, false if it's a document.
+   */
+  public boolean isDirectory() { return children != null; }
+
+  /**
+   * The number of entries in this directory.
+   * @return The number of children, which is 0 for documents.
+   */
+  public int getChildCount() { return childCount; }
+
+  /**
+   * Gets an entry in this directory.
+   * @param c The index of the child.
+   * @return The child.
+   */
+  public IndexNode getChild(int c) {
+    if (c < 0 || c >= childCount) throw new IndexOutOfBoundsException("" + c);
+    return children[c];
+  } // end of getChild()
+
+  /**
+   * The id of the entry, which is its URL path without .html
+   * @return The URL path of the document or directory, e.g. "/dir/doc", or "/" for the root.
+   */
+  public String getId() {
+    if (parent == null) return "/";
+    StringBuilder id = new StringBuilder();
+    appendPath(id);
+    return id.toString();
+  } // end of getId()
+
+  /**
+   * The URL of the entry's document relative to the root.
+   * @return e.g. "dir/doc.html", or "home.html" for the root.
+   */
+  public String getHref() {
+    if (parent == null) return "home.html";
+    StringBuilder href = new StringBuilder();
+    appendPath(href);
+    return href.deleteCharAt(0).append(".html").toString();
+  } // end of getHref()
+
+  /** Appends "/" followed by the name of each ancestor, and then this entry. */
+  private void appendPath(StringBuilder path) {
+    if (parent == null) return;
+    parent.appendPath(path);
+    path.append('/').append(name);
+  } // end of appendPath()
+
+  /**
+   * Sets the document's title.
+   * @param title The document's title, or null if this is a directory without a document.
+   * @return This entry.
+   */
+  IndexNode setTitle(String title) {
+    this.title = title;
+    changed();
+    return this;
+  } // end of setTitle()
+
+  /**
+   * Finds an entry below this one by its id.
+   * @param id The id of the entry, relative to this one, e.g. "/dir/doc", or "/" for
+   * this entry.
+   * @return The entry, or null if there is no such entry.
+   */
+  IndexNode find(String id) {
+    IndexNode item = this;
+    for (String name : id.split("/")) {
+      if (name.length() == 0) continue;
+      if (item.children == null) return null;
+      IndexNode child = null;
+      for (int c = 0; c < item.childCount && child == null; c++) {
+        if (item.children[c].name.equals(name)) child = item.children[c];
+      }
+      if (child == null) return null;
+      item = child;
+    } // next name
+    return item;
+  } // end of find()
+
+  /**
+   * Makes this entry a directory, keeping its title, or a document, discarding its children.
+   * @param directory Whether this entry should be a directory.
+   * @return This entry.
+   */
+  IndexNode setDirectory(boolean directory) {
+    if (directory) {
+      if (children == null) children = NO_CHILDREN;
+    } else {
+      children = null;
+      childCount = 0;
+    }
+    changed();
+    return this;
+  } // end of setDirectory()
+
+  /**
+   * Adds an entry to the end of this directory.
+   * @param child The new entry.
+   * @return The new entry.
+   */
+  IndexNode add(IndexNode child) {
+    return insert(childCount, child);
+  } // end of add()
+
+  /**
+   * Inserts an entry into this directory.
+   * @param position The index the new entry will have.
+   * @param child The new entry.
+   * @return The new entry.
+   */
+  IndexNode insert(int position, IndexNode child) {
+    if (childCount == children.length) {
+      children = Arrays.copyOf(children, Math.max(4, childCount * 2));
+    }
+    System.arraycopy(children, position, children, position + 1, childCount - position);
+    children[position] = child;
+    childCount++;
+    child.parent = this;
+    changed();
+    return child;
+  } // end of insert()
+
+  /**
+   * Removes an entry from this directory.
+   * @param child The entry to remove.
+   * @return true if the entry was in this directory, false otherwise.
+   */
+  boolean remove(IndexNode child) {
+    int position = indexOf(child);
+    if (position < 0) return false;
+    System.arraycopy(children, position + 1, children, position, childCount - position - 1);
+    children[--childCount] = null;
+    child.parent = null;
+    changed();
+    return true;
+  } // end of remove()
+
+  /**
+   * Finds an entry in this directory.
+   * @param child The entry to find.
+   * @return The index of the entry, or -1 if it's not in this directory.
+   */
+  int indexOf(IndexNode child) {
+    for (int c = 0; c < childCount; c++) {
+      if (children[c] == child) return c;
+    }
+    return -1;
+  } // end of indexOf()
+
+  /**
+   * Marks this entry, and its ancestors, as changed since the last snapshot.
+   */
+  private void changed() {
+    // if an entry has changed, so have its ancestors
+    for (IndexNode item = this; item != null && item.published != null; item = item.parent) {
+      item.published = null;
+    }
+  } // end of changed()
+
+  /**
+   * Copies this entry and its descendants for a snapshot of the index. Only entries that
+   * have changed since the last snapshot are copied; the copies of the others in the last
+   * snapshot are reused.
+   * <p> The parent of a copy is a childless copy of the original's parent, which is
+   * enough for ids and hrefs, and means that reused copies don't keep earlier snapshots
+   * reachable.
+   * @return A copy that shares no nodes with this one, and is never changed.
+   */
+  IndexNode publish() {
+    if (published != null) return published;
+    IndexNode copy = new IndexNode(this);
+    if (parent != null) copy.parent = parent.location();
+    if (children != null) {
+      copy.children = childCount == 0? NO_CHILDREN : new IndexNode[childCount];
+      copy.childCount = childCount;
+      for (int c = 0; c < childCount; c++) {
+        copy.children[c] = children[c].publish();
+      }
+    }
+    published = copy;
+    return copy;
+  } // end of publish()
+
+  /**
+   * Gets a childless copy of this entry, with the same name and ancestry, which never
+   * changes as entries are never moved from one directory to another.
+   * @return The copy, whose parent is the location of this entry's parent.
+   */
+  private IndexNode location() {
+    if (location == null) {
+      location = new IndexNode(this);
+      if (parent != null) location.parent = parent.location();
+    }
+    return location;
+  } // end of location()
+
+  @Override public String toString() {
+    return getId();
+  }
+} // end of class IndexNode
@@ -0,0 +1,219 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.text.StringEscapeUtils;
+
+/**
+ * A streaming tokenizer for index.html.
+ * <p> This handles the HTML that {@link ContentManager} writes - i.e. well-formed markup
+ * that may use HTML character entities, like &amp;eacute;, which an XML parser would
+ * reject - in a single pass, reporting elements and text to a {@link Handler}.
+ * Declarations (like &lt;!DOCTYPE html&gt;), comments, and processing instructions are
+ * skipped.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class IndexParser {
+
+  /** Receives the content of the document as it's parsed. */
+  public interface Handler {
+    /**
+     * Called for each start tag.
+     * @param name The tag name, as it appears in the document.
+     * @param attributes The attributes, in document order, with entities decoded.
+     */
+    void startElement(String name, Map<String,String> attributes) throws IOException;
+    /**
+     * Called for each end tag, and after {@link #startElement(String,Map)} for
+     * self-closing tags.
+     * @param name The tag name, as it appears in the document.
+     */
+    void endElement(String name) throws IOException;
+    /**
+     * Called for text between tags.
+     * @param text The text, with entities decoded.
+     */
+    void text(String text) throws IOException;
+  }
+
+  private final Reader reader;
+  private final char[] buffer = new char[8192];
+  private int position = 0;
+  private int limit = 0;
+  private final StringBuilder token = new StringBuilder();
+
+  /**
+   * Constructor.
+   * @param reader The source of the document.
+   */
+  public IndexParser(Reader reader) {
+    this.reader = reader;
+  } // end of constructor
+
+  /**
+   * Parses the given UTF-8 document. The stream is not closed.
+   * @param in The document.
+   * @param handler Receives the document's content.
+   * @throws IOException
+   */
+  public static void parse(InputStream in, Handler handler) throws IOException {
+    new IndexParser(new InputStreamReader(in, StandardCharsets.UTF_8)).parse(handler);
+  } // end of parse()
+
+  /**
+   * Parses the document.
+   * @param handler Receives the document's content.
+   * @throws IOException
+   */
+  public void parse(Handler handler) throws IOException {
+    int c = next();
+    while (c >= 0) {
+      if (c == '<') {
+        c = next();
+        if (c == '!' || c == '?') { // declaration, comment, or processing instruction
+          c = skipDeclaration();
+        } else if (c == '/') { // end tag
+          c = readName(next());
+          String name = token.toString();
+          while (c >= 0 && c != '>') c = next();
+          handler.endElement(name);
+          c = next();
+        } else { // start tag
+          c = readName(c);
+          String name = token.toString();
+          Map<String,String> attributes = new LinkedHashMap<String,String>();
+          boolean selfClosing = false;
+          while (c >= 0 && c != '>') {
+            if (c == '/') {
+              selfClosing = true;
+              c = next();
+            } else if (Character.isWhitespace(c)) {
+              c = next();
+            } else { // attribute
+              selfClosing = false;
+              c = readName(c);
+              String attribute = token.toString();
+              while (Character.isWhitespace(c)) c = next();
+              String value = "";
+              if (c == '=') {
+                c = next();
+                while (Character.isWhitespace(c)) c = next();
+                token.setLength(0);
+                if (c == '"' || c == '\'') {
+                  int quote = c;
+                  c = next();
+                  while (c >= 0 && c != quote) {
+                    token.append((char)c);
+                    c = next();
+                  }
+                  c = next();
+                } else { // unquoted value
+                  while (c >= 0 && c != '>' && !Character.isWhitespace(c)) {
+                    token.append((char)c);
+                    c = next();
+                  }
+                }
+                value = decode(token);
+              }
+              attributes.put(attribute, value);
+            }
+          } // next attribute
+          handler.startElement(name, attributes);
+          if (selfClosing) handler.endElement(name);
+          c = next();
+        }
+      } else { // text
+        token.setLength(0);
+        while (c >= 0 && c != '<') {
+          token.append((char)c);
+          c = next();
+        }
+        handler.text(decode(token));
+      }
+    } // next token
+  } // end of parse()
+
+  /**
+   * Reads a tag or attribute name into {@link #token}.
+   * @param c The first character.
+   * @return The first character after the name.
+   */
+  private int readName(int c) throws IOException {
+    token.setLength(0);
+    while (c >= 0 && c != '>' && c != '/' && c != '=' && !Character.isWhitespace(c)) {
+      token.append((char)c);
+      c = next();
+    }
+    return c;
+  } // end of readName()
+
+  /**
+   * Skips a declaration, comment, or processing instruction.
+   * @return The first character after it.
+   */
+  private int skipDeclaration() throws IOException {
+    int c = next();
+    if (c == '-') { // comment - skip to -->
+      int dashes = 0;
+      c = next();
+      while (c >= 0 && !(c == '>' && dashes >= 2)) {
+        dashes = c == '-'? dashes + 1 : 0;
+        c = next();
+      }
+    } else {
+      while (c >= 0 && c != '>') c = next();
+    }
+    return next();
+  } // end of skipDeclaration()
+
+  /**
+   * Decodes character entities, if there are any.
+   * @param text
+   * @return The decoded text.
+   */
+  private static String decode(StringBuilder text) {
+    String string = text.toString();
+    return string.indexOf('&') < 0? string : StringEscapeUtils.unescapeHtml4(string);
+  } // end of decode()
+
+  /**
+   * Reads the next character.
+   * @return The next character, or -1 if the end of the document has been reached.
+   */
+  private int next() throws IOException {
+    if (position >= limit) {
+      limit = reader.read(buffer, 0, buffer.length);
+      position = 0;
+      if (limit <= 0) {
+        limit = 0;
+        return -1;
+      }
+    }
+    return buffer[position++];
+  } // end of next()
+
+} // end of class IndexParser
@@ -0,0 +1,552 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Previous versions of pages, kept when they're updated or deleted.
+ * <p> Each revision's content is stored once, compressed, in a file named after the
+ * SHA-256 hash of the content, so a page that's saved many times without changes - or
+ * reverted to an earlier version - doesn't take any more space. Each page has a history
+ * file that lists its revisions, one per line.
+ * <p> Saving a revision mustn't slow down saving the page, so the file being replaced is
+ * only hard-linked into a <q>pending</q> directory before it's replaced, which is quick
+ * whatever its size. Hashing, compressing, and recording it is done later by a
+ * background thread. Pending revisions left behind by a crash are stored when the store
+ * is next opened.
+ * <p> Old revisions are pruned in the background according to the retention policy:
+ * {@link #maxRevisions} per page, and/or {@link #maxAge}. Content that's no longer part
+ * of any page's history is then deleted.
+ * <p> The layout of the store's directory is:
+ * <ul>
+ *  <li><tt>objects/</tt><i>ab</i><tt>/</tt><i>cdef...</i> - gzipped content, named after
+ *      its hash.</li>
+ *  <li><tt>history/</tt><i>path/to/page.html</i><tt>.log</tt> - a page's revisions,
+ *      oldest first.</li>
+ *  <li><tt>pending/</tt> - links to replaced files that haven't been stored yet.</li>
+ * </ul>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class RevisionStore {
+
+  /** The suffix of history files. */
+  static final String HISTORY_SUFFIX = ".log";
+
+  /** The longest pending file name; longer page paths are stored straight away. */
+  static final int MAX_PENDING_NAME = 200;
+
+  /** A previous version of a page. */
+  public static class Revision {
+    /** The SHA-256 hash of the content, which identifies the revision. */
+    final String id;
+    /** When the revision was replaced or deleted. */
+    final long time;
+    /** When the revision was last modified, i.e. saved. */
+    final long modified;
+    /** What replaced the revision: "update", "delete", or "import". */
+    final String event;
+    /** The size of the content. */
+    final long size;
+
+    Revision(String id, long time, long modified, String event, long size) {
+      this.id = id;
+      this.time = time;
+      this.modified = modified;
+      this.event = event;
+      this.size = size;
+    }
+
+    /**
+     * Parses a line of a history file.
+     * @param line The line.
+     * @return The revision, or null if the line isn't valid.
+     */
+    static Revision parse(String line) {
+      String[] fields = line.split("\t");
+      if (fields.length != 5) return null;
+      try {
+        return new Revision(
+          fields[3], Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2],
+          Long.parseLong(fields[4]));
+      } catch(NumberFormatException exception) {
+        return null;
+      }
+    } // end of parse()
+
+    /**
+     * The SHA-256 hash of the content, which identifies the revision.
+     * @return The revision's ID.
+     */
+    public String getId() { return id; }
+    /**
+     * When the revision was replaced or deleted.
+     * @return The time in milliseconds.
+     */
+    public long getTime() { return time; }
+    /**
+     * When the revision was last modified, i.e. saved.
+     * @return The time in milliseconds.
+     */
+    public long getModified() { return modified; }
+    /**
+     * What replaced the revision.
+     * @return "update", "delete", or "import".
+     */
+    public String getEvent() { return event; }
+    /**
+     * The size of the content.
+     * @return The number of bytes.
+     */
+    public long getSize() { return size; }
+
+    /** The line of the history file that records the revision. */
+    String toLine() {
+      return time + "\t" + modified + "\t" + event + "\t" + id + "\t" + size;
+    } // end of toLine()
+
+    @Override public String toString() {
+      return id + " (" + event + " " + CachePolicy.formatHttpDate(time) + ")";
+    } // end of toString()
+  } // end of class Revision
+
+  /** Content, named after its hash. */
+  private final Path objects;
+  /** History files. */
+  private final Path history;
+  /** Replaced files that haven't been stored yet. */
+  private final Path pending;
+
+  /** The thread that stores and prunes revisions. */
+  private final ScheduledExecutorService worker;
+
+  /** The time of the most recent revision, so that each has a different time. */
+  private final AtomicLong lastTime = new AtomicLong();
+
+  /** The number of revisions stored. */
+  private final AtomicLong stored = new AtomicLong();
+  /** The number of revisions whose content was already stored. */
+  private final AtomicLong deduplicated = new AtomicLong();
+  /** The number of revisions pruned. */
+  private final AtomicLong pruned = new AtomicLong();
+
+  /**
+   * The maximum number of revisions to keep for each page, or 0 for no limit.
+   * @see #getMaxRevisions()
+   * @see #setMaxRevisions(int)
+   */
+  protected int maxRevisions = 100;
+  /**
+   * Getter for {@link #maxRevisions}: The maximum number of revisions to keep for each
+   * page, or 0 for no limit.
+   * @return The maximum number of revisions to keep for each page, or 0 for no limit.
+   */
+  public int getMaxRevisions() { return maxRevisions; }
+  /**
+   * Setter for {@link #maxRevisions}: The maximum number of revisions to keep for each
+   * page, or 0 for no limit.
+   * @param newMaxRevisions The maximum number of revisions to keep for each page, or 0
+   * for no limit.
+   */
+  public RevisionStore setMaxRevisions(int newMaxRevisions) {
+    maxRevisions = newMaxRevisions; return this; }
+
+  /**
+   * How long to keep revisions, in milliseconds, or 0 for no limit.
+   * @see #getMaxAge()
+   * @see #setMaxAge(long)
+   */
+  protected long maxAge = 0;
+  /**
+   * Getter for {@link #maxAge}: How long to keep revisions, in milliseconds, or 0 for no
+   * limit.
+   * @return How long to keep revisions, in milliseconds, or 0 for no limit.
+   */
+  public long getMaxAge() { return maxAge; }
+  /**
+   * Setter for {@link #maxAge}: How long to keep revisions, in milliseconds, or 0 for no
+   * limit.
+   * @param newMaxAge How long to keep revisions, in milliseconds, or 0 for no limit.
+   */
+  public RevisionStore setMaxAge(long newMaxAge) { maxAge = newMaxAge; return this; }
+
+  /**
+   * Constructor, which stores any revisions left pending by a crash, and schedules
+   * pruning in the background.
+   * @param dir The directory of the store, which is created if necessary.
+   * @param pruneInterval How often to prune old revisions, in milliseconds.
+   * @throws IOException If the directory can't be created.
+   */
+  public RevisionStore(Path dir, long pruneInterval) throws IOException {
+    objects = dir.resolve("objects");
+    history = dir.resolve("history");
+    pending = dir.resolve("pending");
+    Files.createDirectories(objects);
+    Files.createDirectories(history);
+    Files.createDirectories(pending);
+    worker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "wysiwiki-revisions");
+        thread.setDaemon(true);
+        return thread;
+      });
+    worker.execute(() -> recover());
+    worker.scheduleWithFixedDelay(
+      () -> pruneNow(), pruneInterval, pruneInterval, TimeUnit.MILLISECONDS);
+  } // end of constructor
+
+  /**
+   * Keeps the current version of a page as a revision, before it's replaced or deleted.
+   * The file is linked into the pending directory straight away, and stored later in the
+   * background.
+   * @param page The page's path relative to the root, e.g. "path/to/page.html".
+   * @param file The page's file, which must exist.
+   * @param event What's about to replace the page: "update", "delete", or "import".
+   * @throws IOException If the file can't be kept.
+   */
+  public void keep(String page, Path file, String event) throws IOException {
+    long now = System.currentTimeMillis();
+    long time = lastTime.updateAndGet(last -> Math.max(now, last + 1));
+    String name = time + "." + event + "." + URLEncoder.encode(page, "UTF-8");
+    if (name.length() > MAX_PENDING_NAME) { // too long for a file name
+      // read the content before it's replaced, but store it on the worker thread, so that
+      // pruning can't delete it before it's recorded
+      final byte[] content = Files.readAllBytes(file);
+      final long modified = Files.getLastModifiedTime(file).toMillis();
+      try {
+        worker.execute(() -> storeAndRecord(page, content, time, modified, event));
+      } catch(RejectedExecutionException shutDown) {
+        storeAndRecord(page, content, time, modified, event);
+      }
+      return;
+    }
+    Path staged = pending.resolve(name);
+    try { // a link is quick, however big the file is
+      Files.createLink(staged, file);
+    } catch(UnsupportedOperationException | FileSystemException noLinks) {
+      Files.copy(file, staged, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+    try {
+      worker.execute(() -> storePending(staged));
+    } catch(RejectedExecutionException shutDown) {
+      // it will be stored when the store is next opened
+    }
+  } // end of keep()
+
+  /**
+   * Lists the revisions of a page, after waiting for any pending revisions to be stored.
+   * @param page The page's path relative to the root, e.g. "path/to/page.html".
+   * @return The page's revisions, most recent first, which is empty if it has none.
+   * @throws IOException If the history can't be read.
+   */
+  public List<Revision> list(String page) throws IOException {
+    flush();
+    List<Revision> revisions = readHistory(page);
+    Collections.reverse(revisions);
+    return revisions;
+  } // end of list()
+
+  /**
+   * Opens a revision of a page.
+   * @param page The page's path relative to the root, e.g. "path/to/page.html".
+   * @param id The revision's ID, from {@link #list(String)}.
+   * @return The revision's content.
+   * @throws FileNotFoundException If the page has no such revision.
+   * @throws IOException If the revision can't be read.
+   */
+  public InputStream open(String page, String id) throws IOException {
+    flush();
+    for (Revision revision : readHistory(page)) {
+      if (revision.id.equals(id)) {
+        try {
+          return new GZIPInputStream(Files.newInputStream(object(id)));
+        } catch(NoSuchFileException exception) { // pruned in the meantime
+          break;
+        }
+      }
+    } // next revision
+    throw new FileNotFoundException(page + " has no revision " + id);
+  } // end of open()
+
+  /**
+   * Prunes revisions according to the retention policy, and deletes content that's no
+   * longer part of any page's history. This is also done periodically in the background.
+   * @return The number of revisions pruned.
+   * @throws IOException If pruning failed.
+   */
+  public int prune() throws IOException {
+    try {
+      return worker.submit(() -> pruneNow()).get();
+    } catch(InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new IOException(exception);
+    } catch(ExecutionException exception) {
+      throw new IOException(exception.getCause());
+    }
+  } // end of prune()
+
+  /**
+   * Waits for pending revisions to be stored.
+   */
+  public void flush() {
+    try {
+      worker.submit(() -> {}).get();
+    } catch(InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    } catch(Exception shutDown) {
+    }
+  } // end of flush()
+
+  /**
+   * Stores pending revisions, and stops the background thread. Any revisions kept
+   * afterwards remain pending until the store is next opened.
+   */
+  public void shutdown() {
+    worker.shutdown();
+    try {
+      worker.awaitTermination(30, TimeUnit.SECONDS);
+    } catch(InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+  } // end of shutdown()
+
+  /** Stores revisions left pending by a crash, oldest first. */
+  private void recover() {
+    Vector<Path> staged = new Vector<Path>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(pending)) {
+      for (Path file : files) staged.add(file);
+    } catch(IOException exception) {
+      System.err.println("RevisionStore.recover: " + exception);
+    }
+    Collections.sort(staged, (a, b) -> Long.compare(pendingTime(a), pendingTime(b)));
+    for (Path file : staged) storePending(file);
+  } // end of recover()
+
+  /** The time of a pending revision, from its file name. */
+  private static long pendingTime(Path file) {
+    String name = file.getFileName().toString();
+    try {
+      return Long.parseLong(name.substring(0, name.indexOf('.')));
+    } catch(RuntimeException exception) {
+      return 0;
+    }
+  } // end of pendingTime()
+
+  /** Stores a pending revision and records it in the page's history. */
+  private void storePending(Path staged) {
+    try {
+      String[] parts = staged.getFileName().toString().split("\\.", 3);
+      if (parts.length == 3) {
+        String page = URLDecoder.decode(parts[2], "UTF-8");
+        Revision revision = store(
+          page, Files.readAllBytes(staged), Long.parseLong(parts[0]),
+          Files.getLastModifiedTime(staged).toMillis(), parts[1]);
+        record(page, revision);
+      }
+      Files.delete(staged);
+    } catch(Exception exception) {
+      System.err.println("RevisionStore.storePending: " + staged + ": " + exception);
+    }
+  } // end of storePending()
+
+  /** Stores a revision and records it in the page's history. */
+  private void storeAndRecord(
+    String page, byte[] content, long time, long modified, String event) {
+    try {
+      record(page, store(page, content, time, modified, event));
+    } catch(IOException exception) {
+      System.err.println("RevisionStore.storeAndRecord: " + page + ": " + exception);
+    }
+  } // end of storeAndRecord()
+
+  /** Stores the content of a revision, unless it's already stored. */
+  private Revision store(
+    String page, byte[] content, long time, long modified, String event)
+    throws IOException {
+    String id = sha256(content);
+    Path object = object(id);
+    if (Files.exists(object)) {
+      deduplicated.incrementAndGet();
+    } else {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+      gzip.write(content);
+      gzip.close();
+      Files.createDirectories(object.getParent());
+      try {
+        AtomicFiles.write(
+          object, new ByteArrayInputStream(compressed.toByteArray()), true, false);
+      } catch(FileAlreadyExistsException alreadyStored) {
+        deduplicated.incrementAndGet();
+      }
+    }
+    stored.incrementAndGet();
+    return new Revision(id, time, modified, event, content.length);
+  } // end of store()
+
+  /** Appends a revision to a page's history, unless it's already there. */
+  private void record(String page, Revision revision) {
+    try {
+      for (Revision existing : readHistory(page)) {
+        if (existing.time == revision.time) return; // recorded before a crash
+      } // next revision
+      Path file = historyFile(page);
+      Files.createDirectories(file.getParent());
+      Files.write(file, (revision.toLine() + "\n").getBytes(StandardCharsets.UTF_8),
+                  StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    } catch(IOException exception) {
+      System.err.println("RevisionStore.record: " + page + ": " + exception);
+    }
+  } // end of record()
+
+  /** Reads a page's history, oldest first. */
+  private List<Revision> readHistory(String page) throws IOException {
+    Vector<Revision> revisions = new Vector<Revision>();
+    try {
+      for (String line : Files.readAllLines(historyFile(page), StandardCharsets.UTF_8)) {
+        Revision revision = Revision.parse(line);
+        if (revision != null) revisions.add(revision);
+      } // next line
+    } catch(NoSuchFileException noRevisions) {
+    }
+    return revisions;
+  } // end of readHistory()
+
+  /** Prunes revisions on the background thread. */
+  private int pruneNow() {
+    long start = System.currentTimeMillis();
+    final long oldest = maxAge > 0? start - maxAge : Long.MIN_VALUE;
+    final int max = maxRevisions;
+    final Set<String> referenced = new HashSet<String>();
+    final int[] removed = { 0 };
+    try {
+      Files.walkFileTree(history, new SimpleFileVisitor<Path>() {
+          @Override public FileVisitResult visitFile(
+            Path file, BasicFileAttributes attributes) throws IOException {
+            String name = file.getFileName().toString();
+            if (!name.endsWith(HISTORY_SUFFIX)) return FileVisitResult.CONTINUE;
+            String page = history.relativize(file).toString().replace('\\', '/');
+            page = page.substring(0, page.length() - HISTORY_SUFFIX.length());
+            List<Revision> revisions = readHistory(page);
+            StringBuilder kept = new StringBuilder();
+            int skip = max > 0? Math.max(0, revisions.size() - max) : 0;
+            for (int r = 0; r < revisions.size(); r++) {
+              Revision revision = revisions.get(r);
+              if (r < skip || revision.time < oldest) {
+                removed[0]++;
+              } else {
+                kept.append(revision.toLine()).append("\n");
+                referenced.add(revision.id);
+              }
+            } // next revision
+            if (kept.length() == 0) {
+              Files.delete(file);
+            } else if (kept.length() < attributes.size()) {
+              AtomicFiles.write(file, new ByteArrayInputStream(
+                                  kept.toString().getBytes(StandardCharsets.UTF_8)),
+                                false, false);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+      if (removed[0] > 0) { // delete content no longer referenced
+        Files.walkFileTree(objects, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult visitFile(
+              Path file, BasicFileAttributes attributes) throws IOException {
+              String name = file.getFileName().toString();
+              if (name.startsWith(".")) return FileVisitResult.CONTINUE; // being written
+              String id = file.getParent().getFileName().toString() + name;
+              if (!referenced.contains(id)) Files.delete(file);
+              return FileVisitResult.CONTINUE;
+            }
+          });
+        pruned.addAndGet(removed[0]);
+        System.out.println(
+          "RevisionStore: pruned " + removed[0] + " revisions in "
+          + (System.currentTimeMillis() - start) + "ms");
+      }
+    } catch(IOException exception) {
+      System.err.println("RevisionStore.prune: " + exception);
+    }
+    return removed[0];
+  } // end of pruneNow()
+
+  /** The file of the content with the given hash. */
+  private Path object(String id) throws IOException {
+    if (!id.matches("[0-9a-f]{64}")) throw new FileNotFoundException("Invalid id: " + id);
+    return objects.resolve(id.substring(0, 2)).resolve(id.substring(2));
+  } // end of object()
+
+  /** The history file of a page. */
+  private Path historyFile(String page) {
+    return history.resolve(page + HISTORY_SUFFIX);
+  } // end of historyFile()
+
+  /** The SHA-256 hash of the given content, in hexadecimal. */
+  static String sha256(byte[] content) throws IOException {
+    try {
+      StringBuilder hash = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+        hash.append(String.format("%02x", b));
+      }
+      return hash.toString();
+    } catch(NoSuchAlgorithmException exception) {
+      throw new IOException(exception);
+    }
+  } // end of sha256()
+
+  @Override public String toString() {
+    return stored.get() + " revisions stored (" + deduplicated.get()
+      + " already stored), " + pruned.get() + " pruned";
+  } // end of toString()
+
+} // end of class RevisionStore
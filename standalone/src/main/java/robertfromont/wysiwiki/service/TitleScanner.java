@@ -0,0 +1,162 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.commons.text.StringEscapeUtils;
+
+/**
+ * Extracts the &lt;title&gt; of an HTML document by scanning its UTF-8 bytes.
+ * <p> Scanning stops at &lt;/title&gt;, &lt;/head&gt;, &lt;body&gt;, or after
+ * {@link #LIMIT} bytes, whichever comes first. The title may span lines, and character
+ * entities in it are decoded. No strings are created except the title itself.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TitleScanner {
+
+  /** The maximum number of bytes scanned for a title. */
+  public static final int LIMIT = 65536;
+
+  private static final byte[] TITLE = "title".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] END_TITLE = "/title".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] END_HEAD = "/head".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] BODY = "body".getBytes(StandardCharsets.US_ASCII);
+
+  // scanner states
+  private static final int TEXT = 0;       // outside any tag
+  private static final int TAG_NAME = 1;   // reading a tag name after '<'
+  private static final int TAG = 2;        // skipping to the end of a tag
+  private static final int TITLE_TAG = 3;  // skipping to the end of the <title> tag
+  private static final int IN_TITLE = 4;   // reading title content
+  private static final int IN_TITLE_TAG_NAME = 5; // reading a tag name inside the title
+
+  /**
+   * Scans the given stream for a title. The stream is not closed.
+   * @param in The document content.
+   * @return The title, with whitespace normalized and entities decoded, or null if there
+   * is no non-blank title within the first {@link #LIMIT} bytes of the document head.
+   * @throws IOException
+   */
+  public static String title(InputStream in) throws IOException {
+    byte[] buffer = new byte[8192];
+    byte[] name = new byte[8]; // long enough for any tag name we're interested in
+    int nameLength = 0;
+    byte[] title = new byte[256];
+    int titleLength = 0;
+    int tagStart = 0; // position in title of a '<' that might start </title>
+    int state = TEXT;
+    int remaining = LIMIT;
+    int count;
+    while (remaining > 0
+           && (count = in.read(buffer, 0, Math.min(buffer.length, remaining))) > 0) {
+      remaining -= count;
+      for (int i = 0; i < count; i++) {
+        byte b = buffer[i];
+        switch (state) {
+          case TEXT:
+            if (b == '<') {
+              nameLength = 0;
+              state = TAG_NAME;
+            }
+            break;
+          case TAG_NAME:
+            if (isNameByte(b, nameLength)) {
+              if (nameLength < name.length) name[nameLength] = lowerCase(b);
+              nameLength++;
+            } else { // end of name
+              if (matches(name, nameLength, TITLE)) {
+                state = b == '>'? IN_TITLE : TITLE_TAG;
+              } else if (matches(name, nameLength, END_HEAD)
+                         || matches(name, nameLength, BODY)) {
+                return null; // no title in the head
+              } else {
+                state = b == '>'? TEXT : TAG;
+              }
+            }
+            break;
+          case TAG:
+            if (b == '>') state = TEXT;
+            break;
+          case TITLE_TAG:
+            if (b == '>') state = IN_TITLE;
+            break;
+          case IN_TITLE:
+          case IN_TITLE_TAG_NAME:
+            if (titleLength == title.length) title = Arrays.copyOf(title, title.length * 2);
+            title[titleLength++] = b;
+            if (state == IN_TITLE) {
+              if (b == '<') {
+                tagStart = titleLength - 1;
+                nameLength = 0;
+                state = IN_TITLE_TAG_NAME;
+              }
+            } else if (isNameByte(b, nameLength)) {
+              if (nameLength < name.length) name[nameLength] = lowerCase(b);
+              nameLength++;
+            } else if (matches(name, nameLength, END_TITLE)) {
+              return decode(title, tagStart);
+            } else { // just text that happens to contain '<'
+              state = b == '<'? IN_TITLE_TAG_NAME : IN_TITLE;
+              tagStart = titleLength - 1;
+              nameLength = 0;
+            }
+            break;
+        }
+      } // next byte
+    } // next buffer
+    return null;
+  } // end of title()
+
+  /** Determines whether the given byte can be part of a tag name. */
+  private static boolean isNameByte(byte b, int position) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+      || (position > 0 && b >= '0' && b <= '9')
+      || (position == 0 && b == '/');
+  } // end of isNameByte()
+
+  /** Converts an ASCII letter to lower case. */
+  private static byte lowerCase(byte b) {
+    return b >= 'A' && b <= 'Z'? (byte)(b + ('a' - 'A')) : b;
+  } // end of lowerCase()
+
+  /** Determines whether the tag name read so far is the given name. */
+  private static boolean matches(byte[] name, int nameLength, byte[] expected) {
+    if (nameLength != expected.length) return false;
+    for (int i = 0; i < nameLength; i++) {
+      if (name[i] != expected[i]) return false;
+    }
+    return true;
+  } // end of matches()
+
+  /**
+   * Converts title bytes to a string, normalizing whitespace and decoding entities.
+   * @return The title, or null if it's blank.
+   */
+  private static String decode(byte[] title, int length) {
+    String decoded = new String(title, 0, length, StandardCharsets.UTF_8)
+      .replaceAll("\\s+", " ").trim();
+    if (decoded.length() == 0) return null;
+    return StringEscapeUtils.unescapeHtml4(decoded);
+  } // end of decode()
+
+} // end of class TitleScanner
@@ -22,27 +22,35 @@ package robertfromont.wysiwiki.standalone;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Date;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import org.apache.commons.fileupload.MultipartStream;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUpload;
+import org.apache.commons.fileupload.UploadContext;
+import robertfromont.wysiwiki.service.ByteRanges;
+import robertfromont.wysiwiki.service.CachePolicy;
 import robertfromont.wysiwiki.service.ContentManager;
 
 /**
@@ -50,19 +58,57 @@ import robertfromont.wysiwiki.service.ContentManager;
  */
 public class WebApp implements HttpHandler {
   
+  /** Command-line usage. */
+  static final String USAGE = "Usage: java -jar wysiwiki.jar [options] [root]\n"
+    + "  root           The directory or a file in the directory to serve (default: .)\n"
+    + "  --root=dir     The directory to serve\n"
+    + "  --port=n       The port to listen on (default: 3121)\n"
+    + "  --bind=address The address to listen on (default: all addresses)\n"
+    + "  --headless     Run as a server only, without opening a browser\n"
+    + "  --shutdownTimeout=s  Seconds to let requests finish on shutdown (default: 10)\n";
+  
   /** Command-line entrypoint */
   public static void main(String argv[]) {
     WebApp webapp = new WebApp();
-    if (argv.length > 0) {
+    // a server started with no display can't open a browser anyway
+    webapp.setHeadless(Boolean.getBoolean("java.awt.headless"));
+    for (String arg : argv) {
       try {
-        File root = new File(argv[0]);
-        if (!root.isDirectory()) root = root.getParentFile();
-        webapp.setRoot(root);
+        if (arg.startsWith("--root=")) {
+          webapp.setRoot(new File(arg.substring("--root=".length())));
+        } else if (arg.startsWith("--port=")) {
+          webapp.setPort(Integer.valueOf(arg.substring("--port=".length())));
+        } else if (arg.startsWith("--bind=")) {
+          webapp.setBind(arg.substring("--bind=".length()));
+        } else if (arg.equals("--headless")) {
+          webapp.setHeadless(true);
+        } else if (arg.startsWith("--shutdownTimeout=")) {
+          webapp.setShutdownTimeout(
+            Integer.parseInt(arg.substring("--shutdownTimeout=".length())));
+        } else if (arg.equals("--help") || arg.startsWith("--")) {
+          System.err.print(USAGE);
+          System.exit(arg.equals("--help")? 0 : 1);
+        } else { // root directory, or a file in it
+          File root = new File(arg);
+          if (!root.isDirectory()) root = root.getParentFile();
+          webapp.setRoot(root);
+        }
       } catch(Exception exception) {
-        System.err.println("Cannot set root directory to \""+argv[0]+"\": "+exception);
+        System.err.println("Invalid argument \""+arg+"\": "+exception);
+        System.err.print(USAGE);
+        System.exit(1);
       }
-    }
+    } // next argument
     if (webapp.getRoot() == null) webapp.setRoot(new File("."));
+    webapp.setWatch(Boolean.getBoolean("wysiwiki.watch"));
+    webapp.setLazyIndex(Boolean.getBoolean("wysiwiki.lazyIndex"));
+    if (System.getProperty("wysiwiki.cacheControl") != null) {
+      webapp.getCachePolicy().setRules(System.getProperty("wysiwiki.cacheControl"));
+    }
+    webapp.getCachePolicy().setHashETags(Boolean.getBoolean("wysiwiki.hashETags"));
+    webapp.setThreads(Integer.getInteger("wysiwiki.threads", webapp.getThreads()));
+    webapp.setQueueLimit(Integer.getInteger("wysiwiki.queueLimit", webapp.getQueueLimit()));
+    webapp.setVirtualThreads(Boolean.getBoolean("wysiwiki.virtualThreads"));
     webapp.start();
   }
   
@@ -112,6 +158,184 @@ public class WebApp implements HttpHandler {
    */
   public WebApp setPort(Integer newPort) { port = newPort; return this; }
   
+  /**
+   * The address to listen on, or null to listen on all addresses.
+   * @see #getBind()
+   * @see #setBind(String)
+   */
+  protected String bind;
+  /**
+   * Getter for {@link #bind}: The address to listen on, or null to listen on all
+   * addresses.
+   * @return The address to listen on, or null to listen on all addresses.
+   */
+  public String getBind() { return bind; }
+  /**
+   * Setter for {@link #bind}: The address to listen on, or null to listen on all
+   * addresses.
+   * @param newBind The address to listen on, or null to listen on all addresses.
+   */
+  public WebApp setBind(String newBind) { bind = newBind; return this; }
+  
+  /**
+   * Whether to run as a server only, without opening a browser. In this case AWT is never
+   * loaded, so the server starts faster, and runs where there's no display.
+   * @see #getHeadless()
+   * @see #setHeadless(boolean)
+   */
+  protected boolean headless = false;
+  /**
+   * Getter for {@link #headless}: Whether to run as a server only, without opening a
+   * browser.
+   * @return Whether to run as a server only, without opening a browser.
+   */
+  public boolean getHeadless() { return headless; }
+  /**
+   * Setter for {@link #headless}: Whether to run as a server only, without opening a
+   * browser.
+   * @param newHeadless Whether to run as a server only, without opening a browser.
+   */
+  public WebApp setHeadless(boolean newHeadless) { headless = newHeadless; return this; }
+  
+  /**
+   * How many seconds requests in progress are given to finish when the server is stopped.
+   * @see #getShutdownTimeout()
+   * @see #setShutdownTimeout(int)
+   */
+  protected int shutdownTimeout = 10;
+  /**
+   * Getter for {@link #shutdownTimeout}: How many seconds requests in progress are given
+   * to finish when the server is stopped.
+   * @return How many seconds requests in progress are given to finish.
+   */
+  public int getShutdownTimeout() { return shutdownTimeout; }
+  /**
+   * Setter for {@link #shutdownTimeout}: How many seconds requests in progress are given
+   * to finish when the server is stopped.
+   * @param newShutdownTimeout How many seconds requests in progress are given to finish.
+   */
+  public WebApp setShutdownTimeout(int newShutdownTimeout) {
+    shutdownTimeout = newShutdownTimeout; return this; }
+  
+  /**
+   * Whether to update the index when content is changed by other processes.
+   * @see #getWatch()
+   * @see #setWatch(boolean)
+   */
+  protected boolean watch = false;
+  /**
+   * Getter for {@link #watch}: Whether to update the index when content is changed by
+   * other processes.
+   * @return Whether to update the index when content is changed by other processes.
+   */
+  public boolean getWatch() { return watch; }
+  /**
+   * Setter for {@link #watch}: Whether to update the index when content is changed by
+   * other processes.
+   * @param newWatch Whether to update the index when content is changed by other processes.
+   */
+  public WebApp setWatch(boolean newWatch) { watch = newWatch; return this; }
+  
+  /**
+   * Whether index.html has only the top-level entries, with the entries of each directory
+   * loaded when it's expanded, for sites whose index is too big to load all at once.
+   * @see #getLazyIndex()
+   * @see #setLazyIndex(boolean)
+   */
+  protected boolean lazyIndex = false;
+  /**
+   * Getter for {@link #lazyIndex}: Whether index.html has only the top-level entries, with
+   * the entries of each directory loaded when it's expanded.
+   * @return Whether index.html has only the top-level entries.
+   */
+  public boolean getLazyIndex() { return lazyIndex; }
+  /**
+   * Setter for {@link #lazyIndex}: Whether index.html has only the top-level entries, with
+   * the entries of each directory loaded when it's expanded.
+   * @param newLazyIndex Whether index.html has only the top-level entries.
+   */
+  public WebApp setLazyIndex(boolean newLazyIndex) { lazyIndex = newLazyIndex; return this; }
+  
+  /**
+   * The number of threads handling requests, or 0 to handle them all on the server's
+   * dispatcher thread.
+   * @see #getThreads()
+   * @see #setThreads(int)
+   */
+  protected int threads = 64;
+  /**
+   * Getter for {@link #threads}: The number of threads handling requests, or 0 to handle
+   * them all on the server's dispatcher thread.
+   * @return The number of threads handling requests.
+   */
+  public int getThreads() { return threads; }
+  /**
+   * Setter for {@link #threads}: The number of threads handling requests, or 0 to handle
+   * them all on the server's dispatcher thread.
+   * @param newThreads The number of threads handling requests.
+   */
+  public WebApp setThreads(int newThreads) { threads = newThreads; return this; }
+  
+  /**
+   * The maximum number of requests that may wait for a thread; further requests get a 503
+   * response.
+   * @see #getQueueLimit()
+   * @see #setQueueLimit(int)
+   */
+  protected int queueLimit = 256;
+  /**
+   * Getter for {@link #queueLimit}: The maximum number of requests that may wait for a
+   * thread.
+   * @return The maximum number of requests that may wait for a thread.
+   */
+  public int getQueueLimit() { return queueLimit; }
+  /**
+   * Setter for {@link #queueLimit}: The maximum number of requests that may wait for a
+   * thread.
+   * @param newQueueLimit The maximum number of requests that may wait for a thread.
+   */
+  public WebApp setQueueLimit(int newQueueLimit) { queueLimit = newQueueLimit; return this; }
+  
+  /**
+   * Whether each request has its own virtual thread, on Java 21 or later, rather than
+   * waiting for one of a pool of {@link #threads}.
+   * @see #getVirtualThreads()
+   * @see #setVirtualThreads(boolean)
+   */
+  protected boolean virtualThreads = false;
+  /**
+   * Getter for {@link #virtualThreads}: Whether each request has its own virtual thread.
+   * @return Whether each request has its own virtual thread.
+   */
+  public boolean getVirtualThreads() { return virtualThreads; }
+  /**
+   * Setter for {@link #virtualThreads}: Whether each request has its own virtual thread.
+   * @param newVirtualThreads Whether each request has its own virtual thread.
+   */
+  public WebApp setVirtualThreads(boolean newVirtualThreads) {
+    virtualThreads = newVirtualThreads; return this; }
+  
+  /** The threads handling requests, or null if they're handled on the dispatcher thread. */
+  protected WorkerPool workers;
+  
+  /**
+   * How clients may cache the files that are served.
+   * @see #getCachePolicy()
+   * @see #setCachePolicy(CachePolicy)
+   */
+  protected CachePolicy cachePolicy = new CachePolicy();
+  /**
+   * Getter for {@link #cachePolicy}: How clients may cache the files that are served.
+   * @return How clients may cache the files that are served.
+   */
+  public CachePolicy getCachePolicy() { return cachePolicy; }
+  /**
+   * Setter for {@link #cachePolicy}: How clients may cache the files that are served.
+   * @param newCachePolicy How clients may cache the files that are served.
+   */
+  public WebApp setCachePolicy(CachePolicy newCachePolicy) {
+    cachePolicy = newCachePolicy; return this; }
+  
   /**
    * Determines the content-type for a given resource name, using the file extension.
    * @param name
@@ -140,20 +364,31 @@ public class WebApp implements HttpHandler {
 
   /** HttpHandler method */
   public void handle(HttpExchange exchange) throws IOException {
+    if (WorkerPool.isRejecting()) { // too busy to handle the request now
+      exchange.getResponseHeaders().add("Retry-After", "1");
+      exchange.sendResponseHeaders(503, -1); // 503 = service unavailable
+      exchange.close();
+      return;
+    }
 
-    //Path path = Paths.get(urlPath.split("/"));
-    if ("GET".equals(exchange.getRequestMethod())) {
-      get(exchange);
-    } else if ("PUT".equals(exchange.getRequestMethod())) {
-      put(exchange);
-    } else if ("POST".equals(exchange.getRequestMethod())) {
-      post(exchange);
-    } else if ("DELETE".equals(exchange.getRequestMethod())) {
-      delete(exchange);
-    } else if ("OPTIONS".equals(exchange.getRequestMethod())) {
-      options(exchange);
-    } else {
-      exchange.sendResponseHeaders(400, -1);
+    inFlight.incrementAndGet();
+    try {
+      //Path path = Paths.get(urlPath.split("/"));
+      if ("GET".equals(exchange.getRequestMethod())) {
+        get(exchange);
+      } else if ("PUT".equals(exchange.getRequestMethod())) {
+        put(exchange);
+      } else if ("POST".equals(exchange.getRequestMethod())) {
+        post(exchange);
+      } else if ("DELETE".equals(exchange.getRequestMethod())) {
+        delete(exchange);
+      } else if ("OPTIONS".equals(exchange.getRequestMethod())) {
+        options(exchange);
+      } else {
+        exchange.sendResponseHeaders(400, -1);
+      }
+    } finally {
+      inFlight.decrementAndGet();
     }
   }
   
@@ -175,6 +410,10 @@ public class WebApp implements HttpHandler {
       exchange.getResponseBody().close();
       return;
     }
+    if (urlPath.equals("/wysiwiki/index")) { // entries of one directory of the index
+      getIndexEntries(exchange);
+      return;
+    }
     if (urlPath.indexOf(".") < 0) { // no dot, maybe a directory name?
       Path relativePath = content.getRoot().getFileSystem().getPath(".", urlPath.split("/"));
       Path path = content.getRoot().resolve(relativePath).normalize();
@@ -187,38 +426,33 @@ public class WebApp implements HttpHandler {
         return;
       }
     }    
-    InputStream contentStream = null;
-    int responseCode = 200;
+    if (urlPath.equals("/index.html")) { // the index is served from memory
+      getIndex(exchange);
+      return;
+    }
+    Path file = null;
+    BasicFileAttributes attributes = null;
     try {
-      contentStream = content.read(urlPath);
-    } catch (FileNotFoundException notFound) {
-      responseCode = 404;
+      file = content.readablePath(urlPath);
+      attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      if (!attributes.isRegularFile()) attributes = null;
+    } catch (FileSystemException notFound) {
+      // e.g. NoSuchFileException, or "Not a directory" for /page.html/other.html
+    } catch (IOException forbidden) { // outside the root, or a forbidden path
+      exchange.sendResponseHeaders(403, -1);
+      exchange.close();
+      return;
+    }
+    byte[] template = null;
+    if (attributes == null) {
       if (urlPath.endsWith(".html")) {
         // return 404, but also a template for creating a new document
-        
-        // if it's not a top-level document we need to edit the <base> tag on the way through
-        if (urlPath.indexOf('/', 1) >= 0) {
-          // for each slash in the path, we need to add "../" to the base href
-          int slashCount = urlPath.substring(1).split("/").length - 1;
-          String href = "";
-          for (int level = 0; level < slashCount; level++) href += "../";
-          String baseTag = "<base href=\""+href+"\">";
-          
-          // read the document into a string, converting the base tag, and write out the result 
-          StringBuilder template = new StringBuilder();
-          BufferedReader reader = new BufferedReader(
-            new InputStreamReader(content.read("/template.html")));
-          String line = reader.readLine();
-          while(line != null) {
-            template.append(line.replaceAll("<base href=\"\\./\">", baseTag));
-            template.append("\n");
-            line = reader.readLine();
-          } // next line
-          reader.close();
-          contentStream = new ByteArrayInputStream(template.toString().getBytes());
-        } else { // top level document, so just copy through the template as-is
-          contentStream = content.read("/template.html");
-        }
+        // from memory, as crawlers probing for missing pages make this a hot path
+        template = content.newPageTemplate(urlPath);
+      } else {
+        exchange.sendResponseHeaders(404, -1);
+        exchange.close();
+        return;
       }
     }
     
@@ -227,25 +461,188 @@ public class WebApp implements HttpHandler {
     if (contentType != null) {
       exchange.getResponseHeaders().add("Content-Type", contentType);
     }
-    if (urlPath.equals("/index.html")) { // make sure index is refreshable
-      exchange.getResponseHeaders().add( // expires in a week
-        "Cache-Control", "no-store");
+    String cacheControl = cachePolicy.cacheControl(urlPath);
+    if (cacheControl != null) {
+      exchange.getResponseHeaders().add("Cache-Control", cacheControl);
+    }
+    ByteRanges ranges = null;
+    if (attributes != null) { // add validators
+      exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+      long lastModified = attributes.lastModifiedTime().toMillis();
+      String eTag = cachePolicy.eTag(file, attributes);
+      exchange.getResponseHeaders().add("ETag", eTag);
+      exchange.getResponseHeaders().add(
+        "Last-Modified", CachePolicy.formatHttpDate(lastModified));
+      if (CachePolicy.notModified(
+            exchange.getRequestHeaders().getFirst("If-None-Match"),
+            CachePolicy.parseHttpDate(
+              exchange.getRequestHeaders().getFirst("If-Modified-Since")),
+            eTag, lastModified)) {
+        // no need to open the file
+        exchange.sendResponseHeaders(304, -1); // 304 = not modified
+        exchange.close();
+        return;
+      }
+      if (ByteRanges.ifRange(
+            exchange.getRequestHeaders().getFirst("If-Range"), eTag, lastModified)) {
+        ranges = ByteRanges.parse(
+          exchange.getRequestHeaders().getFirst("Range"), attributes.size(), contentType);
+      }
+    }
+
+    if (template != null) {
+      exchange.sendResponseHeaders(404, template.length);
+      OutputStream responseBody = exchange.getResponseBody();
+      responseBody.write(template);
+      responseBody.close();
+    } else if (ranges != null) {
+      sendRanges(exchange, file, ranges);
     } else {
-      exchange.getResponseHeaders().add( // expires in a week
-        "Expires", new Date(new Date().getTime() + (1000*60*60*24*7)).toString());
+      byte[] cached = content.cachedContent(file, attributes);
+      if (cached != null) { // frequently read small files are served from memory
+        exchange.sendResponseHeaders(200, cached.length == 0? -1 : cached.length);
+        OutputStream responseBody = exchange.getResponseBody();
+        responseBody.write(cached);
+        responseBody.close();
+      } else {
+        sendFile(exchange, file);
+      }
     }
-    
-    exchange.sendResponseHeaders(responseCode, 0);
-    
-    byte[] buf = new byte[8192];
-    int length;
-    OutputStream responseBody = exchange.getResponseBody();
-    while ((length = contentStream.read(buf)) > 0) {
-      responseBody.write(buf, 0, length);
+  }
+
+  /**
+   * Sends the contents of a file with a 200 response. The response has a fixed
+   * Content-Length rather than being chunked, and the content is transferred by the file's
+   * channel rather than being copied through a buffer here.
+   * @param exchange The request.
+   * @param file The file to send.
+   */
+  protected void sendFile(HttpExchange exchange, Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      exchange.sendResponseHeaders(200, size == 0? -1 : size); // -1 = no body
+      OutputStream responseBody = exchange.getResponseBody();
+      WritableByteChannel target = Channels.newChannel(responseBody);
+      long position = 0;
+      while (position < size) {
+        long transferred = channel.transferTo(position, size - position, target);
+        if (transferred <= 0) break; // file truncated since size was determined
+        position += transferred;
+      } // next chunk
+      responseBody.close();
+    } finally {
+      channel.close();
+    }
+  } // end of sendFile()
+
+  /**
+   * Sends the given byte ranges of a file with a 206 response, or a 416 response if none
+   * of the ranges are in the file. Each range is transferred from its position in the
+   * file's channel.
+   * @param exchange The request.
+   * @param file The file to send.
+   * @param ranges The ranges requested.
+   */
+  protected void sendRanges(HttpExchange exchange, Path file, ByteRanges ranges)
+    throws IOException {
+    if (!ranges.isSatisfiable()) {
+      exchange.getResponseHeaders().add("Content-Range", ranges.getContentRange());
+      exchange.sendResponseHeaders(416, -1); // 416 = range not satisfiable
+      exchange.close();
+      return;
+    }
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      if (ranges.isMultipart()) {
+        exchange.getResponseHeaders().set("Content-Type", ranges.getContentType());
+      } else {
+        exchange.getResponseHeaders().add("Content-Range", ranges.getContentRange());
+      }
+      exchange.sendResponseHeaders(206, ranges.getContentLength()); // 206 = partial
+      OutputStream responseBody = exchange.getResponseBody();
+      ranges.write(channel, Channels.newChannel(responseBody));
+      responseBody.close();
+    } finally {
+      channel.close();
     }
-    contentStream.close();
+  } // end of sendRanges()
+
+  /**
+   * Http GET for /index.html, which is served from memory. The response has an ETag so
+   * that clients can cheaply revalidate the index every time they use it. If
+   * {@link #lazyIndex} is set, only the top levels of the index are served.
+   */
+  protected void getIndex(HttpExchange exchange) throws IOException {
+    try {
+      ContentManager.IndexSnapshot index = content.getIndexSnapshot();
+      if (lazyIndex) {
+        sendIndex(exchange, index.getTopLevelBytes(), index.getTopLevelETag(),
+                  "text/html;charset=UTF-8");
+      } else {
+        sendIndex(exchange, index.getBytes(), index.getETag(), "text/html;charset=UTF-8");
+      }
+    } catch (IOException x) {
+      throw x;
+    } catch (Exception x) {
+      throw new IOException(x);
+    }
+  } // end of getIndex()
+
+  /**
+   * Http GET for /wysiwiki/index?id=..., which returns the entries of the directory with
+   * the given id as an HTML fragment, for index.js to insert when the directory is expanded.
+   */
+  protected void getIndexEntries(HttpExchange exchange) throws IOException {
+    String id = "/";
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null) {
+      for (String parameter : query.split("&")) {
+        if (parameter.startsWith("id=")) {
+          id = URLDecoder.decode(parameter.substring("id=".length()), "UTF-8");
+        }
+      } // next parameter
+    }
+    try {
+      ContentManager.IndexSnapshot index = content.getIndexSnapshot();
+      byte[] entries = index.getEntries(id);
+      if (entries == null) {
+        exchange.sendResponseHeaders(404, -1);
+        exchange.close();
+        return;
+      }
+      sendIndex(exchange, entries, ContentManager.etagFor(entries), "text/html;charset=UTF-8");
+    } catch (IOException x) {
+      throw x;
+    } catch (Exception x) {
+      throw new IOException(x);
+    }
+  } // end of getIndexEntries()
+
+  /**
+   * Sends (part of) the index from memory, or 304 if the client's copy is current.
+   * @param exchange The request.
+   * @param bytes The content to send.
+   * @param eTag The entity tag of the content.
+   * @param contentType The content type.
+   */
+  protected void sendIndex(HttpExchange exchange, byte[] bytes, String eTag, String contentType)
+    throws IOException {
+    exchange.getResponseHeaders().add("ETag", eTag);
+    // make sure index is refreshable
+    exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+    if (ContentManager.etagMatches(
+          exchange.getRequestHeaders().getFirst("If-None-Match"), eTag)) {
+      exchange.sendResponseHeaders(304, -1); // 304 = not modified
+      exchange.close();
+      return;
+    }
+    exchange.getResponseHeaders().add("Content-Type", contentType);
+    exchange.sendResponseHeaders(200, bytes.length);
+    OutputStream responseBody = exchange.getResponseBody();
+    responseBody.write(bytes);
     responseBody.close();
-  }
+  } // end of sendIndex()
 
   /** Http PUT */
   public void put(HttpExchange exchange) throws IOException {
@@ -268,8 +665,7 @@ public class WebApp implements HttpHandler {
           }
         }
         if (moveWhere == null) { // PUT full content                
-          // back up the old version
-          //TODO backup(html);
+          // (the old version is kept as a revision by the content manager)
           try {
             content.update(urlPath, exchange.getRequestBody());
           } catch(NoSuchFileException exception) {
@@ -289,10 +685,19 @@ public class WebApp implements HttpHandler {
     }
     exchange.sendResponseHeaders(responseCode, body.length());
     exchange.getResponseBody().write(body.getBytes());
+    exchange.getResponseBody().close();
   }
   
   /** Http POST */
   public void post(HttpExchange exchange) throws IOException {
+    if ("/wysiwiki/import".equals(exchange.getRequestURI().getPath())) {
+      importArchive(exchange);
+      return;
+    }
+    if ("/wysiwiki/post".equals(exchange.getRequestURI().getPath())) {
+      createPost(exchange);
+      return;
+    }
     try {
       exchange.getResponseHeaders().add("Content-Type", "text/plain;charset=UTF-8");
       String urlPath = exchange.getRequestURI().getPath();
@@ -317,43 +722,28 @@ public class WebApp implements HttpHandler {
           try {
             // parse the parts out of the request
             // take the first file we find
-            String boundary = contentType.substring("multipart/form-data; boundary=".length());
-            MultipartStream bodyParts = new MultipartStream(
-              exchange.getRequestBody(), boundary.getBytes(), 1024, null);
-            boolean nextPart = true;
-            nextPart = bodyParts.skipPreamble();
-            while (nextPart) {
-              String headers = bodyParts.readHeaders();
-              Matcher fileNameParser = Pattern.compile("filename=\"([^\"]+)\"").matcher(headers);
-              if (fileNameParser.find()) {
-                String fileName = fileNameParser.group(1);
-                file = path.toFile();
+            FileItemIterator parts = new FileUpload().getItemIterator(new UploadContext() {
+                public String getCharacterEncoding() { return null; }
+                public String getContentType() { return contentType; }
+                @Deprecated public int getContentLength() { return -1; }
+                public long contentLength() { return -1; }
+                public InputStream getInputStream() { return exchange.getRequestBody(); }
+              });
+            while (parts.hasNext()) {
+              FileItemStream part = parts.next();
+              if (!part.isFormField()) {
+                // written atomically, renamed if the name is taken
+                try (InputStream upload = part.openStream()) {
+                  file = content.createUnique(path, upload).toFile();
+                }
                 break;
               }
-              nextPart = bodyParts.readBoundary();
             } // next part
             
             if (file == null) {
               responseCode = 400;
               body = "No file received.";
             } else { // file found
-              
-              if (!file.getParentFile().exists()) {
-                Files.createDirectories(file.getParentFile().toPath());
-              }
-              if (file.exists()) {
-                // get a non-existent file name
-                File dir = file.getParentFile();
-                String name = file.getName().replaceAll("\\.[^.]*$","");
-                String ext = file.getName().replaceAll(".*\\.([^.]*)$","$1");
-                int i = 0;
-                do {
-                  file = new File(dir, name + "-" + (++i) + "." + ext);
-                } while(file.exists());
-              }
-              FileOutputStream output = new FileOutputStream(file);
-              bodyParts.readBodyData(output);
-              
               body = "."+urlPath.replaceAll("[^/]+$", file.getName());
             } // file found
           } catch (Exception x) {
@@ -365,12 +755,79 @@ public class WebApp implements HttpHandler {
       } // content type ok
       exchange.sendResponseHeaders(responseCode, body.length());
       exchange.getResponseBody().write(body.getBytes());
+      exchange.getResponseBody().close();
     } catch (Throwable t) {
       t.printStackTrace(System.err);
       throw t;
     }
   }
   
+  /**
+   * Http POST to /wysiwiki/import, whose body is a zip archive of files to create or update.
+   * The response has a line for each file, with its result, followed by a summary.
+   */
+  protected void importArchive(HttpExchange exchange) throws IOException {
+    exchange.getResponseHeaders().add("Content-Type", "text/plain;charset=UTF-8");
+    StringBuilder body = new StringBuilder();
+    int responseCode = 200;
+    try {
+      ContentManager.ImportReport report = content.importArchive(exchange.getRequestBody());
+      System.out.println(report);
+      for (Map.Entry<String,String> result : report.getResults().entrySet()) {
+        body.append(result.getKey()).append("\t").append(result.getValue()).append("\n");
+      } // next result
+      body.append(report).append("\n");
+    } catch (Exception x) {
+      x.printStackTrace(System.err);
+      responseCode = 400;
+      body.append(x.toString());
+    }
+    byte[] bytes = body.toString().getBytes("UTF-8");
+    exchange.sendResponseHeaders(responseCode, bytes.length);
+    exchange.getResponseBody().write(bytes);
+    exchange.getResponseBody().close();
+  } // end of importArchive()
+  
+  /**
+   * Http POST to /wysiwiki/post?path=...&title=..., which creates a blog post, and its year
+   * and month pages if necessary. The response is the URL path of the post, with status 409
+   * if the post already exists.
+   */
+  protected void createPost(HttpExchange exchange) throws IOException {
+    exchange.getResponseHeaders().add("Content-Type", "text/plain;charset=UTF-8");
+    String urlPath = null;
+    String title = "";
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null) {
+      for (String parameter : query.split("&")) {
+        if (parameter.startsWith("path=")) {
+          urlPath = URLDecoder.decode(parameter.substring("path=".length()), "UTF-8");
+        } else if (parameter.startsWith("title=")) {
+          title = URLDecoder.decode(parameter.substring("title=".length()), "UTF-8");
+        }
+      } // next parameter
+    }
+    String body = urlPath;
+    int responseCode = 200;
+    try {
+      if (urlPath == null) throw new IllegalArgumentException("No path specified.");
+      content.createPost(urlPath, title);
+    } catch (FileAlreadyExistsException exists) {
+      responseCode = 409; // 409 = conflict
+    } catch (IllegalArgumentException x) {
+      responseCode = 400;
+      body = x.getMessage();
+    } catch (Exception x) {
+      x.printStackTrace(System.err);
+      responseCode = 500;
+      body = x.toString();
+    }
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.sendResponseHeaders(responseCode, bytes.length);
+    exchange.getResponseBody().write(bytes);
+    exchange.getResponseBody().close();
+  } // end of createPost()
+  
   /** Http DELETE */
   public void delete(HttpExchange exchange) throws IOException {
     exchange.getResponseHeaders().add("Content-Type", "text/plain;charset=UTF-8");
@@ -387,6 +844,7 @@ public class WebApp implements HttpHandler {
     }
     exchange.sendResponseHeaders(responseCode, body.length());
     exchange.getResponseBody().write(body.getBytes());
+    exchange.getResponseBody().close();
   }
   
   /** Http OPTIONS */
@@ -399,8 +857,19 @@ public class WebApp implements HttpHandler {
    * Creates the web server.
    */
   protected void createServer() throws IOException {
+    // send responses as soon as they're written; otherwise Nagle's algorithm holds back the
+    // body until the client ACKs the headers, which can take 40ms with delayed ACKs
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
     // create web server
-    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server = HttpServer.create(
+      bind == null? new InetSocketAddress(port) : new InetSocketAddress(bind, port), 0);
+    if (threads > 0 || virtualThreads) {
+      workers = new WorkerPool(threads, queueLimit, virtualThreads);
+      server.setExecutor(workers);
+      System.out.println("workers: " + workers);
+    }
   } // end of createServer()
   
   /**
@@ -408,7 +877,18 @@ public class WebApp implements HttpHandler {
    */
   protected void createContentManager() throws Exception {
     System.out.println("root: " + root.getPath());
-    content = new ContentManager().setRoot(root);
+    content = new ContentManager()
+      .setReconcileOnLoad(Boolean.getBoolean("wysiwiki.reconcile"))
+      .setContentCacheSize(Long.getLong("wysiwiki.contentCacheSize", 0))
+      .setFsyncPolicy(ContentManager.FsyncPolicy.valueOf(
+                        System.getProperty("wysiwiki.fsync", "none").toUpperCase()))
+      .setFsyncInterval(Long.getLong("wysiwiki.fsyncInterval", 1000))
+      .setKeepRevisions(Boolean.getBoolean("wysiwiki.revisions"))
+      .setMaxRevisions(Integer.getInteger("wysiwiki.maxRevisions", 100))
+      .setMaxRevisionAge(Integer.getInteger("wysiwiki.maxRevisionAge", 0))
+      .setRoot(root);
+    System.out.println("fsync: " + content.getFsyncPolicy());
+    if (watch) content.startWatching();
   } // end of createContentManager()
 
   /**
@@ -424,21 +904,89 @@ public class WebApp implements HttpHandler {
   /** Start handling requests  */
   public void start() {
     try {
+      long started = System.currentTimeMillis();
       if (server == null) {
         createServer();
         createContentManager();
         addHandlers();
       }
       
-      server.setExecutor(null);
       server.start();
+      // stop gracefully when the process is terminated
+      shutdownHook = new Thread(() -> stop(), "wysiwiki-shutdown");
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+      String url = "http://" + (bind == null? "localhost" : bind)
+        + ":" + server.getAddress().getPort() + "/home.html";
+      System.out.println(
+        "Serving " + url + " (started in " + (System.currentTimeMillis() - started) + "ms)");
       
-      // open browser
-      java.awt.Desktop.getDesktop().browse(new URI("http://localhost:" + port + "/home.html"));
+      if (!headless) {
+        // open browser
+        java.awt.Desktop.getDesktop().browse(new URI(url));
+      }
       
     } catch(Exception exception) {
       System.err.println("ERROR: " + exception);
       exception.printStackTrace(System.err);
     }
   }
+  
+  /** The shutdown hook registered by {@link #start()}. */
+  protected Thread shutdownHook;
+  
+  /** The number of requests being handled. */
+  protected final AtomicInteger inFlight = new AtomicInteger();
+  
+  /**
+   * Stops the server gracefully: no new connections are accepted, requests in progress are
+   * given up to {@link #shutdownTimeout} seconds to finish, and then any deferred changes to
+   * the index are written. This is called by a shutdown hook when the process is
+   * terminated.
+   */
+  public synchronized void stop() {
+    if (server == null) return;
+    System.out.println("Stopping...");
+    long deadline = System.currentTimeMillis() + shutdownTimeout * 1000L;
+    // HttpServer.stop stops accepting connections straight away, but then only notices
+    // there are no exchanges in progress when one finishes, so it can wait out the whole
+    // delay even if the server is idle; so it's left to finish in the background, and
+    // requests are drained here instead
+    final HttpServer stopping = server;
+    Thread serverStopper = new Thread(
+      () -> stopping.stop(shutdownTimeout), "wysiwiki-server-stop");
+    serverStopper.setDaemon(true);
+    serverStopper.start();
+    server = null;
+    try {
+      if (workers != null) { // finish queued requests
+        workers.shutdown();
+        workers.awaitTermination(
+          Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      }
+      while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+    } catch(InterruptedException exception) {
+    }
+    if (inFlight.get() > 0) {
+      System.err.println("WebApp.stop: " + inFlight.get()
+                         + " requests still in progress after " + shutdownTimeout + "s");
+    }
+    workers = null;
+    if (content != null) {
+      try {
+        content.shutdown(); // writes any pending index changes
+      } catch(Exception exception) {
+        System.err.println("WebApp.stop: " + exception);
+      }
+    }
+    if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch(IllegalStateException alreadyShuttingDown) {
+      }
+    }
+    shutdownHook = null;
+    System.out.println("Stopped");
+  } // end of stop()
 }
@@ -0,0 +1,197 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.standalone;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The threads that handle requests for {@link WebApp}, so that one slow upload or download
+ * doesn't hold up everyone else's requests.
+ * <p> By default this is a bounded pool of threads, with a limited queue of requests
+ * waiting for a thread. Alternatively, on Java 21 or later, each request can have its own
+ * virtual thread, with a limit on the number of requests being handled at once.
+ * <p> Requests that arrive when the pool and its queue are full are rejected. As the
+ * request must still be read before it can be answered, a rejected request is run on the
+ * server's dispatcher thread with {@link #isRejecting()} set, so that the handler sends
+ * 503 Service Unavailable straight away rather than handling it.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class WorkerPool implements Executor {
+
+  /** Whether the current thread is running a request that has been rejected. */
+  private static final ThreadLocal<Boolean> rejecting = new ThreadLocal<Boolean>();
+
+  /**
+   * Determines whether the current request has been rejected because the pool is full,
+   * in which case the handler should respond with 503 Service Unavailable.
+   * @return true if the current request should be rejected.
+   */
+  public static boolean isRejecting() {
+    return Boolean.TRUE.equals(rejecting.get());
+  } // end of isRejecting()
+
+  /** The executor that runs requests. */
+  private final ExecutorService workers;
+
+  /** Whether requests have virtual threads. */
+  private final boolean virtual;
+
+  /** The number of threads in the pool. */
+  private final int threads;
+
+  /** The maximum number of requests being handled or waiting to be handled. */
+  private final int maxRequests;
+
+  /** The number of requests being handled or waiting to be handled. */
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /** The number of requests rejected. */
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param threads The number of threads handling requests.
+   * @param queueLimit The maximum number of requests that may wait for a thread.
+   * @param virtualThreads Whether to give each request its own virtual thread instead,
+   * with up to <var>threads</var> + <var>queueLimit</var> requests at once. This is
+   * ignored, with a warning, if virtual threads aren't available.
+   */
+  public WorkerPool(int threads, int queueLimit, boolean virtualThreads) {
+    this.threads = threads;
+    this.maxRequests = threads + queueLimit;
+    ExecutorService executor = null;
+    if (virtualThreads) {
+      try { // Java 21 or later
+        executor = (ExecutorService)Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch(Exception exception) {
+        System.err.println(
+          "WorkerPool: virtual threads are not available, using " + threads + " threads");
+      }
+    }
+    virtual = executor != null;
+    if (executor == null) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      BlockingQueue<Runnable> queue = queueLimit > 0?
+        new ArrayBlockingQueue<Runnable>(queueLimit) : new SynchronousQueue<Runnable>();
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(
+        threads, threads, 60, TimeUnit.SECONDS, queue,
+        task -> {
+          Thread thread = new Thread(
+            task, "wysiwiki-worker-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        },
+        (task, full) -> reject(task));
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    }
+    workers = executor;
+  } // end of constructor
+
+  /**
+   * Runs a request, or rejects it if the pool is full.
+   * @param task The request.
+   */
+  @Override public void execute(Runnable task) {
+    if (!virtual) { // the pool's queue limits the number of requests
+      workers.execute(task);
+      return;
+    }
+    if (inFlight.incrementAndGet() > maxRequests) {
+      inFlight.decrementAndGet();
+      reject(task);
+      return;
+    }
+    try {
+      workers.execute(() -> {
+          try {
+            task.run();
+          } finally {
+            inFlight.decrementAndGet();
+          }
+        });
+    } catch(RejectedExecutionException shutDown) {
+      inFlight.decrementAndGet();
+      reject(task);
+    }
+  } // end of execute()
+
+  /**
+   * Rejects a request, by running it on the current thread with {@link #isRejecting()} set.
+   * @param task The request.
+   */
+  protected void reject(Runnable task) {
+    rejected.incrementAndGet();
+    rejecting.set(Boolean.TRUE);
+    try {
+      task.run();
+    } finally {
+      rejecting.remove();
+    }
+  } // end of reject()
+
+  /**
+   * Whether requests have virtual threads.
+   * @return true if each request has its own virtual thread, false if there's a pool.
+   */
+  public boolean isVirtual() { return virtual; }
+
+  /**
+   * The number of requests rejected because the pool was full.
+   * @return The number of requests rejected.
+   */
+  public long getRejected() { return rejected.get(); }
+
+  /**
+   * Stops handling new requests; those already running or queued are finished.
+   */
+  public void shutdown() {
+    workers.shutdown();
+  } // end of shutdown()
+
+  /**
+   * Waits for requests already running or queued to finish, after {@link #shutdown()}.
+   * @param timeout The maximum time to wait.
+   * @param unit The unit of <var>timeout</var>.
+   * @return true if all requests finished, false if the timeout elapsed first.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit)
+    throws InterruptedException {
+    return workers.awaitTermination(timeout, unit);
+  } // end of awaitTermination()
+
+  @Override public String toString() {
+    return (virtual? "virtual threads" : threads + " threads")
+      + ", up to " + maxRequests + " requests";
+  } // end of toString()
+
+} // end of class WorkerPool
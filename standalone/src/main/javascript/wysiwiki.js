@@ -403,71 +403,6 @@ function newPost() {
     const now = new Date()
     const dateParts = now.toDateString().split(" ");
 
-    const ensureYearPageExists = new Promise((resolve, reject) => {
-        // posts are created under yyyy/mm/... so we make sure that the year directory exists
-        const yearPath = now.toISOString().substring(0,4) + ".html";
-        const yearUrl = `${postParent}/${yearPath}`;
-        let oYearReq = new XMLHttpRequest();
-        oYearReq.open("GET", yearUrl);
-        oYearReq.addEventListener("load", function(e) {
-            if (this.status == 404) { // page doesn't exist yet
-                // create the page
-                let yearHtml = this.responseText;
-                // ...with just the year name as the title
-                const yearName = now.toISOString().substring(0,4);
-                yearHtml = yearHtml
-                    .replace(/<article>.*<\/article>/, `<article><h2>${yearName}</h2></article>`)
-                    .replace(/<title>[^<]*<\/title>/, `<title>${yearName}</title>`);
-                // create the document TODO
-                oYearReq = new XMLHttpRequest();
-                oYearReq.open("PUT", yearUrl);
-                oYearReq.addEventListener("load", function(e) {
-                    if (this.status == 200) {
-                        resolve();
-                    } else {
-                        reject();
-                    }
-                });
-                oYearReq.send(yearHtml);
-            } else {
-                resolve();
-            }
-        });
-        oYearReq.send();
-    });
-    const ensureMonthPageExists = new Promise((resolve, reject) => {
-        // posts are created under yyyy/mm/... so we make sure that the mont directory exists
-        const monthPath = now.toISOString().replace(/-/g,"/").substring(0,7) + ".html";
-        const monthUrl = `${postParent}/${monthPath}`;
-        let oMonthReq = new XMLHttpRequest();
-        oMonthReq.open("GET", monthUrl);
-        oMonthReq.addEventListener("load", function(e) {
-            if (this.status == 404) { // page doesn't exist yet
-                // create the page
-                let monthHtml = this.responseText;
-                // ...with just the month name as the title
-                const monthName = dateParts[1];
-                monthHtml = monthHtml
-                    .replace(/<article>.*<\/article>/, `<article><h2>${monthName}</h2></article>`)
-                    .replace(/<title>[^<]*<\/title>/, `<title>${monthName}</title>`);
-                // create the document TODO
-                oMonthReq = new XMLHttpRequest();
-                oMonthReq.open("PUT", monthUrl);
-                oMonthReq.addEventListener("load", function(e) {
-                    if (this.status == 200) {
-                        resolve();
-                    } else {
-                        reject();
-                    }
-                });
-                oMonthReq.send(monthHtml);
-            } else {
-                resolve();
-            }
-        });
-        oMonthReq.send();
-    });
-    
     // default path is yyyy/mm/dd-hh.mm
     let postPath = now
         .toISOString().replace(/-/g,"/").replace(/T/,"-").replace(/:/g,".").substring(0,16)
@@ -480,23 +415,32 @@ function newPost() {
     }
     
     const timeWithoutSeconds = now.toTimeString().replace(/:[^:]*$/,"");
-    if (title) { // append timestamp, delimited by tab %09
+    if (title) { // append timestamp, delimited by tab
          // "Mon 28 Feb 2022, 13:12" 
-        title += `%09${dateParts[0]} ${dateParts[2]} ${dateParts[1]}  ${dateParts[3]}, ${timeWithoutSeconds}`;
+        title += `\t${dateParts[0]} ${dateParts[2]} ${dateParts[1]}  ${dateParts[3]}, ${timeWithoutSeconds}`;
     } else { // use timestamp as title
         // "Mon 28, 13:12" - short version because it appears in the index, long titles are annoying
         title = `${dateParts[0]} ${dateParts[2]}, ${timeWithoutSeconds}`; 
     }
     
-    let url = `${postParent}/${postPath}`;
-    if (title) {
-        url += `#${title}`;
-    }
-    ensureYearPageExists.then(()=>{
-        ensureMonthPageExists.then(()=>{
-            window.top.location = url;
-        });
+    // the server creates the year and month pages if necessary, and the post, all at once
+    const url = `${postParent}/${postPath}`;
+    const urlPath = url.substring(document.baseURI.replace(/\/[^\/]*$/,"").length);
+    let oReq = new XMLHttpRequest();
+    oReq.addEventListener("load", function(e) {
+        if (this.status == 200 || this.status == 409) { // created, or already exists
+            // open the post for editing
+            window.top.location = `${url}#edit`;
+        } else {
+            console.error(`${this.status}: ${this.statusText}\n${this.responseText}`);
+        }
+    });
+    oReq.addEventListener("error", function(r) {
+        console.error(`${r.status}: ${r.statusText}\n${r.responseText}`);
     });
+    oReq.open("POST", "wysiwiki/post"
+              + `?path=${encodeURIComponent(urlPath)}&title=${encodeURIComponent(title)}`);
+    oReq.send();
 }
 
 // Slugify a string
@@ -608,7 +552,12 @@ window.addEventListener("load", function(e) {
             aside.appendChild(loginButton);
         }
         
-        if (creating) {
+        let editNow = creating;
+        if (editable && window.location.hash == "#edit") { // e.g. a new post
+            history.replaceState(null, "", document.URL.replace(/#.*/,""));
+            editNow = true;
+        }
+        if (editNow) {
             window.setTimeout( () => {
                 editPage();
             }, 2000); // wait a couple of seconds to allow ckeditor5Script to load
@@ -19,7 +19,16 @@ function reportDimensions() {
     window.top.postMessage(message, "*");
 }
 
+// Resolves once the index has been expanded to the current page
+let menuExpanded = Promise.resolve();
+
 function expandMenu(e) {
+    menuExpanded = expandToCurrent();
+    listenForExpansion(document);
+    reportDimensions();
+}
+
+async function expandToCurrent() {
     let currentUrl = document.referrer;
     if (!currentUrl && window.location.hash) {
         // loading from file:// URLs prevents document.referrer, so use hash instead
@@ -29,36 +38,74 @@ function expandMenu(e) {
         currentId = currentUrl.substring(baseURL.length)
               .replace(/\.html$/,"");
         if (currentId == "/home") currentId = "/";
-        let item = document.getElementById(currentId);
         
-        // Expand the index tree to current page
+        // Expand the index tree to current page, from the top down, as the entries of
+        // each directory may have to be loaded before its subdirectories exist
+        const ancestorIds = [];
         let expandId = currentId;
-        let details = document.getElementById(expandId);
         while (expandId && expandId != "/") {
-            if (details) {
-                details.parentElement.setAttribute("open", true);
-            }
+            ancestorIds.unshift(expandId);
             const nextExpandId = expandId.replace(/\/[^\/]*$/,"");
             if (nextExpandId == expandId) break; // something went wrong, give up
             expandId = nextExpandId;
-            details = document.getElementById(expandId);
         } // next ancestor in the tree
+        for (let id of ancestorIds) {
+            const item = document.getElementById(id);
+            if (!item) break; // not in the index
+            await loadEntries(item.parentElement);
+            item.parentElement.setAttribute("open", true);
+        } // next ancestor
 
+        let item = document.getElementById(currentId);
         if (item) { // the page exists            
             // Mark the current page in the index
             item.classList.add("current");
         } // the page exists
+        reportDimensions();
     }
+}
+
+function listenForExpansion(element) {
     // resize when details expanded
-    const collection = document.getElementsByTagName("details");
+    const collection = element.getElementsByTagName("details");
     for (let i = 0; i < collection.length; i++) {
         collection[i].addEventListener('click', e => {
             setTimeout(()=>{
                 reportDimensions();
             }, 100);
         });
+        // for very large indices, the entries of directories are loaded when expanded
+        if (collection[i].dataset.lazy) {
+            collection[i].addEventListener('toggle', e => {
+                if (e.target.open) loadEntries(e.target).then(reportDimensions);
+            });
+        }
     }
-    reportDimensions();
+}
+
+// Load the entries of a directory that were left out of the index
+function loadEntries(details) {
+    if (!details.dataset.lazy) return Promise.resolve();
+    if (details.loading) return details.loading;
+    const summary = details.querySelector("summary");
+    details.loading = fetch(`${baseURL}/wysiwiki/index?id=${encodeURIComponent(summary.id)}`)
+        .then(response => {
+            if (!response.ok) throw new Error(`${response.status}: ${response.statusText}`);
+            return response.text();
+        }).then(html => {
+            const entries = document.createElement("div");
+            entries.innerHTML = html;
+            const followingSummary = summary.nextSibling;
+            while (entries.firstChild) {
+                details.insertBefore(entries.firstChild, followingSummary);
+            }
+            delete details.dataset.lazy;
+            listenForExpansion(details);
+        }).catch(error => {
+            console.error(`${summary.id}: ${error}`);
+            details.loading = null;
+        });
+    return details.loading;
 }
 window.addEventListener("load", expandMenu, false);
 window.addEventListener("hashchange", expandMenu, false);
@@ -69,7 +116,7 @@ window.addEventListener("resize", function(e) {
 window.addEventListener("message", function(e) {
     // message that was passed from iframe page
     const message = e.data;
-    if (message == "editable") addButtons();
+    if (message == "editable") menuExpanded.then(addButtons);
 }, false);
 
 function addButtons() {
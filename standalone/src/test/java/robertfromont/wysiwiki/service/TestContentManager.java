@@ -26,6 +26,7 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -36,10 +37,7 @@ import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
-import org.w3c.dom.Element;
+import java.util.Vector;
 
 /**
  * Tests ContentManager.
@@ -69,6 +67,37 @@ public class TestContentManager {
     manager = new ContentManager().setRoot(root);
   }
 
+  /** Temporary directories created by {@link #tempDir()}. */
+  final List<File> tempDirs = new Vector<File>();
+  
+  /**
+   * Creates a temporary directory, which is deleted, with its contents, after the test.
+   * @return The new directory.
+   */
+  File tempDir() throws IOException {
+    File dir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+    tempDirs.add(dir);
+    return dir;
+  }
+  
+  @After
+  public void deleteTempDirs() throws IOException {
+    for (File dir : tempDirs) deleteRecursively(dir.toPath());
+    tempDirs.clear();
+  }
+  
+  /**
+   * Deletes a file, or a directory and its contents.
+   * @param path The file or directory, which need not exist.
+   * @throws IOException If the directory can't be walked.
+   */
+  public static void deleteRecursively(Path path) throws IOException {
+    if (!Files.exists(path)) return;
+    Files.walk(path)
+      .sorted(java.util.Comparator.reverseOrder())
+      .forEach(p -> p.toFile().delete());
+  }
+
   public static File dir() throws Exception { 
     URL urlThisClass = ContentManager.class.getResource(
       TestContentManager.class.getSimpleName() + ".class");
@@ -185,6 +214,7 @@ public class TestContentManager {
     String[] paths = {
       "/META-INF/context.xml",
       "/WEB-INF/web.xml",
+      "/.wysiwiki/index.bin",
       "/../../pom.xml",
       "/WEB-INF/../../../pom.xml"
     };
@@ -210,6 +240,7 @@ public class TestContentManager {
     String[] paths = {
       "/META-INF/context.xml",
       "/WEB-INF/web.xml",
+      "/.wysiwiki/index.bin",
       "../../pom.xml",
       "/WEB-INF/../../../pom.xml",
       "/wysiwiki/index.html",
@@ -315,9 +346,7 @@ public class TestContentManager {
     diff(initialIndex, indexHtml);
 
     // isn't in index
-    XPath xpath = XPathFactory.newInstance().newXPath();
-    Element item = (Element)xpath.evaluate(
-      "//*[@id='/test/test']", manager.index, XPathConstants.NODE);
+    IndexNode item = manager.indexItems.get("/test/test");
     assertNull("File isn't indexed yet", item);
 
     // can be created
@@ -381,12 +410,11 @@ public class TestContentManager {
     }
 
     // has been indexed
-    item = (Element)xpath.evaluate(
-      "//*[@id='/test/test']", manager.index, XPathConstants.NODE);
+    item = manager.indexItems.get("/test/test");
     assertNotNull("File now indexed", item);
-    assertEquals("Title in index", "create", item.getTextContent());
+    assertEquals("Title in index", "create", item.getTitle());
     assertNull("index.html not itself in the index",
-               xpath.evaluate("//*[@id='/index']", manager.index, XPathConstants.NODE));
+               manager.indexItems.get("/index"));
     
     // can't be created again
     try {
@@ -456,10 +484,9 @@ public class TestContentManager {
       }, indexHtml);
     
     // index has been updated
-    item = (Element)xpath.evaluate(
-      "//*[@id='/test/test']", manager.index, XPathConstants.NODE);
+    item = manager.indexItems.get("/test/test");
     assertNotNull("File still indexed", item);
-    assertEquals("New title in index", "update", item.getTextContent());
+    assertEquals("New title in index", "update", item.getTitle());
 
     // can be updated again
     manager.update(path, new ByteArrayInputStream("<title>úpdate 2</title>".getBytes()));
@@ -522,13 +549,12 @@ public class TestContentManager {
       }, indexHtml);
 
     // index has been updated again
-    item = (Element)xpath.evaluate(
-      "//*[@id='/test/test']", manager.index, XPathConstants.NODE);
+    item = manager.indexItems.get("/test/test");
     assertNotNull("File still indexed", item);
-    assertEquals("New title in index", "úpdate 2", item.getTextContent());
+    assertEquals("New title in index", "úpdate 2", item.getTitle());
 
     // convert into a directory
-    assertEquals("Index item is div before adding child", "div", item.getTagName());
+    assertFalse("Index item is document before adding child", item.isDirectory());
     manager.create(path2, new ByteArrayInputStream("child".getBytes()));    
 
     // check index
@@ -585,9 +611,8 @@ public class TestContentManager {
       }, indexHtml);
 
     // index item changed
-    item = (Element)xpath.evaluate(
-      "//*[@id='/test/test']", manager.index, XPathConstants.NODE);
-    assertEquals("Index item is details after adding child", "summary", item.getTagName());
+    item = manager.indexItems.get("/test/test");
+    assertTrue("Index item is directory after adding child", item.isDirectory());
 
     // create peer in /test, so it's not deleted
     manager.create(path3, new ByteArrayInputStream("peer".getBytes()));
@@ -699,7 +724,7 @@ public class TestContentManager {
         "                </summary>",
         "                <details>",
         "                    <summary id=\"/test/test\">",
-        "                        test<a class=\"new-page\" href=\"/test/test.html\">+</a>",
+        "                        test<a class=\"new-page\" href=\"test/test.html\">+</a>",
         "                    </summary>",
         "                    <div id=\"/test/test/test\">",
         "                        <a href=\"test/test/test.html\">test</a>",
@@ -715,14 +740,13 @@ public class TestContentManager {
       }, indexHtml);
 
     // index item is still there, but named after directory
-    item = (Element)xpath.evaluate(
-      "//*[@id='/test/test']", manager.index, XPathConstants.NODE);
-    assertEquals("Directory name + plus in index", "test+", item.getTextContent());
+    item = manager.indexItems.get("/test/test");
+    assertNull("No title in index", item.getTitle());
+    assertEquals("Directory name in index", "test", item.getName());
 
     // delete child
     manager.delete(path2);
-    item = (Element)xpath.evaluate(
-      "//*[@id='/test/test']", manager.index, XPathConstants.NODE);
+    item = manager.indexItems.get("/test/test");
     assertNull("File no longer indexed", item);
         
     // check index
@@ -774,8 +798,7 @@ public class TestContentManager {
       }, indexHtml);
 
     manager.delete(path3); // be tidy
-    item = (Element)xpath.evaluate(
-      "//*[@id='/test']", manager.index, XPathConstants.NODE);
+    item = manager.indexItems.get("/test");
     assertNull("Directory no longer indexed", item);
     // check index
     diff(new String[] {
@@ -1223,6 +1246,988 @@ public class TestContentManager {
     diff(startIndex, indexHtml);
   }
   
+  /** Ensure the id lookup table stays consistent with the index tree. */
+  @Test public void indexItemsConsistent() throws Exception {
+    assertIndexItemsConsistent("initial");
+
+    manager.create("/items/child.html", new ByteArrayInputStream("<title>child</title>".getBytes()));
+    assertIndexItemsConsistent("create child of new directory");
+    assertNotNull("Directory indexed", manager.indexItems.get("/items"));
+    assertTrue("Directory is directory", manager.indexItems.get("/items").isDirectory());
+    
+    manager.create("/items.html", new ByteArrayInputStream("<title>items</title>".getBytes()));
+    assertIndexItemsConsistent("create directory document");
+    
+    manager.create("/items/peer.html", new ByteArrayInputStream("<title>peer</title>".getBytes()));
+    assertIndexItemsConsistent("create peer");
+    
+    manager.move("/items/peer", "up");
+    assertIndexItemsConsistent("move");
+    
+    manager.update("/items/child.html", new ByteArrayInputStream("<title>changed</title>".getBytes()));
+    assertIndexItemsConsistent("update title");
+    
+    manager.create("/items/child/grandchild.html",
+                   new ByteArrayInputStream("<title>grandchild</title>".getBytes()));
+    assertIndexItemsConsistent("file entry becomes directory entry");
+    assertTrue("Former file entry is directory",
+               manager.indexItems.get("/items/child").isDirectory());
+    
+    manager.delete("/items/child.html");
+    assertIndexItemsConsistent("delete child");
+    manager.delete("/items/child/grandchild.html");
+    assertIndexItemsConsistent("delete grandchild");
+    manager.delete("/items.html");
+    assertIndexItemsConsistent("delete directory document");
+    manager.delete("/items/peer.html");
+    assertIndexItemsConsistent("delete peer");
+    assertNull("Directory no longer indexed", manager.indexItems.get("/items"));
+    
+    // be tidy
+    new File(new File(new File(dir(), "items"), "child"), "grandchild.html").delete();
+    new File(new File(dir(), "items"), "child").delete();
+    new File(dir(), "items").delete();
+  }
+  
+  /** Ensure index.html writes can be deferred and coalesced. */
+  @Test public void indexWriteBehind() throws Exception {
+    File indexHtml = new File(dir(), "index.html");
+    String[] startIndex = Files.readAllLines(indexHtml.toPath()).stream()
+      .filter(line -> line.trim().length() > 0).toArray(String[]::new);
+    try {
+      manager.setIndexWriteDelay(60000).setIndexWriteMaxDelay(60000);
+      
+      manager.create("/deferred1.html", new ByteArrayInputStream("deferred1".getBytes()));
+      manager.create("/deferred2.html", new ByteArrayInputStream("deferred2".getBytes()));
+      diff(startIndex, indexHtml); // not written yet
+      assertNotNull("Index in memory is up to date", manager.indexItems.get("/deferred2"));
+      
+      manager.flushIndex();
+      String written = new String(Files.readAllBytes(indexHtml.toPath()), "UTF-8");
+      assertTrue("First change written", written.contains("id=\"/deferred1\""));
+      assertTrue("Second change written", written.contains("id=\"/deferred2\""));
+
+      // the maximum delay applies even if the quiet period hasn't elapsed
+      manager.setIndexWriteMaxDelay(100);
+      manager.delete("/deferred1.html");
+      written = new String(Files.readAllBytes(indexHtml.toPath()), "UTF-8");
+      assertTrue("Change not written yet", written.contains("id=\"/deferred1\""));
+      long giveUp = System.currentTimeMillis() + 10000;
+      while (written.contains("id=\"/deferred1\"") && System.currentTimeMillis() < giveUp) {
+        Thread.sleep(50);
+        written = new String(Files.readAllBytes(indexHtml.toPath()), "UTF-8");
+      }
+      assertFalse("Change written after maximum delay", written.contains("id=\"/deferred1\""));
+      
+      manager.delete("/deferred2.html");
+    } finally {
+      manager.setIndexWriteDelay(0).setIndexWriteMaxDelay(5000);
+      manager.shutdown(); // flushes
+    }
+    diff(startIndex, indexHtml);
+  }
+  
+  /** Ensure the serialized index is cached, and kept in step with index.html. */
+  @Test public void indexSnapshot() throws Exception {
+    File indexHtml = new File(dir(), "index.html");
+    ContentManager.IndexSnapshot snapshot = manager.getIndexSnapshot();
+    assertArrayEquals("Snapshot matches index.html",
+                      Files.readAllBytes(indexHtml.toPath()), snapshot.getBytes());
+    assertSame("Snapshot is cached", snapshot, manager.getIndexSnapshot());
+    assertTrue("ETag is strong and quoted", snapshot.getETag().matches("\"[^\"]+\""));
+    
+    manager.create("/snapshot.html", new ByteArrayInputStream("snapshot".getBytes()));
+    ContentManager.IndexSnapshot changed = manager.getIndexSnapshot();
+    assertNotSame("Snapshot is refreshed after a change", snapshot, changed);
+    assertFalse("ETag changes", snapshot.getETag().equals(changed.getETag()));
+    assertArrayEquals("Snapshot matches updated index.html",
+                      Files.readAllBytes(indexHtml.toPath()), changed.getBytes());
+    assertNotSame("Changed directory is copied", snapshot.index, changed.index);
+    for (int c = 0; c < snapshot.index.getChildCount(); c++) {
+      IndexNode unchanged = snapshot.index.getChild(c);
+      assertSame("Unchanged entry is shared: " + unchanged,
+                 unchanged, changed.index.find(unchanged.getId()));
+    }
+    
+    manager.delete("/snapshot.html");
+    assertArrayEquals("Snapshot matches reverted index.html",
+                      Files.readAllBytes(indexHtml.toPath()),
+                      manager.getIndexSnapshot().getBytes());
+
+    assertTrue("Exact match", ContentManager.etagMatches("\"x\"", "\"x\""));
+    assertTrue("Match in list", ContentManager.etagMatches("\"y\", \"x\"", "\"x\""));
+    assertTrue("Weak match", ContentManager.etagMatches("W/\"x\"", "\"x\""));
+    assertTrue("Wildcard", ContentManager.etagMatches("*", "\"x\""));
+    assertFalse("Mismatch", ContentManager.etagMatches("\"y\"", "\"x\""));
+    assertFalse("No header", ContentManager.etagMatches(null, "\"x\""));
+  }
+  
+  /** Ensure creating the index in parallel gives the same result as creating it serially. */
+  @Test public void parallelCreateIndex() throws Exception {
+    File root = tempDir();
+    // generate a site with a mix of documents, directories with and without documents,
+    // and documents with directories of the same name
+    for (int d = 0; d < 4; d++) {
+      File dir = new File(root, "dir" + d);
+      for (int s = 0; s < 3; s++) {
+        File subdir = new File(dir, "subdir" + s);
+        subdir.mkdirs();
+        for (int f = 0; f < 5; f++) {
+          Files.write(new File(subdir, "doc" + f + ".html").toPath(),
+                      ("<title>Document "+d+"."+s+"."+f+"</title>").getBytes());
+        }
+        if (s != 1) {
+          Files.write(new File(dir, "subdir" + s + ".html").toPath(),
+                      ("<title>Subdirectory "+d+"."+s+"</title>").getBytes());
+        }
+      }
+      if (d % 2 == 0) {
+        Files.write(new File(root, "dir" + d + ".html").toPath(),
+                    ("<title>Directory "+d+"</title>").getBytes());
+      }
+      Files.write(new File(root, "doc" + d + ".html").toPath(),
+                  ("<title>Document "+d+"</title>").getBytes());
+    }
+    File indexHtml = new File(root, "index.html");
+    
+    new ContentManager().setIndexParallelism(1).setRoot(root);
+    byte[] serial = Files.readAllBytes(indexHtml.toPath());
+    assertTrue("Index was created", new String(serial, "UTF-8").contains("Document 3.2.4"));
+    
+    indexHtml.delete();
+    ContentManager parallel = new ContentManager().setIndexParallelism(4).setRoot(root);
+    assertArrayEquals("Parallel index is identical to serial index",
+                      serial, Files.readAllBytes(indexHtml.toPath()));
+    assertNotNull("Parallel index items are registered",
+                  parallel.indexItems.get("/dir3/subdir2/doc4"));
+  }
+  
+  /** Ensure directories without documents don't hide documents of the same name. */
+  @Test public void directoryWithoutDocuments() throws Exception {
+    File root = tempDir();
+    // a page with a directory of images
+    File images = new File(root, "gallery");
+    images.mkdir();
+    Files.write(new File(images, "picture.png").toPath(), new byte[] { 1, 2, 3 });
+    Files.write(new File(root, "gallery.html").toPath(), "<title>Gallery</title>".getBytes());
+
+    ContentManager created = new ContentManager().setRoot(root);
+    assertNotNull("Document indexed", created.indexItems.get("/gallery"));
+    assertFalse("Document is not a directory",
+                created.indexItems.get("/gallery").isDirectory());
+    assertEquals("Document title", "Gallery", created.indexItems.get("/gallery").getTitle());
+
+    // and the same when the document is added later
+    created.create("/album.html", new ByteArrayInputStream(
+                     "<title>Album</title>".getBytes()));
+    File photos = new File(root, "album");
+    photos.mkdir();
+    Files.write(new File(photos, "photo.jpg").toPath(), new byte[] { 1, 2, 3 });
+    created.update("/album.html", new ByteArrayInputStream(
+                     "<title>Photo Album</title>".getBytes()));
+    assertFalse("Updated document is not a directory",
+                created.indexItems.get("/album").isDirectory());
+    byte[] updated = Files.readAllBytes(new File(root, "index.html").toPath());
+
+    new File(root, "index.html").delete();
+    new ContentManager().setRoot(root);
+    assertArrayEquals("Recreated index is the same", updated,
+                      Files.readAllBytes(new File(root, "index.html").toPath()));
+  }
+
+  /** Ensure the index can be served a directory at a time. */
+  @Test public void lazyIndex() throws Exception {
+    File root = tempDir();
+    for (int d = 0; d < 3; d++) {
+      File subdir = new File(new File(root, "dir" + d), "subdir");
+      subdir.mkdirs();
+      for (int f = 0; f < 2; f++) {
+        Files.write(new File(subdir, "doc" + f + ".html").toPath(),
+                    ("<title>Document "+d+"."+f+"</title>").getBytes());
+      }
+      Files.write(new File(subdir.getParentFile(), "subdir.html").toPath(),
+                  ("<title>Subdirectory "+d+"</title>").getBytes());
+      Files.write(new File(root, "dir" + d + ".html").toPath(),
+                  ("<title>Directory "+d+"</title>").getBytes());
+      Files.write(new File(root, "doc" + d + ".html").toPath(),
+                  ("<title>Document "+d+"</title>").getBytes());
+    }
+    ContentManager lazy = new ContentManager().setRoot(root);
+    ContentManager.IndexSnapshot snapshot = lazy.getIndexSnapshot();
+    
+    String topLevels = new String(snapshot.getTopLevelBytes(), "UTF-8");
+    assertTrue("Top levels are a complete document", topLevels.endsWith("</html>\n"));
+    assertTrue("Top-level document", topLevels.contains("id=\"/doc1\""));
+    assertTrue("Top-level directory is lazy",
+               topLevels.contains("<details data-lazy=\"true\">\n"
+                                  +"                <summary id=\"/dir1\">"));
+    assertFalse("Subdirectories not included", topLevels.contains("/dir1/subdir"));
+    assertTrue("ETag is strong and quoted",
+               snapshot.getTopLevelETag().matches("\"[^\"]+\""));
+    assertFalse("ETag differs from full index",
+                snapshot.getTopLevelETag().equals(snapshot.getETag()));
+    
+    String dir = new String(snapshot.getEntries("/dir1"), "UTF-8");
+    assertTrue("Subdirectory is lazy",
+               dir.startsWith("<details data-lazy=\"true\">\n"
+                              +"    <summary id=\"/dir1/subdir\">"));
+    assertFalse("Subdirectory entries not included", dir.contains("/dir1/subdir/doc0"));
+    String subdir = new String(snapshot.getEntries("/dir1/subdir"), "UTF-8");
+    assertTrue("Documents included", subdir.contains(
+                 "<div id=\"/dir1/subdir/doc0\">\n"
+                 +"    <a href=\"dir1/subdir/doc0.html\">Document 1.0</a>\n"
+                 +"</div>\n"));
+    assertNull("Document has no entries", snapshot.getEntries("/doc1"));
+    assertNull("Nonexistent directory has no entries", snapshot.getEntries("/nothing"));
+    
+    // loading every directory gives the same entries as the full index
+    Vector<String> fragments = new Vector<String>();
+    fragments.add(topLevels);
+    for (int d = 0; d < 3; d++) {
+      fragments.add(new String(snapshot.getEntries("/dir" + d), "UTF-8"));
+      fragments.add(new String(snapshot.getEntries("/dir" + d + "/subdir"), "UTF-8"));
+    }
+    java.util.TreeSet<String> lazyIds = new java.util.TreeSet<String>();
+    for (String fragment : fragments) {
+      java.util.regex.Matcher id = java.util.regex.Pattern.compile(" id=\"([^\"]+)\"")
+        .matcher(fragment);
+      while (id.find()) assertTrue("Unique id " + id.group(1), lazyIds.add(id.group(1)));
+    }
+    java.util.TreeSet<String> fullIds = new java.util.TreeSet<String>();
+    java.util.regex.Matcher id = java.util.regex.Pattern.compile(" id=\"([^\"]+)\"")
+      .matcher(new String(snapshot.getBytes(), "UTF-8"));
+    while (id.find()) fullIds.add(id.group(1));
+    assertEquals("All entries loaded", fullIds, lazyIds);
+    assertEquals("Home page entries", new String(snapshot.getEntries("/"), "UTF-8"),
+                 new String(snapshot.getEntries(""), "UTF-8"));
+  }
+
+  /** Ensure an archive of files can be imported with one index update. */
+  @Test public void importArchive() throws Exception {
+    File root = tempDir();
+    Files.write(new File(root, "existing.html").toPath(),
+                "<title>Existing</title>".getBytes());
+    final int[] indexWrites = { 0 };
+    ContentManager importer = new ContentManager() {
+        @Override protected void writeIndex() throws Exception {
+          indexWrites[0]++;
+          super.writeIndex();
+        }
+      }.setRoot(root);
+    indexWrites[0] = 0;
+
+    java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+    java.util.zip.ZipOutputStream zip = new java.util.zip.ZipOutputStream(bytes);
+    String[][] files = {
+      { "existing.html", "<title>Updated</title>" },
+      { "blog/", null },
+      { "blog.html", "<title>Blog</title>" },
+      { "blog/2022.html", "<title>2022</title>" },
+      { "blog/2022/first-post.html", "<title>First Post</title>" },
+      { "blog/2022/picture.png", "not really a png" },
+      { "index.html", "<title>Forbidden</title>" },
+      { "../outside.html", "<title>Outside</title>" }
+    };
+    for (String[] file : files) {
+      zip.putNextEntry(new java.util.zip.ZipEntry(file[0]));
+      if (file[1] != null) zip.write(file[1].getBytes());
+      zip.closeEntry();
+    }
+    zip.close();
+    
+    ContentManager.ImportReport report = importer.importArchive(
+      new ByteArrayInputStream(bytes.toByteArray()));
+    assertEquals("Results for each file, in order",
+                 Arrays.asList("/existing.html", "/blog.html", "/blog/2022.html",
+                               "/blog/2022/first-post.html", "/blog/2022/picture.png",
+                               "/index.html", "/../outside.html"),
+                 new Vector<String>(report.getResults().keySet()));
+    assertEquals("Updated", ContentManager.ImportReport.UPDATED,
+                 report.getResults().get("/existing.html"));
+    assertEquals("Created", ContentManager.ImportReport.CREATED,
+                 report.getResults().get("/blog/2022/first-post.html"));
+    assertEquals("Counts: " + report, 1, report.getUpdated());
+    assertEquals("Counts: " + report, 4, report.getCreated());
+    assertEquals("Counts: " + report, 2, report.getFailed());
+    assertFalse("Outside root not written", new File(root, "../outside.html").exists());
+    assertTrue("Forbidden not written",
+               report.getResults().get("/index.html").contains("Forbidden"));
+    assertEquals("Non-document written", "not really a png", new String(
+                   Files.readAllBytes(new File(root, "blog/2022/picture.png").toPath())));
+    
+    assertEquals("Index written once", 1, indexWrites[0]);
+    assertEquals("Existing retitled",
+                 "Updated", importer.indexItems.get("/existing").getTitle());
+    assertEquals("New document indexed",
+                 "First Post", importer.indexItems.get("/blog/2022/first-post").getTitle());
+    assertTrue("New directory indexed", importer.indexItems.get("/blog/2022").isDirectory());
+    assertEquals("New directory titled",
+                 "2022", importer.indexItems.get("/blog/2022").getTitle());
+    assertIndexItemsConsistent(importer, "after import");
+    byte[] imported = Files.readAllBytes(new File(root, "index.html").toPath());
+    assertTrue("index.html updated",
+               new String(imported, "UTF-8").contains("blog/2022/first-post.html"));
+  }
+
+  /** Ensure a post and its year and month pages are created at once. */
+  @Test public void createPost() throws Exception {
+    File root = tempDir();
+    Files.write(new File(root, "template.html").toPath(),
+                ("<html><head><title>* New Page</title><base href=\"./\"></head>\n"
+                 +"<body><article></article></body></html>").getBytes());
+    final int[] indexWrites = { 0 };
+    ContentManager blog = new ContentManager() {
+        @Override protected void writeIndex() throws Exception {
+          indexWrites[0]++;
+          super.writeIndex();
+        }
+      }.setRoot(root);
+    indexWrites[0] = 0;
+
+    blog.createPost("/blog/2022/02/28-first-post.html",
+                    "First & <Best> Post\tMon 28 Feb 2022, 13:12");
+    assertEquals("Index written once", 1, indexWrites[0]);
+    assertEquals("Year page", "2022", blog.indexItems.get("/blog/2022").getTitle());
+    assertEquals("Month page", "Feb", blog.indexItems.get("/blog/2022/02").getTitle());
+    assertEquals("Post", "First & <Best> Post",
+                 blog.indexItems.get("/blog/2022/02/28-first-post").getTitle());
+    assertIndexItemsConsistent(blog, "after first post");
+    String post = new String(Files.readAllBytes(
+                               new File(root, "blog/2022/02/28-first-post.html").toPath()),
+                             "UTF-8");
+    assertTrue("Post base: " + post, post.contains("<base href=\"../../../\">"));
+    assertTrue("Post heading: " + post, post.contains(
+                 "<article><h2>First &amp; &lt;Best&gt; Post</h2>"
+                 +"<h3>Mon 28 Feb 2022, 13:12</h3><p></p></article>"));
+    
+    Files.write(new File(root, "blog/2022/02.html").toPath(),
+                "<title>February</title>".getBytes());
+    blog.reindex(Arrays.asList("/blog/2022/02.html"));
+    indexWrites[0] = 0;
+    blog.createPost("/blog/2022/02/28-second-post.html", "Second Post");
+    assertEquals("Index written once", 1, indexWrites[0]);
+    assertEquals("Existing month page kept", "February",
+                 blog.indexItems.get("/blog/2022/02").getTitle());
+    assertEquals("Posts in order", 1, blog.indexItems.get("/blog/2022/02").indexOf(
+                   blog.indexItems.get("/blog/2022/02/28-second-post")));
+    
+    try {
+      blog.createPost("/blog/2022/02/28-second-post.html", "Second Post Again");
+      fail("Can't create the same post twice");
+    } catch(java.nio.file.FileAlreadyExistsException exception) {
+    }
+    try {
+      blog.createPost("/blog/2022/13/01-no-such-month.html", "Nope");
+      fail("Month must be valid");
+    } catch(IllegalArgumentException exception) {
+    }
+    try {
+      blog.createPost("/blog/first-post.html", "Nope");
+      fail("Post must be in a month directory");
+    } catch(IllegalArgumentException exception) {
+    }
+    assertFalse("Nothing created for invalid month", new File(root, "blog/2022/13").exists());
+  }
+
+  /** Ensure titles are cached, and the cache is kept up to date. */
+  @Test public void titleCache() throws Exception {
+    File file = new File(dir(), "cached.html");
+    Path key = file.toPath().toAbsolutePath().normalize();
+    try {
+      manager.create("/cached.html", new ByteArrayInputStream(
+                       "<html>\n<head>\n<title>created</title>\n".getBytes()));
+      assertNotNull("Title cached on create", manager.titleCache.get(key));
+      assertEquals("Title from content written",
+                   "created", manager.titleCache.get(key).title);
+      
+      manager.update("/cached.html", new ByteArrayInputStream(
+                       "<html>\n<head>\n<title>updated</title>\n".getBytes()));
+      assertEquals("Title cached on update", "updated", manager.titleCache.get(key).title);
+      assertEquals("Cached size is that of the file written",
+                   file.length(), manager.titleCache.get(key).size);
+      assertEquals("Cached time is that of the file written",
+                   Files.getLastModifiedTime(key).toMillis(),
+                   manager.titleCache.get(key).lastModified);
+      
+      // single-byte reads are captured too
+      ContentManager.HeadCapture head = new ContentManager.HeadCapture(
+        new ByteArrayInputStream("<title>bytes</title>".getBytes()), 10);
+      while (head.read() >= 0);
+      assertEquals("Head captured up to capacity", "<title>byt", new String(head.getHead()));
+      assertEquals("Cached title used", "updated", manager.cachedTitle(file));
+      
+      // change the file behind the manager's back
+      Files.write(file.toPath(), "<title>changed on disk</title>".getBytes());
+      file.setLastModified(file.lastModified() + 2000);
+      assertEquals("Stale cached title not used", "changed on disk", manager.cachedTitle(file));
+      
+      manager.delete("/cached.html");
+      assertNull("Title not cached after delete", manager.titleCache.get(key));
+      
+      // cache is bounded
+      manager.setTitleCacheSize(2);
+      manager.cachedTitle(new File(dir(), "home.html"));
+      manager.cachedTitle(new File(dir(), "subdir.html"));
+      manager.cachedTitle(new File(new File(dir(), "subdir"), "child.html"));
+      assertEquals("Cache size limited", 2, manager.titleCache.size());
+    } finally {
+      manager.setTitleCacheSize(10000);
+      file.delete();
+    }
+  }
+  
+  /** Ensure small files are cached, and the cache is never stale. */
+  @Test public void contentCache() throws Exception {
+    File root = tempDir();
+    ContentManager cached = new ContentManager().setRoot(root).setContentCacheSize(1000);
+    ContentCache cache = cached.getContentCache();
+    assertNotNull("Cache enabled", cache);
+    assertEquals("Max file size", 62, cache.getMaxFileSize());
+    cached.create("/page.html", new ByteArrayInputStream("<title>v1</title>".getBytes()));
+    assertEquals("First read", "<title>v1</title>", readString(cached, "/page.html"));
+    assertEquals("Miss", 1, cache.getMisses());
+    assertEquals("Second read", "<title>v1</title>", readString(cached, "/page.html"));
+    assertEquals("Hit", 1, cache.getHits());
+    assertEquals("Hit ratio", 0.5, cache.getHitRatio(), 0.001);
+
+    cached.update("/page.html", new ByteArrayInputStream("<title>v2</title>".getBytes()));
+    assertEquals("Invalidated by update", 0, cache.getFileCount());
+    assertEquals("Updated", "<title>v2</title>", readString(cached, "/page.html"));
+
+    // change the file behind the manager's back
+    File file = new File(root, "page.html");
+    Files.write(file.toPath(), "<title>changed on disk</title>".getBytes());
+    file.setLastModified(file.lastModified() + 2000);
+    assertEquals("Stale content not used",
+                 "<title>changed on disk</title>", readString(cached, "/page.html"));
+
+    cached.delete("/page.html");
+    assertEquals("Invalidated by delete", 0, cache.getFileCount());
+    try {
+      cached.read("/page.html");
+      fail("Deleted file not found");
+    } catch(FileNotFoundException exception) {
+    }
+
+    // big files aren't cached
+    byte[] big = new byte[100];
+    Files.write(new File(root, "big.png").toPath(), big);
+    assertEquals("Big file read", 100, readBytes(cached, "/big.png").length);
+    assertEquals("Big file not cached", 0, cache.getFileCount());
+
+    // files read often survive a scan of files read once
+    cached.setContentCacheSize(1000);
+    cache = cached.getContentCache();
+    byte[] content = new byte[50];
+    for (int f = 0; f < 30; f++) {
+      Files.write(new File(root, "file" + f + ".css").toPath(), content);
+    }
+    readBytes(cached, "/file0.css");
+    readBytes(cached, "/file0.css"); // promoted
+    for (int f = 1; f < 30; f++) readBytes(cached, "/file" + f + ".css");
+    assertTrue("Budget respected: " + cache, cache.getBytes() <= 1000);
+    assertTrue("Evictions: " + cache, cache.getEvictions() > 0);
+    long hits = cache.getHits();
+    readBytes(cached, "/file0.css");
+    assertEquals("Frequently read file still cached: " + cache, hits + 1, cache.getHits());
+    readBytes(cached, "/file1.css");
+    assertEquals("File read once evicted: " + cache, hits + 1, cache.getHits());
+
+    cached.setContentCacheSize(0);
+    assertNull("Cache disabled", cached.getContentCache());
+    assertEquals("Read without cache", 50, readBytes(cached, "/file0.css").length);
+  }
+
+  /** Ensure new page templates are cached for each depth until template.html changes. */
+  @Test public void newPageTemplate() throws Exception {
+    File root = tempDir();
+    File template = new File(root, "template.html");
+    Files.write(template.toPath(),
+                "<html><head><base href=\"./\"></head>\r\n<body></body></html>".getBytes());
+    ContentManager manager = new ContentManager().setRoot(root);
+    byte[] top = manager.newPageTemplate("/new.html");
+    assertEquals("Top level as-is",
+                 "<html><head><base href=\"./\"></head>\r\n<body></body></html>",
+                 new String(top, "UTF-8"));
+    byte[] nested = manager.newPageTemplate("/a/b/new.html");
+    assertEquals("Nested base changed",
+                 "<html><head><base href=\"../../\"></head>\n<body></body></html>\n",
+                 new String(nested, "UTF-8"));
+    assertSame("Cached", nested, manager.newPageTemplate("/c/d/other.html"));
+    assertEquals("Other depth",
+                 "<html><head><base href=\"../\"></head>\n<body></body></html>\n",
+                 new String(manager.newPageTemplate("/a/new.html"), "UTF-8"));
+
+    manager.update("/template.html", new ByteArrayInputStream(
+                     "<base href=\"./\"><p>updated</p>".getBytes()));
+    assertEquals("Invalidated by update", "<base href=\"../../\"><p>updated</p>\n",
+                 new String(manager.newPageTemplate("/a/b/new.html"), "UTF-8"));
+
+    // change the file behind the manager's back
+    Files.write(template.toPath(), "<base href=\"./\"><p>changed on disk</p>".getBytes());
+    template.setLastModified(template.lastModified() + 2000);
+    assertEquals("Stale template not used",
+                 "<base href=\"../../\"><p>changed on disk</p>\n",
+                 new String(manager.newPageTemplate("/a/b/new.html"), "UTF-8"));
+
+    String deep = "";
+    for (int d = 0; d < ContentManager.MAX_TEMPLATE_DEPTH + 5; d++) deep += "/d";
+    assertTrue("Very deep path",
+               new String(manager.newPageTemplate(deep + "/new.html"), "UTF-8")
+               .startsWith("<base href=\"../../../"));
+  }
+
+  /** Ensure writes are atomic, and temporary files left by interrupted writes removed. */
+  @Test public void atomicWrites() throws Exception {
+    File root = tempDir();
+    // a write interrupted before the last startup
+    File sub = new File(root, "sub");
+    sub.mkdir();
+    File leftOver = new File(sub, ".page.html.1234" + AtomicFiles.TEMPORARY_SUFFIX);
+    Files.write(leftOver.toPath(), "<title>partial".getBytes());
+    leftOver.setLastModified(System.currentTimeMillis() - 60000);
+    assertEquals("Left over temporary file removed",
+                 1, AtomicFiles.removeTemporaryFiles(root.toPath(), Long.MAX_VALUE));
+    assertFalse("Left over temporary file gone", leftOver.exists());
+    Files.write(leftOver.toPath(), "<title>in progress".getBytes());
+    assertEquals("Temporary file of a write in progress kept",
+                 0, AtomicFiles.removeTemporaryFiles(root.toPath(), 0));
+    leftOver.delete();
+
+    for (ContentManager.FsyncPolicy policy : ContentManager.FsyncPolicy.values()) {
+      ContentManager manager = new ContentManager()
+        .setFsyncPolicy(policy).setFsyncInterval(10).setRoot(root);
+      String page = "/" + policy + "/page.html";
+      manager.create(page, new ByteArrayInputStream("<title>v1</title>".getBytes()));
+      assertEquals(policy + " created", "<title>v1</title>", readString(manager, page));
+      try {
+        manager.create(page, new ByteArrayInputStream("<title>v2</title>".getBytes()));
+        fail(policy + " can't create existing file");
+      } catch(java.nio.file.FileAlreadyExistsException exception) {
+      }
+      assertEquals(policy + " not replaced", "<title>v1</title>",
+                   readString(manager, page));
+      manager.update(page, new ByteArrayInputStream("<title>v2</title>".getBytes()));
+      assertEquals(policy + " updated", "<title>v2</title>", readString(manager, page));
+      manager.shutdown();
+      synchronized (manager.unsynced) {
+        assertTrue(policy + " all synced", manager.unsynced.isEmpty());
+      }
+      long temporaryFiles = Files.walk(root.toPath())
+        .filter(p -> p.toString().endsWith(AtomicFiles.TEMPORARY_SUFFIX)).count();
+      assertEquals(policy + " no temporary files left", 0, temporaryFiles);
+    } // next policy
+  }
+
+  /** Ensure previous versions of pages are kept, deduplicated, and pruned. */
+  @Test public void revisions() throws Exception {
+    File root = tempDir();
+    assertNull("Revisions not kept by default",
+               new ContentManager().setRoot(root).getRevisionStore());
+    ContentManager manager = new ContentManager().setKeepRevisions(true).setRoot(root);
+    RevisionStore store = manager.getRevisionStore();
+    assertNotNull("Revisions kept", store);
+    manager.create(
+      "/a/page.html", new ByteArrayInputStream("<title>v1</title>".getBytes()));
+    assertEquals("No revisions of new page",
+                 0, manager.revisions("/a/page.html").size());
+    manager.update(
+      "/a/page.html", new ByteArrayInputStream("<title>v2</title>".getBytes()));
+    manager.update(
+      "/a/page.html", new ByteArrayInputStream("<title>v1</title>".getBytes()));
+    manager.delete("/a/page.html");
+    List<RevisionStore.Revision> revisions = manager.revisions("/a/page.html");
+    assertEquals("Revision count: " + revisions, 3, revisions.size());
+    assertEquals("Most recent first", "delete", revisions.get(0).getEvent());
+    assertEquals("Deleted content", "<title>v1</title>",
+                 readRevision(manager, "/a/page.html", revisions.get(0).getId()));
+    assertEquals("Updated content", "<title>v2</title>",
+                 readRevision(manager, "/a/page.html", revisions.get(1).getId()));
+    assertEquals("Same content, same ID",
+                 revisions.get(0).getId(), revisions.get(2).getId());
+    assertTrue("Later revisions have later times",
+               revisions.get(0).getTime() > revisions.get(1).getTime());
+    File objects = new File(root, ".wysiwiki/revisions/objects");
+    assertEquals("Content deduplicated", 2, countFiles(objects));
+    try {
+      manager.readRevision("/a/other.html", revisions.get(1).getId());
+      fail("Can't read revision of another page");
+    } catch(FileNotFoundException exception) {
+    }
+    try {
+      manager.revisions("/.wysiwiki/revisions/objects");
+      fail("Can't read revisions of forbidden path");
+    } catch(IOException exception) {
+    }
+
+    // retention policy
+    manager.setMaxRevisions(2);
+    assertEquals("Pruned by count", 1, store.prune());
+    assertEquals("Referenced content kept", 2, countFiles(objects));
+    manager.setMaxRevisions(1);
+    assertEquals("Pruned again", 1, store.prune());
+    assertEquals("Unreferenced content deleted", 1, countFiles(objects));
+    manager.setMaxRevisions(0).setMaxRevisionAge(1);
+    assertEquals("Recent revisions not pruned by age", 0, store.prune());
+    manager.shutdown();
+
+    // a revision kept just before a crash is stored at the next startup
+    File pending = new File(root, ".wysiwiki/revisions/pending");
+    Files.write(new File(pending, "1000.update.b%2Fcrash.html").toPath(),
+                "<title>before crash</title>".getBytes());
+    manager = new ContentManager().setKeepRevisions(true).setRoot(root);
+    revisions = manager.revisions("/b/crash.html");
+    assertEquals("Pending revision recovered", 1, revisions.size());
+    assertEquals("Recovered content", "<title>before crash</title>",
+                 readRevision(manager, "/b/crash.html", revisions.get(0).getId()));
+    assertEquals("Pending revision removed", 0, pending.list().length);
+    manager.setMaxRevisionAge(1);
+    assertEquals("Old revision pruned by age", 1, manager.getRevisionStore().prune());
+
+    // a page path too long for a pending file name
+    String longPath = "/" + String.join(
+      "/", java.util.Collections.nCopies(30, "directory")) + "/long.html";
+    manager.create(longPath, new ByteArrayInputStream("<title>long v1</title>".getBytes()));
+    manager.update(longPath, new ByteArrayInputStream("<title>long v2</title>".getBytes()));
+    manager.getRevisionStore().prune();
+    revisions = manager.revisions(longPath);
+    assertEquals("Long path revision", 1, revisions.size());
+    assertEquals("Long path content", "<title>long v1</title>",
+                 readRevision(manager, longPath, revisions.get(0).getId()));
+    manager.shutdown();
+
+    manager = new ContentManager().setKeepRevisions(false).setRoot(root);
+    assertNull("Revisions disabled", manager.getRevisionStore());
+    manager.update("/c.html", new ByteArrayInputStream("<title>v1</title>".getBytes()));
+    manager.update("/c.html", new ByteArrayInputStream("<title>v2</title>".getBytes()));
+    assertEquals("No revisions when disabled", 0, manager.revisions("/c.html").size());
+    manager.shutdown();
+  }
+
+  /** Reads a revision of a page via the given manager. */
+  static String readRevision(ContentManager manager, String urlPath, String id)
+    throws IOException {
+    InputStream in = manager.readRevision(urlPath, id);
+    try {
+      java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int length = in.read(buffer);
+      while (length >= 0) {
+        out.write(buffer, 0, length);
+        length = in.read(buffer);
+      }
+      return new String(out.toByteArray(), "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Counts the files in a directory and its subdirectories. */
+  static long countFiles(File dir) throws IOException {
+    return Files.walk(dir.toPath()).filter(p -> p.toFile().isFile()).count();
+  }
+
+  /** Reads the whole of a file via the given manager. */
+  static byte[] readBytes(ContentManager manager, String urlPath) throws IOException {
+    InputStream in = manager.read(urlPath);
+    try {
+      java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int length = in.read(buffer);
+      while (length >= 0) {
+        bytes.write(buffer, 0, length);
+        length = in.read(buffer);
+      }
+      return bytes.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Reads the whole of a file via the given manager, as a string. */
+  static String readString(ContentManager manager, String urlPath) throws IOException {
+    return new String(readBytes(manager, urlPath), "UTF-8");
+  }
+  
+  /** Ensure an existing index.html is loaded faithfully. */
+  @Test public void loadIndex() throws Exception {
+    File indexHtml = new File(dir(), "index.html");
+    try {
+      manager.create("/loaded.html", new ByteArrayInputStream(
+                       "<title>Caf&eacute; &amp; Māori &lt;kupu&gt;</title>".getBytes("UTF-8")));
+      String written = new String(Files.readAllBytes(indexHtml.toPath()), "UTF-8");
+      assertTrue("Entities written to index.html: " + written, written.contains("&amp;"));
+      
+      ContentManager loaded = new ContentManager().setRoot(dir());
+      assertArrayEquals("Loaded index serializes the same",
+                        manager.getIndexSnapshot().getBytes(),
+                        loaded.getIndexSnapshot().getBytes());
+      assertEquals("Same number of index items",
+                   manager.indexItems.size(), loaded.indexItems.size());
+      for (String id : manager.indexItems.keySet()) {
+        assertNotNull("Item loaded: " + id, loaded.indexItems.get(id));
+        assertEquals("Same type: " + id, manager.indexItems.get(id).isDirectory(),
+                     loaded.indexItems.get(id).isDirectory());
+      }
+      assertEquals("Entities decoded", "Café & Māori <kupu>",
+                   loaded.indexItems.get("/loaded").getTitle());
+      assertEquals("Directory name is loaded", "subsubdir",
+                   loaded.indexItems.get("/subdir/subsubdir").getName());
+      assertNull("Directory without document has no title",
+                 loaded.indexItems.get("/subdir/subsubdir").getTitle());
+    } finally {
+      manager.delete("/loaded.html");
+    }
+  }
+  
+  /** The index is loaded from index.bin only if it matches index.html. */
+  @Test public void indexBin() throws Exception {
+    File indexHtml = new File(dir(), "index.html");
+    File indexBin = new File(new File(dir(), ".wysiwiki"), "index.bin");
+    assertTrue("index.bin written with index.html", indexBin.exists());
+    byte[] original = Files.readAllBytes(indexHtml.toPath());
+    try {
+      // load from index.bin
+      ContentManager loaded = new ContentManager().setRoot(dir());
+      assertArrayEquals("Loaded index serializes the same",
+                        manager.getIndexSnapshot().getBytes(),
+                        loaded.getIndexSnapshot().getBytes());
+      assertEquals("Same number of index items",
+                   manager.indexItems.size(), loaded.indexItems.size());
+      assertEquals("Title cache primed", "subdir",
+                   loaded.titleCache.get(new File(dir(), "subdir.html").toPath()
+                                         .toAbsolutePath().normalize()).title);
+      
+      // stale index.bin is ignored
+      String edited = new String(original, "UTF-8").replace(
+        "</details>", "<div id=\"/edited\"><a href=\"edited.html\">Edited</a></div></details>");
+      Files.write(indexHtml.toPath(), edited.getBytes("UTF-8"));
+      loaded = new ContentManager().setRoot(dir());
+      assertNotNull("Edited index.html parsed", loaded.indexItems.get("/edited"));
+      loaded = new ContentManager().setRoot(dir());
+      assertNotNull("index.bin rewritten after parsing", loaded.indexItems.get("/edited"));
+
+      // corrupt index.bin is ignored
+      byte[] corrupt = Files.readAllBytes(indexBin.toPath());
+      Files.write(indexBin.toPath(), Arrays.copyOf(corrupt, corrupt.length / 2));
+      loaded = new ContentManager().setRoot(dir());
+      assertNotNull("Truncated index.bin ignored", loaded.indexItems.get("/edited"));
+    } finally {
+      Files.write(indexHtml.toPath(), original);
+      manager.writeIndex();
+    }
+  }
+  
+  /** Changes made by other processes are indexed when watching. */
+  @Test public void watch() throws Exception {
+    File root = tempDir();
+    ContentManager watching = null;
+    try {
+      Files.write(new File(root, "existing.html").toPath(), "<title>Existing</title>".getBytes());
+      File gone = new File(root, "gone");
+      gone.mkdir();
+      Files.write(new File(gone, "goner.html").toPath(), "<title>Goner</title>".getBytes());
+      watching = new ContentManager().setRoot(root).setWatchDebounce(100).startWatching();
+      assertNotNull("Existing document indexed", watching.indexItems.get("/existing"));
+      assertNotNull("Existing subdocument indexed", watching.indexItems.get("/gone/goner"));
+      File indexHtml = new File(root, "index.html");
+
+      // add, change, and remove documents and directories
+      Files.write(new File(root, "added.html").toPath(), "<title>Added</title>".getBytes());
+      File dir = new File(root, "dir");
+      dir.mkdir();
+      Files.write(new File(dir, "doc.html").toPath(), "<title>In Dir</title>".getBytes());
+      Files.write(new File(root, "existing.html").toPath(), "<title>Changed</title>".getBytes());
+      new File(gone, "goner.html").delete();
+      gone.delete();
+      String[] expected = {
+        "id=\"/added\"", "<a href=\"added.html\">Added</a>",
+        "id=\"/dir\"", "<a href=\"dir/doc.html\">In Dir</a>", "Changed" };
+      String written = waitFor(indexHtml, expected, "Goner");
+      for (String e : expected) assertTrue("Change indexed: " + e, written.contains(e));
+      assertFalse("Removed directory unindexed", written.contains("Goner"));
+      assertNull("Removed items unregistered", watching.indexItems.get("/gone/goner"));
+      
+      // events lost by overflow are recovered by reconciling the directory
+      watching.stopWatching();
+      Files.write(new File(dir, "missed.html").toPath(), "<title>Missed</title>".getBytes());
+      new File(dir, "doc.html").delete();
+      ContentWatcher watcher = new ContentWatcher(watching);
+      watcher.watchService = root.toPath().getFileSystem().newWatchService();
+      watcher.overflowed.add(dir.toPath().toAbsolutePath().normalize());
+      watcher.reindex();
+      watcher.stop();
+      assertNotNull("Missed document indexed", watching.indexItems.get("/dir/missed"));
+      assertNull("Missed deletion unindexed", watching.indexItems.get("/dir/doc"));
+      assertNotNull("Other documents unaffected", watching.indexItems.get("/added"));
+    } finally {
+      if (watching != null) watching.shutdown();
+    }
+  }
+
+  /** Reconciliation updates only what has changed, preserving the order of entries. */
+  @Test public void reconcile() throws Exception {
+    File root = tempDir();
+    ContentManager original = new ContentManager().setRoot(root);
+    for (String name : new String[] { "first", "second", "third" }) {
+      original.create("/" + name + ".html", new ByteArrayInputStream(
+                        ("<title>" + name + "</title>").getBytes()));
+    }
+    assertTrue("Moved", original.move("/third.html", "up"));
+    assertTrue("Moved to top", original.move("/third.html", "up"));
+    original.shutdown();
+    
+    // change the content without the manager
+    File third = new File(root, "third.html");
+    Files.write(third.toPath(), "<title>retitled</title>".getBytes());
+    third.setLastModified(third.lastModified() + 2000);
+    new File(root, "second.html").delete();
+    Files.write(new File(root, "fourth.html").toPath(), "<title>fourth</title>".getBytes());
+    File dir = new File(root, "dir");
+    dir.mkdir();
+    Files.write(new File(dir, "doc.html").toPath(), "<title>doc</title>".getBytes());
+    
+    ContentManager reconciled = new ContentManager().setRoot(root);
+    ContentManager.ReconcileReport report = reconciled.reconcile();
+    assertEquals("Added: " + report, 3, report.getAdded()); // fourth, dir, doc
+    assertEquals("Changed: " + report, 1, report.getChanged()); // third
+    assertEquals("Removed: " + report, 1, report.getRemoved()); // second
+    
+    String written = new String(
+      Files.readAllBytes(new File(root, "index.html").toPath()), "UTF-8");
+    assertFalse("Removed entry gone", written.contains("id=\"/second\""));
+    assertTrue("Retitled", written.contains(">retitled</a>"));
+    assertTrue("Moved order preserved: " + written,
+               written.indexOf("id=\"/third\"") < written.indexOf("id=\"/first\""));
+    assertTrue("New entries at the end: " + written,
+               written.indexOf("id=\"/first\"") < written.indexOf("id=\"/fourth\""));
+    assertTrue("New subdirectory document indexed",
+               written.contains("<a href=\"dir/doc.html\">doc</a>"));
+    
+    report = reconciled.reconcile();
+    assertEquals("Nothing to do the second time: " + report, 0, report.getTotal());
+    
+    // reconciliation on load
+    Files.write(new File(root, "fifth.html").toPath(), "<title>fifth</title>".getBytes());
+    reconciled = new ContentManager().setReconcileOnLoad(true).setRoot(root);
+    assertNotNull("Reconciled on load", reconciled.indexItems.get("/fifth"));
+  }
+
+  /** Concurrent changes and reads leave the index consistent. */
+  @Test public void concurrentChanges() throws Exception {
+    File root = tempDir();
+    final ContentManager concurrent = new ContentManager().setRoot(root)
+      .setIndexWriteDelay(5).setIndexWriteMaxDelay(20);
+    final List<Throwable> errors = java.util.Collections.synchronizedList(
+      new java.util.Vector<Throwable>());
+    final java.util.concurrent.atomic.AtomicBoolean writing
+      = new java.util.concurrent.atomic.AtomicBoolean(true);
+    try {
+      // readers check that every snapshot is complete and versions only increase
+      Thread[] readers = new Thread[2];
+      for (int r = 0; r < readers.length; r++) {
+        readers[r] = new Thread(() -> {
+            try {
+              long lastVersion = 0;
+              while (writing.get()) {
+                ContentManager.IndexSnapshot snapshot = concurrent.getIndexSnapshot();
+                assertTrue("Versions increase", snapshot.getVersion() >= lastVersion);
+                lastVersion = snapshot.getVersion();
+                String html = new String(snapshot.getBytes(), "UTF-8");
+                assertTrue("Snapshot is complete", html.trim().endsWith("</html>"));
+                assertNotNull("Snapshot has an ETag", snapshot.getETag());
+              }
+            } catch(Throwable t) {
+              errors.add(t);
+            }
+        });
+        readers[r].start();
+      }
+      // writers create, update, move, and delete documents
+      Thread[] writers = new Thread[4];
+      for (int w = 0; w < writers.length; w++) {
+        final int t = w;
+        writers[w] = new Thread(() -> {
+            try {
+              for (int i = 0; i < 25; i++) {
+                String doc = "/t" + t + "/doc" + i + ".html";
+                String peer = "/peer" + t + "-" + i + ".html";
+                concurrent.create(doc, new ByteArrayInputStream(
+                                    ("<title>Doc " + t + "." + i + "</title>").getBytes()));
+                concurrent.create(peer, new ByteArrayInputStream(
+                                    ("<title>Peer " + t + "." + i + "</title>").getBytes()));
+                concurrent.update(doc, new ByteArrayInputStream(
+                                    ("<title>Updated " + t + "." + i + "</title>").getBytes()));
+                concurrent.move(peer, i % 2 == 0? "up" : "down");
+                if (i > 0 && i % 3 == 0) concurrent.delete("/t" + t + "/doc" + (i-1) + ".html");
+                if (i % 4 == 0) concurrent.delete(peer);
+              } // next iteration
+            } catch(Throwable x) {
+              errors.add(x);
+            }
+        });
+        writers[w].start();
+      }
+      for (Thread writer : writers) writer.join();
+      writing.set(false);
+      for (Thread reader : readers) reader.join();
+      if (!errors.isEmpty()) throw new AssertionError(errors.get(0));
+      
+      concurrent.shutdown(); // flushes
+      assertArrayEquals("index.html is the latest version",
+                        concurrent.getIndexSnapshot().getBytes(),
+                        Files.readAllBytes(new File(root, "index.html").toPath()));
+      assertIndexItemsConsistent(concurrent, "After concurrent changes");
+      assertEquals("Index matches content", 0, concurrent.reconcile().getTotal());
+      assertNotNull("Updated title indexed", concurrent.indexItems.get("/t3/doc24"));
+      assertEquals("Updated title indexed", "Updated 3.24",
+                   concurrent.indexItems.get("/t3/doc24").getTitle());
+    } finally {
+      concurrent.shutdown();
+    }
+  }
+
+  /**
+   * Waits up to ten seconds for the given file to contain all the expected strings and
+   * not the unexpected one.
+   * @return The file's content.
+   */
+  public String waitFor(File file, String[] expected, String unexpected) throws Exception {
+    long giveUp = System.currentTimeMillis() + 10000;
+    String content = "";
+    while (System.currentTimeMillis() < giveUp) {
+      content = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+      boolean done = !content.contains(unexpected);
+      for (String e : expected) done &= content.contains(e);
+      if (done) break;
+      Thread.sleep(50);
+    }
+    return content;
+  }
+  
+  /** Ensures {@link ContentManager#indexItems} contains exactly the entries in the tree. */
+  public void assertIndexItemsConsistent(String when) throws Exception {
+    assertIndexItemsConsistent(manager, when);
+  }
+  
+  /** Ensures {@link ContentManager#indexItems} contains exactly the entries in the tree. */
+  public void assertIndexItemsConsistent(ContentManager manager, String when)
+    throws Exception {
+    List<IndexNode> items = new Vector<IndexNode>();
+    items.add(manager.index);
+    for (int i = 0; i < items.size(); i++) {
+      IndexNode item = items.get(i);
+      assertSame(when + ": Lookup for " + item.getId(),
+                 item, manager.indexItems.get(item.getId()));
+      for (int c = 0; c < item.getChildCount(); c++) {
+        assertSame(when + ": Parent of " + item.getChild(c).getId(),
+                   item, item.getChild(c).getParent());
+        items.add(item.getChild(c));
+      }
+    } // next item
+    assertEquals(when + ": Same number of ids", items.size(), manager.indexItems.size());
+  }
+  
   /** Check for differences. */
   public void diff(String[] expectedContentArray, File file) throws Exception {
     List<String> expectedContent = Arrays.asList(expectedContentArray);
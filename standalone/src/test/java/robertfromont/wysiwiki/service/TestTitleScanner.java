@@ -0,0 +1,107 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.service;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Tests TitleScanner.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TestTitleScanner {
+
+  /** A page as saved by the editor. */
+  @Test public void editorPage() throws Exception {
+    assertEquals("Title of saved page", "Getting Started", title(
+                   "<!DOCTYPE html>\n"
+                   +"<html>\n"
+                   +"  <head>\n"
+                   +"    <base href=\"./\">\n"
+                   +"    <meta http-equiv=\"content-type\" content=\"text/html; charset=UTF-8\" />\n"
+                   +"    <meta name=\"viewport\" content=\"width=device-width, initial-scale=1\" />\n"
+                   +"    <title>Getting Started</title>\n"
+                   +"    <link rel=\"stylesheet\" href=\"wysiwiki/wysiwiki.css\" type=\"text/css\" />\n"
+                   +"  </head>\n"
+                   +"  <body><article><h1>Getting Started</h1></article></body>\n"
+                   +"</html>\n"));
+  }
+
+  /** Titles split across lines are found, with whitespace normalized. */
+  @Test public void multiLineTitle() throws Exception {
+    assertEquals("Title spanning lines", "A title split over lines", title(
+                   "<html><head><title>\n  A title\n  split over\tlines\n</title></head>"));
+    assertEquals("Title tag spanning lines", "Split tag", title(
+                   "<html><head><title\n>Split tag</title\n></head>"));
+  }
+
+  /** Titles that are more than ten lines into the file are found. */
+  @Test public void lateTitle() throws Exception {
+    StringBuilder html = new StringBuilder("<html>\n<head>\n<style>\n");
+    for (int l = 0; l < 500; l++) html.append("  .class").append(l).append(" { color: red; }\n");
+    html.append("</style>\n<title>Late</title>\n</head>\n");
+    assertEquals("Late title", "Late", title(html.toString()));
+  }
+
+  /** Entities are decoded, and non-ASCII characters are read as UTF-8. */
+  @Test public void entitiesAndEncoding() throws Exception {
+    assertEquals("Entities decoded", "Fish & Chips <2>", title(
+                   "<head><title>Fish &amp; Chips &lt;2&gt;</title></head>"));
+    assertEquals("Named entity decoded", "Café", title("<head><title>Caf&eacute;</title>"));
+    assertEquals("UTF-8 decoded", "Māori kupu", title("<head><title>Māori kupu</title>"));
+  }
+
+  /** Tag names are case-insensitive, and the title tag can have attributes. */
+  @Test public void tagVariations() throws Exception {
+    assertEquals("Upper case", "Upper", title("<HTML><HEAD><TITLE>Upper</TITLE></HEAD>"));
+    assertEquals("Attributes", "Attributes", title("<head><title lang=\"en\">Attributes</title>"));
+    assertEquals("Less-than in title", "a < b", title("<head><title>a < b</title>"));
+    assertEquals("Other tag in title", "a <b> c", title("<head><title>a <b> c</title>"));
+    assertEquals("Similar end tag in title", "x </titles> y",
+                 title("<head><title>x </titles> y</title>"));
+    assertNull("Similar start tag", title("<head><titles>No</titles></head>"));
+  }
+
+  /** Scanning stops at the end of the head. */
+  @Test public void noTitle() throws Exception {
+    assertNull("Empty document", title(""));
+    assertNull("No title", title("/home.html\n"));
+    assertNull("Blank title", title("<head><title>  \n </title></head>"));
+    assertNull("Title after head", title("<head></head><body><title>Body</title></body>"));
+    assertNull("Title in body", title("<html><body><title>Body</title></body>"));
+    assertNull("Unterminated title", title("<head><title>Unterminated"));
+  }
+
+  /** Scanning stops after {@link TitleScanner#LIMIT} bytes. */
+  @Test public void limit() throws Exception {
+    StringBuilder html = new StringBuilder("<head><script>");
+    while (html.length() < TitleScanner.LIMIT) html.append("//");
+    html.append("</script><title>Too late</title></head>");
+    assertNull("Title beyond limit", title(html.toString()));
+  }
+
+  /** Scans the given content. */
+  public String title(String html) throws Exception {
+    return TitleScanner.title(new ByteArrayInputStream(html.getBytes("UTF-8")));
+  }
+
+}
@@ -0,0 +1,608 @@
+//
+// (c) 2022 Robert Fromont - robert@fromont.nz
+//
+//    This file is part of WysiWiki.
+//
+//    WysiWiki is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU Affero General Public License as published by
+//    the Free Software Foundation; either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    WysiWiki is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this module; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package robertfromont.wysiwiki.standalone;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import robertfromont.wysiwiki.service.AtomicFiles;
+import robertfromont.wysiwiki.service.CachePolicy;
+import robertfromont.wysiwiki.service.TestContentManager;
+
+/**
+ * Tests the standalone web server.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TestWebApp {
+
+  static File root;
+  static WebApp webapp;
+  static String baseUrl;
+
+  /** Asset sizes, roughly those of a typical site: styles, scripts, images, and media. */
+  static final int[] ASSET_SIZES = {
+    0, 1, 700, 4 * 1024, 40 * 1024, 300 * 1024, 3 * 1024 * 1024 };
+
+  @BeforeClass
+  public static void startServer() throws Exception {
+    root = Files.createTempDirectory("TestWebApp").toFile();
+    Random random = new Random(42);
+    for (int size : ASSET_SIZES) {
+      byte[] content = new byte[size];
+      random.nextBytes(content);
+      Files.write(new File(root, "asset" + size + ".png").toPath(), content);
+    }
+    Files.write(new File(root, "template.html").toPath(),
+                "<html><head><base href=\"./\"></head><body></body></html>\n".getBytes());
+    webapp = new WebApp().setRoot(root).setPort(0);
+    // start the server without opening a browser
+    webapp.createServer();
+    webapp.createContentManager();
+    webapp.addHandlers();
+    webapp.server.start();
+    baseUrl = "http://localhost:" + webapp.server.getAddress().getPort();
+  }
+
+  @AfterClass
+  public static void stopServer() throws Exception {
+    webapp.server.stop(0);
+    if (webapp.workers != null) webapp.workers.shutdown();
+    webapp.content.shutdown();
+    TestContentManager.deleteRecursively(root.toPath());
+  }
+
+  /** Ensure files are served intact, with a fixed Content-Length. */
+  @Test public void fixedLength() throws Exception {
+    for (int size : ASSET_SIZES) {
+      HttpURLConnection connection = (HttpURLConnection)
+        new URL(baseUrl + "/asset" + size + ".png").openConnection();
+      assertEquals("Status " + size, 200, connection.getResponseCode());
+      assertNull("Not chunked " + size, connection.getHeaderField("Transfer-Encoding"));
+      assertEquals("Content-Length " + size, size, connection.getContentLengthLong());
+      assertArrayEquals("Content " + size,
+                        Files.readAllBytes(new File(root, "asset" + size + ".png").toPath()),
+                        readFully(connection.getInputStream()));
+    } // next size
+  }
+
+  /** Ensure missing documents return the template, and other missing files nothing. */
+  @Test public void notFound() throws Exception {
+    HttpURLConnection connection = (HttpURLConnection)
+      new URL(baseUrl + "/dir/new-page.html").openConnection();
+    assertEquals("Missing document", 404, connection.getResponseCode());
+    assertEquals("Template base changed",
+                 "<html><head><base href=\"../\"></head><body></body></html>\n",
+                 new String(readFully(connection.getErrorStream()), "UTF-8"));
+
+    connection = (HttpURLConnection) new URL(baseUrl + "/missing.png").openConnection();
+    assertEquals("Missing file", 404, connection.getResponseCode());
+
+    // a file isn't a directory
+    connection = (HttpURLConnection)
+      new URL(baseUrl + "/asset1.png/new-page.html").openConnection();
+    assertEquals("Not a directory", 404, connection.getResponseCode());
+    assertTrue("Template", new String(readFully(connection.getErrorStream()), "UTF-8")
+               .contains("<base href="));
+
+    connection = (HttpURLConnection)
+      new URL(baseUrl + "/.wysiwiki/index.bin").openConnection();
+    assertEquals("Forbidden", 403, connection.getResponseCode());
+
+    // a write in progress
+    File temporary = new File(root, ".upload.png.1234" + AtomicFiles.TEMPORARY_SUFFIX);
+    Files.write(temporary.toPath(), new byte[100]);
+    try {
+      connection = (HttpURLConnection) new URL(
+        baseUrl + "/" + temporary.getName()).openConnection();
+      assertEquals("Temporary file not served", 404, connection.getResponseCode());
+    } finally {
+      temporary.delete();
+    }
+  }
+
+  /** Ensure validators are sent, and unchanged files aren't sent again. */
+  @Test public void conditionalGet() throws Exception {
+    HttpURLConnection connection = (HttpURLConnection)
+      new URL(baseUrl + "/asset700.png").openConnection();
+    assertEquals("Status", 200, connection.getResponseCode());
+    String eTag = connection.getHeaderField("ETag");
+    assertNotNull("ETag", eTag);
+    String lastModified = connection.getHeaderField("Last-Modified");
+    assertNotNull("Last-Modified", lastModified);
+    readFully(connection.getInputStream());
+
+    connection = (HttpURLConnection) new URL(baseUrl + "/asset700.png").openConnection();
+    connection.setRequestProperty("If-None-Match", eTag);
+    assertEquals("If-None-Match", 304, connection.getResponseCode());
+    assertEquals("ETag with 304", eTag, connection.getHeaderField("ETag"));
+
+    connection = (HttpURLConnection) new URL(baseUrl + "/asset700.png").openConnection();
+    connection.setRequestProperty("If-None-Match", "\"something-else\"");
+    assertEquals("If-None-Match other", 200, connection.getResponseCode());
+    readFully(connection.getInputStream());
+
+    connection = (HttpURLConnection) new URL(baseUrl + "/asset700.png").openConnection();
+    connection.setRequestProperty("If-Modified-Since", lastModified);
+    assertEquals("If-Modified-Since", 304, connection.getResponseCode());
+
+    connection = (HttpURLConnection) new URL(baseUrl + "/asset700.png").openConnection();
+    connection.setRequestProperty("If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT");
+    assertEquals("If-Modified-Since earlier", 200, connection.getResponseCode());
+    readFully(connection.getInputStream());
+
+    // content hashes
+    webapp.getCachePolicy().setHashETags(true);
+    try {
+      connection = (HttpURLConnection) new URL(baseUrl + "/asset700.png").openConnection();
+      String hash = connection.getHeaderField("ETag");
+      assertFalse("Hash ETag", eTag.equals(hash));
+      assertTrue("Hash ETag is SHA-1: " + hash, hash.matches("\"[0-9a-f]{40}\""));
+      readFully(connection.getInputStream());
+      connection = (HttpURLConnection) new URL(baseUrl + "/asset700.png").openConnection();
+      connection.setRequestProperty("If-None-Match", hash);
+      assertEquals("Hash If-None-Match", 304, connection.getResponseCode());
+    } finally {
+      webapp.getCachePolicy().setHashETags(false);
+    }
+  }
+
+  /** Ensure Cache-Control is determined by the configured rules. */
+  @Test public void cacheControl() throws Exception {
+    CachePolicy policy = new CachePolicy();
+    assertEquals("Default HTML", "no-cache", policy.cacheControl("/dir/page.html"));
+    assertEquals("Default other", "max-age=604800", policy.cacheControl("/dir/image.png"));
+    policy.setRules("wysiwiki/**=no-cache; *.png=max-age=60 ;**/*.css=max-age=120");
+    assertEquals("Path pattern", "no-cache", policy.cacheControl("/wysiwiki/a/index.js"));
+    assertEquals("File name pattern", "max-age=60", policy.cacheControl("/a/b/image.png"));
+    assertEquals("First match", "no-cache", policy.cacheControl("/wysiwiki/image.png"));
+    assertEquals("** pattern", "max-age=120", policy.cacheControl("/a/b/style.css"));
+    assertNull("No match", policy.cacheControl("/a/page.html"));
+
+    // served
+    HttpURLConnection connection = (HttpURLConnection)
+      new URL(baseUrl + "/asset1.png").openConnection();
+    assertEquals("Served", "max-age=604800", connection.getHeaderField("Cache-Control"));
+    readFully(connection.getInputStream());
+  }
+
+  /** Ensure single byte ranges are served as partial content. */
+  @Test public void singleRange() throws Exception {
+    byte[] file = Files.readAllBytes(new File(root, "asset40960.png").toPath());
+    HttpURLConnection connection = (HttpURLConnection)
+      new URL(baseUrl + "/asset40960.png").openConnection();
+    assertEquals("Accept-Ranges", "bytes", connection.getHeaderField("Accept-Ranges"));
+    String eTag = connection.getHeaderField("ETag");
+    readFully(connection.getInputStream());
+
+    connection = (HttpURLConnection) new URL(baseUrl + "/asset40960.png").openConnection();
+    connection.setRequestProperty("Range", "bytes=100-199");
+    assertEquals("Status", 206, connection.getResponseCode());
+    assertEquals("Content-Range", "bytes 100-199/40960",
+                 connection.getHeaderField("Content-Range"));
+    assertEquals("Content-Length", 100, connection.getContentLengthLong());
+    assertArrayEquals("Content", Arrays.copyOfRange(file, 100, 200),
+                      readFully(connection.getInputStream()));
+
+    connection = (HttpURLConnection) new URL(baseUrl + "/asset40960.png").openConnection();
+    connection.setRequestProperty("Range", "bytes=-10");
+    assertEquals("Suffix status", 206, connection.getResponseCode());
+    assertEquals("Suffix Content-Range", "bytes 40950-40959/40960",
+                 connection.getHeaderField("Content-Range"));
+    assertArrayEquals("Suffix content", Arrays.copyOfRange(file, 40950, 40960),
+                      readFully(connection.getInputStream()));
+
+    connection = (HttpURLConnection) new URL(baseUrl + "/asset40960.png").openConnection();
+    connection.setRequestProperty("Range", "bytes=40000-");
+    assertEquals("Open-ended status", 206, connection.getResponseCode());
+    assertEquals("Open-ended Content-Range", "bytes 40000-40959/40960",
+                 connection.getHeaderField("Content-Range"));
+    readFully(connection.getInputStream());
+
+    connection = (HttpURLConnection) new URL(baseUrl + "/asset40960.png").openConnection();
+    connection.setRequestProperty("Range", "bytes=50000-");
+    assertEquals("Unsatisfiable", 416, connection.getResponseCode());
+    assertEquals("Unsatisfiable Content-Range", "bytes */40960",
+                 connection.getHeaderField("Content-Range"));
+
+    connection = (HttpURLConnection) new URL(baseUrl + "/asset40960.png").openConnection();
+    connection.setRequestProperty("Range", "bytes=100-199");
+    connection.setRequestProperty("If-Range", eTag);
+    assertEquals("If-Range current", 206, connection.getResponseCode());
+    readFully(connection.getInputStream());
+
+    connection = (HttpURLConnection) new URL(baseUrl + "/asset40960.png").openConnection();
+    connection.setRequestProperty("Range", "bytes=100-199");
+    connection.setRequestProperty("If-Range", "\"something-else\"");
+    assertEquals("If-Range changed", 200, connection.getResponseCode());
+    assertEquals("If-Range changed whole file",
+                 40960, readFully(connection.getInputStream()).length);
+
+    connection = (HttpURLConnection) new URL(baseUrl + "/asset40960.png").openConnection();
+    connection.setRequestProperty("Range", "lines=1-2");
+    assertEquals("Unknown unit", 200, connection.getResponseCode());
+    readFully(connection.getInputStream());
+  }
+
+  /** Ensure multiple byte ranges are served as multipart/byteranges. */
+  @Test public void multipleRanges() throws Exception {
+    byte[] file = Files.readAllBytes(new File(root, "asset4096.png").toPath());
+    HttpURLConnection connection = (HttpURLConnection)
+      new URL(baseUrl + "/asset4096.png").openConnection();
+    // the last two overlap, so are coalesced
+    connection.setRequestProperty("Range", "bytes=0-9, 1000-1499,1400-1999");
+    assertEquals("Status", 206, connection.getResponseCode());
+    String contentType = connection.getHeaderField("Content-Type");
+    assertTrue("Content-Type: " + contentType,
+               contentType.startsWith("multipart/byteranges; boundary="));
+    String boundary = contentType.substring(contentType.indexOf('=') + 1);
+    byte[] body = readFully(connection.getInputStream());
+    assertEquals("Content-Length", body.length, connection.getContentLengthLong());
+    String text = new String(body, "ISO-8859-1");
+    String[] parts = text.split("\r\n--" + boundary);
+    assertEquals("Parts: " + text, 4, parts.length); // preamble, two parts, closing
+    assertEquals("Closing delimiter", "--\r\n", parts[3]);
+    int[][] ranges = { { 0, 9 }, { 1000, 1999 } };
+    for (int p = 0; p < 2; p++) {
+      String part = parts[p + 1];
+      assertTrue("Content-Type " + p, part.contains("\r\nContent-Type: image/png\r\n"));
+      assertTrue("Content-Range " + p, part.contains(
+                   "\r\nContent-Range: bytes " + ranges[p][0] + "-" + ranges[p][1]
+                   + "/4096\r\n"));
+      byte[] content = part.substring(part.indexOf("\r\n\r\n") + 4).getBytes("ISO-8859-1");
+      assertArrayEquals("Content " + p,
+                        Arrays.copyOfRange(file, ranges[p][0], ranges[p][1] + 1), content);
+    } // next part
+  }
+
+  /** Ensure uploads are written atomically, and renamed if the name is taken. */
+  @Test public void upload() throws Exception {
+    byte[] image = new byte[10000];
+    new Random(0).nextBytes(image);
+    assertEquals("Uploaded", "./images/upload.png", upload("/images/upload.png", image));
+    assertEquals("Renamed", "./images/upload-1.png", upload("/images/upload.png", image));
+    File images = new File(root, "images");
+    assertTrue("Content", Arrays.equals(
+                 image, Files.readAllBytes(new File(images, "upload-1.png").toPath())));
+    assertEquals("No temporary files", 2, images.list().length);
+  }
+
+  /** Uploads a file as multipart/form-data, and returns the response. */
+  static String upload(String urlPath, byte[] content) throws IOException {
+    String boundary = "----test-boundary";
+    HttpURLConnection connection = (HttpURLConnection)
+      new URL(baseUrl + urlPath).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty(
+      "Content-Type", "multipart/form-data; boundary=" + boundary);
+    java.io.OutputStream out = connection.getOutputStream();
+    out.write(("--" + boundary + "\r\n"
+               + "Content-Disposition: form-data; name=\"file\"; filename=\"x.png\"\r\n"
+               + "Content-Type: image/png\r\n\r\n").getBytes("UTF-8"));
+    out.write(content);
+    out.write(("\r\n--" + boundary + "--\r\n").getBytes("UTF-8"));
+    out.close();
+    assertEquals("POST " + urlPath, 200, connection.getResponseCode());
+    return new String(readFully(connection.getInputStream()), "UTF-8");
+  }
+
+  /** Ensure requests are rejected with 503 when all the workers are busy. */
+  @Test public void rejection() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    WebApp busy = new WebApp() {
+        @Override public void get(HttpExchange exchange) throws IOException {
+          if ("slow".equals(exchange.getRequestURI().getQuery())) {
+            started.countDown();
+            try {
+              release.await(10, TimeUnit.SECONDS);
+            } catch(InterruptedException exception) {
+            }
+          }
+          super.get(exchange);
+        }
+      }.setRoot(root).setPort(0).setThreads(1).setQueueLimit(0);
+    busy.createServer();
+    busy.createContentManager();
+    busy.addHandlers();
+    busy.server.start();
+    String busyUrl = "http://localhost:" + busy.server.getAddress().getPort();
+    ExecutorService client = Executors.newSingleThreadExecutor();
+    try {
+      Future<Integer> slow = client.submit(() -> {
+          HttpURLConnection connection = (HttpURLConnection)
+            new URL(busyUrl + "/asset1.png?slow").openConnection();
+          readFully(connection.getInputStream());
+          return connection.getResponseCode();
+        });
+      assertTrue("Slow request started", started.await(10, TimeUnit.SECONDS));
+
+      HttpURLConnection connection = (HttpURLConnection)
+        new URL(busyUrl + "/asset1.png").openConnection();
+      assertEquals("Rejected while busy", 503, connection.getResponseCode());
+      assertEquals("Retry-After", "1", connection.getHeaderField("Retry-After"));
+      assertEquals("Rejection counted", 1, busy.workers.getRejected());
+
+      release.countDown();
+      assertEquals("Slow request finished", Integer.valueOf(200), slow.get());
+      // the worker may still be finishing the slow request after the response is sent
+      int responseCode = 503;
+      for (int attempt = 0; attempt < 50 && responseCode == 503; attempt++) {
+        if (attempt > 0) Thread.sleep(20);
+        connection = (HttpURLConnection) new URL(busyUrl + "/asset1.png").openConnection();
+        responseCode = connection.getResponseCode();
+      }
+      assertEquals("Accepted when not busy", 200, responseCode);
+      readFully(connection.getInputStream());
+    } finally {
+      release.countDown();
+      client.shutdown();
+      busy.server.stop(0);
+      busy.workers.shutdown();
+      busy.content.shutdown();
+    }
+  }
+
+  /**
+   * Ensure stopping the server lets requests in progress finish, refuses new connections,
+   * and writes deferred index changes.
+   */
+  @Test public void gracefulStop() throws Exception {
+    File stopRoot = Files.createTempDirectory("TestWebApp").toFile();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    ExecutorService client = Executors.newSingleThreadExecutor();
+    try {
+      Files.write(new File(stopRoot, "home.html").toPath(), "<title>Home</title>".getBytes());
+      WebApp stopping = new WebApp() {
+          @Override public void get(HttpExchange exchange) throws IOException {
+            if ("slow".equals(exchange.getRequestURI().getQuery())) {
+              started.countDown();
+              try {
+                release.await(10, TimeUnit.SECONDS);
+              } catch(InterruptedException exception) {
+              }
+            }
+            super.get(exchange);
+          }
+        }.setRoot(stopRoot).setPort(0).setHeadless(true).setShutdownTimeout(5);
+      stopping.start();
+      assertNotNull("Shutdown hook registered", stopping.shutdownHook);
+      String stoppingUrl = "http://localhost:" + stopping.server.getAddress().getPort();
+      
+      // a deferred index change
+      stopping.content.setIndexWriteDelay(60000);
+      HttpURLConnection connection = (HttpURLConnection)
+        new URL(stoppingUrl + "/new-page.html").openConnection();
+      connection.setRequestMethod("PUT");
+      connection.setDoOutput(true);
+      connection.getOutputStream().write("<title>New Page</title>".getBytes());
+      assertEquals("PUT", 200, connection.getResponseCode());
+      readFully(connection.getInputStream());
+      assertFalse("Index write deferred",
+                  new String(Files.readAllBytes(new File(stopRoot, "index.html").toPath()),
+                             "UTF-8").contains("New Page"));
+
+      // a request in progress
+      Future<Integer> slow = client.submit(() -> {
+          HttpURLConnection slowConnection = (HttpURLConnection)
+            new URL(stoppingUrl + "/home.html?slow").openConnection();
+          readFully(slowConnection.getInputStream());
+          return slowConnection.getResponseCode();
+        });
+      assertTrue("Slow request started", started.await(10, TimeUnit.SECONDS));
+
+      Thread stopper = new Thread(() -> stopping.stop());
+      stopper.start();
+      Thread.sleep(200);
+      assertTrue("Waiting for request in progress", stopper.isAlive());
+      try {
+        connection = (HttpURLConnection) new URL(stoppingUrl + "/home.html").openConnection();
+        connection.setConnectTimeout(1000);
+        connection.getResponseCode();
+        fail("New connections refused while stopping");
+      } catch(IOException exception) {
+      }
+      
+      release.countDown();
+      assertEquals("Request in progress finished", Integer.valueOf(200), slow.get());
+      stopper.join(10000);
+      assertFalse("Stopped", stopper.isAlive());
+      assertNull("Shutdown hook removed", stopping.shutdownHook);
+      assertTrue("Deferred index change written",
+                 new String(Files.readAllBytes(new File(stopRoot, "index.html").toPath()),
+                            "UTF-8").contains("New Page"));
+    } finally {
+      release.countDown();
+      client.shutdown();
+      TestContentManager.deleteRecursively(stopRoot.toPath());
+    }
+  }
+
+  /**
+   * Measures the latency of small requests while slow clients are uploading, with requests
+   * handled on the dispatcher thread, by a pool of threads, and by virtual threads (if
+   * available). This only runs if the system property wysiwiki.benchmark is true, e.g.
+   * <tt>mvn test -Dtest=TestWebApp -Dwysiwiki.benchmark=true</tt>
+   */
+  @Test public void slowClients() throws Exception {
+    Assume.assumeTrue("Benchmark not requested", Boolean.getBoolean("wysiwiki.benchmark"));
+    final int slowClients = 8;
+    final int fastClients = 4;
+    final long slowMillis = 2000;
+    for (String mode : new String[] { "dispatcher", "pool", "virtual" }) {
+      WebApp server = new WebApp().setRoot(root).setPort(0)
+        .setThreads("dispatcher".equals(mode)? 0 : 16)
+        .setVirtualThreads("virtual".equals(mode));
+      server.createServer();
+      server.createContentManager();
+      server.addHandlers();
+      server.server.start();
+      final int port = server.server.getAddress().getPort();
+      ExecutorService clients = Executors.newFixedThreadPool(slowClients + fastClients);
+      try {
+        // slow clients trickle uploads
+        Vector<Future<?>> uploads = new Vector<Future<?>>();
+        for (int c = 0; c < slowClients; c++) {
+          final int client = c;
+          uploads.add(clients.submit(() -> {
+                byte[] chunk = new byte[100];
+                Arrays.fill(chunk, (byte)'x');
+                int chunks = 20;
+                java.net.Socket socket = new java.net.Socket("localhost", port);
+                try {
+                  java.io.OutputStream out = socket.getOutputStream();
+                  out.write(("PUT /slow" + client + ".html HTTP/1.1\r\n"
+                             + "Host: localhost\r\n"
+                             + "Content-Length: " + (chunk.length * chunks) + "\r\n\r\n")
+                            .getBytes("US-ASCII"));
+                  for (int i = 0; i < chunks; i++) {
+                    out.write(chunk);
+                    out.flush();
+                    Thread.sleep(slowMillis / chunks);
+                  }
+                  socket.getInputStream().read();
+                } finally {
+                  socket.close();
+                }
+                return null;
+              }));
+        } // next slow client
+        Thread.sleep(100); // let the uploads start
+        
+        // fast clients measure latency while the uploads are in progress
+        final Vector<Long> latencies = new Vector<Long>();
+        final long end = System.currentTimeMillis() + slowMillis;
+        Vector<Future<?>> requests = new Vector<Future<?>>();
+        for (int c = 0; c < fastClients; c++) {
+          requests.add(clients.submit(() -> {
+                while (System.currentTimeMillis() < end) {
+                  long start = System.nanoTime();
+                  HttpURLConnection connection = (HttpURLConnection)
+                    new URL("http://localhost:" + port + "/asset700.png").openConnection();
+                  readFully(connection.getInputStream());
+                  latencies.add((System.nanoTime() - start) / 1000);
+                } // next request
+                return null;
+              }));
+        } // next fast client
+        for (Future<?> result : requests) result.get();
+        for (Future<?> result : uploads) result.get();
+        Long[] sorted = latencies.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        System.out.println(String.format(
+                             "TestWebApp.slowClients: %s (%s): %d requests, "
+                             + "p50 %.1fms, p99 %.1fms, max %.1fms",
+                             mode, server.workers == null? "no workers" : server.workers,
+                             sorted.length,
+                             sorted[sorted.length / 2] / 1000.0,
+                             sorted[(int)(sorted.length * 0.99)] / 1000.0,
+                             sorted[sorted.length - 1] / 1000.0));
+      } finally {
+        clients.shutdownNow();
+        server.server.stop(0);
+        if (server.workers != null) server.workers.shutdown();
+        server.content.shutdown();
+        for (int c = 0; c < slowClients; c++) new File(root, "slow" + c + ".html").delete();
+      }
+    } // next mode
+  }
+
+  /**
+   * Measures throughput for a mix of asset sizes. This only runs if the system property
+   * wysiwiki.benchmark is true, e.g.
+   * <tt>mvn test -Dtest=TestWebApp -Dwysiwiki.benchmark=true</tt>
+   */
+  @Test public void throughput() throws Exception {
+    Assume.assumeTrue("Benchmark not requested", Boolean.getBoolean("wysiwiki.benchmark"));
+    int threads = 8;
+    int requestsPerThread = 500;
+    final AtomicLong bytes = new AtomicLong();
+    ExecutorService clients = Executors.newFixedThreadPool(threads);
+    for (int warmUp = 0; warmUp < 2; warmUp++) {
+      bytes.set(0);
+      long start = System.nanoTime();
+      Vector<Future<?>> results = new Vector<Future<?>>();
+      for (int t = 0; t < threads; t++) {
+        final int seed = t;
+        results.add(clients.submit(() -> {
+              Random random = new Random(seed);
+              byte[] buffer = new byte[65536];
+              for (int r = 0; r < requestsPerThread; r++) {
+                // mostly small files, as in a typical page load
+                int size = ASSET_SIZES[random.nextInt(
+                    random.nextInt(4) == 0? ASSET_SIZES.length : ASSET_SIZES.length - 2)];
+                HttpURLConnection connection = (HttpURLConnection)
+                  new URL(baseUrl + "/asset" + size + ".png").openConnection();
+                InputStream in = connection.getInputStream();
+                int read = in.read(buffer);
+                while (read >= 0) {
+                  bytes.addAndGet(read);
+                  read = in.read(buffer);
+                }
+                in.close();
+              } // next request
+              return null;
+            }));
+      } // next thread
+      for (Future<?> result : results) result.get();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      if (warmUp == 1) {
+        System.out.println(String.format(
+                             "TestWebApp.throughput: %d requests in %.2fs: "
+                             + "%.0f requests/s, %.1f MB/s",
+                             threads * requestsPerThread, seconds,
+                             threads * requestsPerThread / seconds,
+                             bytes.get() / seconds / 1024 / 1024));
+      }
+    } // next run
+    clients.shutdown();
+  }
+
+  /** Reads all the bytes of a stream. */
+  static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read = in.read(buffer);
+    while (read >= 0) {
+      bytes.write(buffer, 0, read);
+      read = in.read(buffer);
+    }
+    in.close();
+    return bytes.toByteArray();
+  }
+}
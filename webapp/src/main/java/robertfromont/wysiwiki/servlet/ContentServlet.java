@@ -19,22 +19,27 @@
 //
 package robertfromont.wysiwiki.servlet;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileSystems;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Base64;
 import java.util.List;
+import java.util.Map;
 import java.util.Iterator;
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -50,6 +55,8 @@ import org.apache.catalina.UserDatabase;
 import org.apache.commons.fileupload.*;
 import org.apache.commons.fileupload.disk.*;
 import org.apache.commons.fileupload.servlet.*;
+import robertfromont.wysiwiki.service.ByteRanges;
+import robertfromont.wysiwiki.service.CachePolicy;
 import robertfromont.wysiwiki.service.ContentManager;
 
 /**
@@ -60,6 +67,15 @@ import robertfromont.wysiwiki.service.ContentManager;
 public class ContentServlet extends HttpServlet {
 
   ContentManager content;
+
+  /**
+   * Whether index.html has only the top-level entries, with the entries of each directory
+   * loaded when it's expanded, for sites whose index is too big to load all at once.
+   */
+  boolean lazyIndex = false;
+
+  /** How clients may cache the files that are served. */
+  CachePolicy cachePolicy = new CachePolicy();
   
   /**
    * Default constructor.
@@ -79,7 +95,90 @@ public class ContentServlet extends HttpServlet {
       Path rootPath = FileSystems.getDefault().getPath(root).normalize();
       log("Document root: " + rootPath);
 
-      content = new ContentManager().setRoot(rootPath);
+      content = new ContentManager();
+
+      // the number of threads used to create the index can be configured
+      String indexParallelism = getServletContext().getInitParameter("indexParallelism");
+      if (indexParallelism != null) {
+        content.setIndexParallelism(Integer.parseInt(indexParallelism));
+      }
+      log("Index parallelism: " + content.getIndexParallelism());
+
+      // the index can be checked against the content at startup
+      if ("true".equals(getServletContext().getInitParameter("reconcile"))) {
+        content.setReconcileOnLoad(true);
+      }
+      
+      // frequently read small files can be cached in memory
+      String contentCacheSize = getServletContext().getInitParameter("contentCacheSize");
+      if (contentCacheSize != null) {
+        content.setContentCacheSize(Long.parseLong(contentCacheSize));
+        log("Content cache size: " + content.getContentCacheSize() + " bytes");
+      }
+      
+      // writes can be flushed to the storage device each time, or in batches
+      String fsync = getServletContext().getInitParameter("fsync");
+      if (fsync != null) {
+        content.setFsyncPolicy(ContentManager.FsyncPolicy.valueOf(fsync.toUpperCase()));
+      }
+      String fsyncInterval = getServletContext().getInitParameter("fsyncInterval");
+      if (fsyncInterval != null) {
+        content.setFsyncInterval(Long.parseLong(fsyncInterval));
+      }
+      log("fsync: " + content.getFsyncPolicy());
+      
+      // previous versions of pages can be kept, subject to a retention policy
+      if ("true".equals(getServletContext().getInitParameter("revisions"))) {
+        content.setKeepRevisions(true);
+      }
+      String maxRevisions = getServletContext().getInitParameter("maxRevisions");
+      if (maxRevisions != null) content.setMaxRevisions(Integer.parseInt(maxRevisions));
+      String maxRevisionAge = getServletContext().getInitParameter("maxRevisionAge");
+      if (maxRevisionAge != null) {
+        content.setMaxRevisionAge(Integer.parseInt(maxRevisionAge));
+      }
+      log("Revisions: " + (!content.getKeepRevisions()? "not kept"
+                           : "up to " + content.getMaxRevisions() + " per page, "
+                           + content.getMaxRevisionAge() + " days (0 = no limit)"));
+      
+      content.setRoot(rootPath);
+
+      // index.html write-behind can be configured with context parameters
+      String indexWriteDelay = getServletContext().getInitParameter("indexWriteDelay");
+      if (indexWriteDelay != null) {
+        content.setIndexWriteDelay(Long.parseLong(indexWriteDelay));
+        log("Index write delay: " + content.getIndexWriteDelay() + "ms");
+      }
+      String indexWriteMaxDelay = getServletContext().getInitParameter("indexWriteMaxDelay");
+      if (indexWriteMaxDelay != null) {
+        content.setIndexWriteMaxDelay(Long.parseLong(indexWriteMaxDelay));
+        log("Index write max delay: " + content.getIndexWriteMaxDelay() + "ms");
+      }
+
+      // changes made by other processes can be indexed as they happen
+      String watchDebounce = getServletContext().getInitParameter("watchDebounce");
+      if (watchDebounce != null) {
+        content.setWatchDebounce(Long.parseLong(watchDebounce));
+      }
+      if ("true".equals(getServletContext().getInitParameter("watch"))) {
+        content.startWatching();
+        log("Watching for changes, debounce: " + content.getWatchDebounce() + "ms");
+      }
+
+      // very large indices can be loaded a directory at a time
+      if ("true".equals(getServletContext().getInitParameter("lazyIndex"))) {
+        lazyIndex = true;
+        log("Index directories loaded when expanded");
+      }
+
+      // Cache-Control can be configured per path pattern
+      String cacheControl = getServletContext().getInitParameter("cacheControl");
+      if (cacheControl != null) cachePolicy.setRules(cacheControl);
+      log("Cache-Control: " + cachePolicy.getRules());
+      if ("true".equals(getServletContext().getInitParameter("hashETags"))) {
+        cachePolicy.setHashETags(true);
+        log("ETags are content hashes");
+      }
 
       log("Ready");
     } catch (Exception x) {
@@ -87,6 +186,19 @@ public class ContentServlet extends HttpServlet {
     } 
   }
 
+  /**
+   * Release resources, ensuring any deferred index changes are written.
+   */
+  @Override
+  public void destroy() {
+    try {
+      if (content != null) content.shutdown();
+    } catch (Exception x) {
+      log("destroy failed", x);
+    }
+    super.destroy();
+  }
+
   /**
    * GET handler: Return the given resource. If the resource is a .html document that
    * doesn't exist yet, a blank template is returned with the 404 response.
@@ -107,6 +219,10 @@ public class ContentServlet extends HttpServlet {
         +request.getPathInfo().substring(0, request.getPathInfo().length()-1) + ".html");
       return;
     }
+    if (request.getPathInfo().equals("/wysiwiki/index")) { // entries of one directory
+      getIndexEntries(request, response);
+      return;
+    }
     if (request.getPathInfo().indexOf(".") < 0) { // no dot, maybe a directory name?
       File realPath = new File(request.getRealPath(request.getPathInfo()));
       if (!realPath.exists() || realPath.isDirectory()) {
@@ -115,41 +231,11 @@ public class ContentServlet extends HttpServlet {
         return;
       }
     }    
-
-    InputStream contentStream = null;
-    try {
-      contentStream = content.read(request.getPathInfo());
-    } catch (FileNotFoundException notFound) {
-      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-      if (request.getPathInfo().endsWith(".html")) {
-        // return 404, but also a template for creating a new document
-
-        // if it's not a top-level document we need to edit the <base> tag on the way through
-        if (request.getPathInfo().indexOf('/', 1) >= 0) {
-          // for each slash in the path, we need to add "../" to the base href
-          int slashCount = request.getPathInfo().substring(1).split("/").length - 1;
-          String href = "";
-          for (int level = 0; level < slashCount; level++) href += "../";
-          String baseTag = "<base href=\""+href+"\">";
-          
-          // read the document into a string, converting the base tag, and write out the result 
-          StringBuilder template = new StringBuilder();
-          BufferedReader reader = new BufferedReader(
-            new InputStreamReader(content.read("/template.html")));
-          String line = reader.readLine();
-          while(line != null) {
-            template.append(line.replaceAll("<base href=\"\\./\">", baseTag));
-            template.append("\n");
-            line = reader.readLine();
-          } // next line
-          reader.close();
-          contentStream = new ByteArrayInputStream(template.toString().getBytes());
-        } else { // top level document, so just copy through the template as-is
-          contentStream = content.read("/template.html");
-        }
-      }
+    if (request.getPathInfo().equals("/index.html")) { // the index is served from memory
+      getIndex(request, response);
+      return;
     }
-    
+
     if (request.getPathInfo().endsWith(".html")) {
       response.setCharacterEncoding("UTF-8");
     }
@@ -160,8 +246,68 @@ public class ContentServlet extends HttpServlet {
       contentType = "application/javascript";
     }
     response.setContentType(contentType);
-    response.setDateHeader( // expires in a week
-      "Expires", new java.util.Date().getTime() + (1000*60*60*24*7));
+    // not for a missing file, so that it's not cached as missing once it's uploaded
+    String cacheControl = cachePolicy.cacheControl(request.getPathInfo());
+    InputStream contentStream = null;
+    try {
+      Path file = null;
+      try {
+        file = content.readablePath(request.getPathInfo());
+      } catch (FileSystemException notFound) {
+        throw notFound;
+      } catch (IOException forbidden) { // outside the root, or a forbidden path
+        response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+        response.setContentLength(0);
+        return;
+      }
+      BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      if (!attributes.isRegularFile()) throw new FileNotFoundException(file.toString());
+      if (cacheControl != null) response.setHeader("Cache-Control", cacheControl);
+      long lastModified = attributes.lastModifiedTime().toMillis();
+      String eTag = cachePolicy.eTag(file, attributes);
+      response.setHeader("ETag", eTag);
+      response.setDateHeader("Last-Modified", lastModified);
+      response.setHeader("Accept-Ranges", "bytes");
+      if (CachePolicy.notModified(
+            request.getHeader("If-None-Match"),
+            // an invalid date is ignored, rather than failing the request
+            CachePolicy.parseHttpDate(request.getHeader("If-Modified-Since")),
+            eTag, lastModified)) {
+        // no need to open the file
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      if (ByteRanges.ifRange(request.getHeader("If-Range"), eTag, lastModified)) {
+        ByteRanges ranges = ByteRanges.parse(
+          request.getHeader("Range"), attributes.size(), contentType);
+        if (ranges != null) {
+          sendRanges(response, file, ranges);
+          return;
+        }
+      }
+      if (attributes.size() <= Integer.MAX_VALUE) {
+        response.setContentLength((int)attributes.size());
+      }
+      byte[] cached = content.cachedContent(file, attributes);
+      contentStream = cached != null? new ByteArrayInputStream(cached) // served from memory
+        : Files.newInputStream(file);
+    } catch (FileNotFoundException | FileSystemException notFound) {
+      // e.g. NoSuchFileException, or "Not a directory" for /page.html/other.html
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      if (request.getPathInfo().endsWith(".html")) {
+        // return 404, but also a template for creating a new document
+        if (cacheControl != null) response.setHeader("Cache-Control", cacheControl);
+
+        // from memory, as crawlers probing for missing pages make this a hot path
+        byte[] template = content.newPageTemplate(request.getPathInfo());
+        response.setContentLength(template.length);
+        contentStream = new ByteArrayInputStream(template);
+      } else { // no body, as WebApp.get() does
+        response.setContentLength(0);
+        return;
+      }
+    }
+    
     
     byte[] buf = new byte[8192];
     int length;
@@ -173,6 +319,99 @@ public class ContentServlet extends HttpServlet {
     responseBody.close();
   }  
 
+  /**
+   * Sends the given byte ranges of a file with a 206 response, or a 416 response if none
+   * of the ranges are in the file. Each range is transferred from its position in the
+   * file's channel.
+   */
+  protected void sendRanges(HttpServletResponse response, Path file, ByteRanges ranges)
+    throws IOException {
+    if (!ranges.isSatisfiable()) {
+      response.setHeader("Content-Range", ranges.getContentRange());
+      response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return;
+    }
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      if (ranges.isMultipart()) {
+        response.setContentType(ranges.getContentType());
+      } else {
+        response.setHeader("Content-Range", ranges.getContentRange());
+      }
+      response.setHeader("Content-Length", Long.toString(ranges.getContentLength()));
+      OutputStream responseBody = response.getOutputStream();
+      ranges.write(channel, Channels.newChannel(responseBody));
+      responseBody.close();
+    } finally {
+      channel.close();
+    }
+  } // end of sendRanges()
+
+  /**
+   * Serves /index.html from memory. The response has an ETag so that clients can cheaply
+   * revalidate the index every time they use it. If {@link #lazyIndex} is set, only the top
+   * levels of the index are served.
+   */
+  protected void getIndex(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+    try {
+      ContentManager.IndexSnapshot index = content.getIndexSnapshot();
+      if (lazyIndex) {
+        sendIndex(request, response, index.getTopLevelBytes(), index.getTopLevelETag());
+      } else {
+        sendIndex(request, response, index.getBytes(), index.getETag());
+      }
+    } catch (IOException x) {
+      throw x;
+    } catch (Exception x) {
+      throw new ServletException(x);
+    }
+  } // end of getIndex()
+
+  /**
+   * Serves /wysiwiki/index?id=..., which is the entries of the directory with the given id
+   * as an HTML fragment, for index.js to insert when the directory is expanded.
+   */
+  protected void getIndexEntries(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+    String id = request.getParameter("id");
+    if (id == null) id = "/";
+    try {
+      byte[] entries = content.getIndexSnapshot().getEntries(id);
+      if (entries == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+      sendIndex(request, response, entries, ContentManager.etagFor(entries));
+    } catch (IOException x) {
+      throw x;
+    } catch (Exception x) {
+      throw new ServletException(x);
+    }
+  } // end of getIndexEntries()
+
+  /**
+   * Sends (part of) the index from memory as HTML, or 304 if the client's copy is current.
+   */
+  protected void sendIndex(
+    HttpServletRequest request, HttpServletResponse response, byte[] bytes, String eTag)
+    throws IOException {
+    response.setHeader("ETag", eTag);
+    // make sure index is refreshable
+    response.setHeader("Cache-Control", "no-cache");
+    if (ContentManager.etagMatches(request.getHeader("If-None-Match"), eTag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    response.setContentType("text/html");
+    response.setCharacterEncoding("UTF-8");
+    response.setContentLength(bytes.length);
+    OutputStream responseBody = response.getOutputStream();
+    responseBody.write(bytes);
+    responseBody.close();
+  } // end of sendIndex()
+
   /**
    * PUT handler: Adds or updates an HTML document, or if the "move" parameter is specified,
    * the document's entry is moved in the index (in which case the HTML document itself is
@@ -192,8 +431,7 @@ public class ContentServlet extends HttpServlet {
       }
       String moveWhere = request.getParameter("move");
       if (moveWhere == null) { // PUT full content                
-        // back up the old version
-        //TODO backup(html);
+        // (the old version is kept as a revision by the content manager)
         try {
           content.update(request.getPathInfo(), request.getInputStream());
         } catch(NoSuchFileException exception) {
@@ -242,6 +480,14 @@ public class ContentServlet extends HttpServlet {
     response.setContentType("text/plain");
     response.setCharacterEncoding("UTF-8");
 
+    if ("/wysiwiki/import".equals(request.getPathInfo())) {
+      importArchive(request, response);
+      return;
+    }
+    if ("/wysiwiki/post".equals(request.getPathInfo())) {
+      createPost(request, response);
+      return;
+    }
     try {
       if (ServletFileUpload.isMultipartContent(request)) { // file being uploaded
         
@@ -263,20 +509,10 @@ public class ContentServlet extends HttpServlet {
         } else { // file found
           
           File file = new File(getServletContext().getRealPath(request.getPathInfo()));
-          if (!file.getParentFile().exists()) {
-            Files.createDirectories(file.getParentFile().toPath());
-          }
-          if (file.exists()) {
-            // get a non-existent file name
-            File dir = file.getParentFile();
-            String name = file.getName().replaceAll("\\.[^.]*$","");
-            String ext = file.getName().replaceAll(".*\\.([^.]*)$","$1");
-            int i = 0;
-            do {
-              file = new File(dir, name + "-" + (++i) + "." + ext);
-            } while(file.exists());
+          // written atomically, renamed if the name is taken
+          try (InputStream uploaded = fileItem.getInputStream()) {
+            file = content.createUnique(file.toPath(), uploaded).toFile();
           }
-          fileItem.write(file);
 
           response.getWriter().write(
             "."+request.getPathInfo().replaceAll("[^/]+$", file.getName()));
@@ -289,6 +525,52 @@ public class ContentServlet extends HttpServlet {
     }
   }
 
+  /**
+   * Imports a zip archive, posted to /wysiwiki/import, of files to create or update. The
+   * response has a line for each file, with its result, followed by a summary.
+   */
+  protected void importArchive(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+    try {
+      ContentManager.ImportReport report = content.importArchive(request.getInputStream());
+      log(report.toString());
+      for (Map.Entry<String,String> result : report.getResults().entrySet()) {
+        response.getWriter().write(result.getKey() + "\t" + result.getValue() + "\n");
+      } // next result
+      response.getWriter().write(report + "\n");
+    } catch (Exception x) {
+      x.printStackTrace(System.err);
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.getWriter().write(x.toString());
+    }
+  } // end of importArchive()
+
+  /**
+   * Creates a blog post, posted to /wysiwiki/post with "path" and "title" parameters, and
+   * its year and month pages if necessary. The response is the URL path of the post, with
+   * status 409 if the post already exists.
+   */
+  protected void createPost(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+    String urlPath = request.getParameter("path");
+    String title = request.getParameter("title");
+    try {
+      if (urlPath == null) throw new IllegalArgumentException("No path specified.");
+      content.createPost(urlPath, title == null? "" : title);
+      response.getWriter().write(urlPath);
+    } catch (FileAlreadyExistsException exists) {
+      response.setStatus(HttpServletResponse.SC_CONFLICT);
+      response.getWriter().write(urlPath);
+    } catch (IllegalArgumentException x) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.getWriter().write(x.getMessage());
+    } catch (Exception x) {
+      x.printStackTrace(System.err);
+      response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      response.getWriter().write(x.toString());
+    }
+  } // end of createPost()
+
   @Override
   /**
    * OPTIONS handler: specifies what HTML methods are allowed, depending on the user access.